@@ -0,0 +1,97 @@
+package com.heterodain.smartmeter.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.heterodain.smartmeter.service.Ambient.SendData;
+import com.heterodain.smartmeter.service.AmbientJson;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Ambientへの送信JSON生成のベンチマーク
+ *
+ * 以前のツリー(ObjectNode)を組み立てて文字列にする方法と、{@link AmbientJson}で再利用バッファに直接書き込む方法を比較する。
+ *
+ * <pre>
+ * java -jar target/benchmarks.jar AmbientJsonBenchmark -prof gc
+ * </pre>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class AmbientJsonBenchmark {
+    private static final ZoneId UTC = ZoneId.of("UTC");
+    private static final String WRITE_KEY = "0123456789abcdef";
+
+    // 1回に送信する件数
+    @Param({ "1", "10" })
+    private int batch;
+
+    private final ObjectMapper om = new ObjectMapper();
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(4096);
+    private List<SendData> sendDatas;
+
+    @Setup
+    public void setup() {
+        sendDatas = new ArrayList<>();
+        ZonedDateTime time = ZonedDateTime.of(2020, 10, 17, 12, 0, 0, 0, ZoneId.of("Asia/Tokyo"));
+        for (int i = 0; i < batch; i++) {
+            Double accumu30 = i % 30 == 0 ? 1234.0 : null;
+            sendDatas.add(new SendData(time.plusMinutes(i), new Double[] { 412.5 + i, 388.25 - i, accumu30 }));
+        }
+    }
+
+    @Benchmark
+    public byte[] legacyTree() throws IOException {
+        ObjectNode rootNode = om.createObjectNode();
+        rootNode.put("writeKey", WRITE_KEY);
+        ArrayNode dataArrayNode = om.createArrayNode();
+        for (SendData sendData : sendDatas) {
+            ObjectNode dataNode = om.createObjectNode();
+            dataNode.put("created", sendData.getTime().withZoneSameInstant(UTC).toLocalDateTime()
+                    .format(DateTimeFormatter.ISO_LOCAL_DATE_TIME));
+            Double[] datas = sendData.getDatas();
+            for (int i = 1; i <= datas.length; i++) {
+                if (datas[i - 1] != null) {
+                    dataNode.put("d" + i, datas[i - 1]);
+                }
+            }
+            dataArrayNode.add(dataNode);
+        }
+        rootNode.set("data", dataArrayNode);
+        return om.writeValueAsString(rootNode).getBytes("UTF-8");
+    }
+
+    @Benchmark
+    public int ambientJson() throws IOException {
+        buffer.reset();
+        try (JsonGenerator gen = om.getFactory().createGenerator(buffer)) {
+            AmbientJson.writeSendDatas(gen, WRITE_KEY, sendDatas);
+        }
+        return buffer.size();
+    }
+}
@@ -0,0 +1,83 @@
+package com.heterodain.smartmeter.benchmark;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.heterodain.smartmeter.service.Ambient.ReadData;
+import com.heterodain.smartmeter.service.AmbientJson;
+import com.heterodain.smartmeter.service.AmbientSeries;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Ambientの取得データ読み込みのベンチマーク
+ *
+ * 以前の{@link ReadData}のリストへのデータバインドと、{@link AmbientJson}で列形式の{@link AmbientSeries}に読み込む方法を比較する。
+ * 1日分(1分毎)と1週間分の応答を使う。
+ *
+ * <pre>
+ * java -jar target/benchmarks.jar AmbientReadBenchmark -prof gc
+ * </pre>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class AmbientReadBenchmark {
+    // 応答の行数
+    @Param({ "1440", "10080" })
+    private int rows;
+
+    private final ObjectMapper om = new ObjectMapper();
+    private byte[] response;
+
+    @Setup
+    public void setup() {
+        StringBuilder json = new StringBuilder("[");
+        long time = Instant.parse("2020-10-17T00:00:00Z").toEpochMilli();
+        for (int i = 0; i < rows; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append(String.format(Locale.ROOT, "{\"d1\":%.2f,\"d2\":%.2f,", 400 + (i % 300) * 1.25,
+                    350 + (i % 200) * 0.75));
+            if (i % 30 == 0) {
+                json.append("\"d3\":").append(1000 + i % 500).append(',');
+            }
+            json.append("\"created\":\"").append(Instant.ofEpochMilli(time - i * 60000L)).append("\"}");
+        }
+        response = json.append(']').toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public List<ReadData> legacyReadData() throws IOException {
+        return om.readValue(response, new TypeReference<List<ReadData>>() {
+        });
+    }
+
+    @Benchmark
+    public AmbientSeries ambientSeries() throws IOException {
+        try (JsonParser parser = om.getFactory().createParser(response)) {
+            return AmbientJson.readSeries(parser);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.heterodain.smartmeter.benchmark;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import com.heterodain.smartmeter.device.EchonetFrame;
+import com.heterodain.smartmeter.device.EchonetFrameDecoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * ERXUDP電文デコードのベンチマーク
+ *
+ * 以前のsplit/substring/parseLongによる解析と{@link EchonetFrameDecoder}を比較する。
+ *
+ * <pre>
+ * java -jar target/benchmarks.jar EchonetFrameDecoderBenchmark -prof gc
+ * </pre>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class EchonetFrameDecoderBenchmark {
+    private static final String ERXUDP_HEADER = "ERXUDP FE80:0000:0000:0000:0280:8700:3000:0000 "
+            + "FE80:0000:0000:0000:021D:1290:0003:C890 0E1A 0E1A 001C640300000000 1 ";
+
+    // 瞬時電力、瞬時電流、30分積算電力の応答
+    private String powerLine;
+    private byte[] powerBytes;
+    // 積算電力量計測値履歴１(48コマ)の応答
+    private String historyLine;
+    private byte[] historyBytes;
+
+    private final EchonetFrameDecoder decoder = new EchonetFrameDecoder();
+    private final EchonetFrame frame = new EchonetFrame();
+
+    @Setup
+    public void setup() {
+        powerLine = erxudp("1081000102880105FF017203E70400000294E80400280014EA0B07E50A110E1E00000A1234");
+        powerBytes = powerLine.getBytes(StandardCharsets.ISO_8859_1);
+
+        StringBuilder history = new StringBuilder("1081000102880105FF017201E2C20001");
+        for (int i = 0; i < 48; i++) {
+            history.append(String.format("%08X", 0x1000 + i * 7));
+        }
+        historyLine = erxudp(history.toString());
+        historyBytes = historyLine.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    @Benchmark
+    public void legacyCurrentPower(Blackhole bh) {
+        String res = powerLine.trim().split(" ")[8];
+        String seoj = res.substring(8, 8 + 6);
+        String esv = res.substring(20, 20 + 2);
+        if ("028801".contentEquals(seoj) && "72".equals(esv)) {
+            int pos = 24;
+            while (pos < res.length()) {
+                String epc = res.substring(pos, pos + 2);
+                pos += 2;
+                int epcSize = Integer.parseInt(res.substring(pos, pos + 2), 16);
+                pos += 2;
+                String epcData = res.substring(pos, pos + epcSize * 2);
+                pos += epcSize * 2;
+
+                if ("E7".equals(epc)) {
+                    bh.consume(epcData.startsWith("FF") ? 0L : Long.parseLong(epcData, 16));
+                } else if ("E8".equals(epc)) {
+                    bh.consume(Long.parseLong(epcData.substring(0, 4), 16));
+                    bh.consume(Long.parseLong(epcData.substring(4), 16));
+                } else if ("EA".equals(epc)) {
+                    bh.consume(Integer.parseInt(epcData.substring(0, 4), 16));
+                    bh.consume(Integer.parseInt(epcData.substring(4, 6), 16));
+                    bh.consume(Integer.parseInt(epcData.substring(6, 8), 16));
+                    bh.consume(Integer.parseInt(epcData.substring(8, 10), 16));
+                    bh.consume(Integer.parseInt(epcData.substring(10, 12), 16));
+                    bh.consume(Integer.parseInt(epcData.substring(12, 14), 16));
+                    bh.consume(Long.parseLong(epcData.substring(14), 16) * 100);
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public void decoderCurrentPower(Blackhole bh) {
+        if (decoder.decode(powerLine, frame)) {
+            decodeCurrentPower(bh);
+        }
+    }
+
+    @Benchmark
+    public void decoderCurrentPowerBytes(Blackhole bh) {
+        if (decoder.decode(powerBytes, 0, powerBytes.length, frame)) {
+            decodeCurrentPower(bh);
+        }
+    }
+
+    @Benchmark
+    public void legacyHistory(Blackhole bh) {
+        String res = historyLine.trim().split(" ")[8];
+        String seoj = res.substring(8, 8 + 6);
+        String esv = res.substring(20, 20 + 2);
+        if ("028801".contentEquals(seoj) && "72".equals(esv)) {
+            int pos = 24;
+            while (pos < res.length()) {
+                String epc = res.substring(pos, pos + 2);
+                pos += 2;
+                int epcSize = Integer.parseInt(res.substring(pos, pos + 2), 16);
+                pos += 2;
+                String epcData = res.substring(pos, pos + epcSize * 2);
+                pos += epcSize * 2;
+
+                if ("E2".equals(epc)) {
+                    for (int epcDataPos = 4; epcDataPos < epcSize * 2; epcDataPos += 8) {
+                        bh.consume(Long.parseLong(epcData.substring(epcDataPos, epcDataPos + 8), 16) * 100);
+                    }
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public void decoderHistory(Blackhole bh) {
+        if (decoder.decode(historyBytes, 0, historyBytes.length, frame) && frame.getSeoj() == 0x028801
+                && frame.getEsv() == 0x72) {
+            int i = frame.indexOf(0xE2);
+            for (int pos = 2; pos + 4 <= frame.getPdc(i); pos += 4) {
+                bh.consume(frame.getUnsigned(i, pos, 4) * 100);
+            }
+        }
+    }
+
+    private void decodeCurrentPower(Blackhole bh) {
+        if (frame.getSeoj() != 0x028801 || frame.getEsv() != 0x72) {
+            return;
+        }
+        for (int i = 0; i < frame.getOpc(); i++) {
+            switch (frame.getEpc(i)) {
+            case 0xE7:
+                bh.consume(Math.max(0L, frame.getSigned(i, 0, 4)));
+                break;
+            case 0xE8:
+                bh.consume(frame.getUnsigned(i, 0, 2));
+                bh.consume(frame.getUnsigned(i, 2, 2));
+                break;
+            case 0xEA:
+                bh.consume(frame.getUnsigned(i, 0, 7));
+                bh.consume(frame.getUnsigned(i, 7, 4) * 100);
+                break;
+            default:
+                break;
+            }
+        }
+    }
+
+    private static String erxudp(String frame) {
+        return ERXUDP_HEADER + String.format("%04X ", frame.length() / 2) + frame;
+    }
+}
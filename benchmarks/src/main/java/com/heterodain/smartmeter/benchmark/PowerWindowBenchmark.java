@@ -0,0 +1,106 @@
+package com.heterodain.smartmeter.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.heterodain.smartmeter.aggregate.PowerWindow;
+import com.heterodain.smartmeter.model.CurrentPower;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * R相、T相の1分間平均電力(按分)算出のベンチマーク
+ *
+ * 以前のサンプルのリストをストリームで2回集計する方法と{@link PowerWindow}を比較する。
+ * 1回の呼び出しで1分間分のサンプルを追加して平均を取り出す。
+ *
+ * <pre>
+ * java -jar target/benchmarks.jar PowerWindowBenchmark -prof gc
+ * </pre>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class PowerWindowBenchmark {
+    // 1分間のサンプル数 (10秒毎、1秒毎)
+    @Param({ "6", "60" })
+    private int samples;
+
+    private long[] watts;
+    private long[] rAmps;
+    private long[] tAmps;
+
+    private final List<CurrentPower> powers = new ArrayList<>();
+    private PowerWindow window;
+    private final PowerWindow.Average average = new PowerWindow.Average();
+    private long time;
+
+    @Setup
+    public void setup() {
+        watts = new long[samples];
+        rAmps = new long[samples];
+        tAmps = new long[samples];
+        for (int i = 0; i < samples; i++) {
+            watts[i] = 500 + (i * 37) % 1500;
+            rAmps[i] = 20 + i % 7;
+            tAmps[i] = 15 + i % 5;
+        }
+        window = new PowerWindow(samples + 4);
+    }
+
+    @Benchmark
+    public void legacyStream(Blackhole bh) {
+        for (int i = 0; i < samples; i++) {
+            CurrentPower power = new CurrentPower();
+            power.setInstantPower(watts[i]);
+            power.setInstantRAmp(rAmps[i]);
+            power.setInstantTAmp(tAmps[i]);
+            powers.add(power);
+        }
+
+        double rw = powers.stream().mapToDouble(p -> {
+            double w = p.getInstantPower();
+            long r = p.getInstantRAmp();
+            long t = p.getInstantTAmp();
+            long a = r + t;
+            return a == 0 ? 0D : w * r / a;
+        }).average().orElse(0D);
+        double tw = powers.stream().mapToDouble(p -> {
+            double w = p.getInstantPower();
+            long r = p.getInstantRAmp();
+            long t = p.getInstantTAmp();
+            long a = r + t;
+            return a == 0 ? 0D : w * t / a;
+        }).average().orElse(0D);
+        powers.clear();
+
+        bh.consume(rw);
+        bh.consume(tw);
+    }
+
+    @Benchmark
+    public void powerWindow(Blackhole bh) {
+        for (int i = 0; i < samples; i++) {
+            window.add(time++, watts[i], rAmps[i], tAmps[i]);
+        }
+        if (window.drain(average)) {
+            bh.consume(average.getRWatt());
+            bh.consume(average.getTWatt());
+        }
+    }
+}
@@ -1,25 +1,27 @@
 package com.heterodain.smartmeter;
 
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.net.URLEncoder;
-import java.nio.charset.StandardCharsets;
 import java.io.File;
-import java.io.OutputStreamWriter;
-import java.time.ZonedDateTime;
-import java.time.format.DateTimeFormatter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.EnumSet;
 import java.util.concurrent.TimeUnit;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.heterodain.smartmeter.device.SmartMeter;
-import com.heterodain.smartmeter.model.CurrentPower;
-import com.heterodain.smartmeter.model.HistoryPower;
+import com.heterodain.smartmeter.metrics.MetricRegistry;
+import com.heterodain.smartmeter.metrics.MetricsServer;
+import com.heterodain.smartmeter.model.Measurement.Kind;
 import com.heterodain.smartmeter.model.Settings;
-import com.heterodain.smartmeter.model.CurrentPower.Accumu30Power;
 import com.heterodain.smartmeter.service.Ambient;
+import com.heterodain.smartmeter.service.Forwarder;
+import com.heterodain.smartmeter.service.HttpClient;
+import com.heterodain.smartmeter.service.LineNotifier;
+import com.heterodain.smartmeter.service.Threads;
+import com.heterodain.smartmeter.sink.AmbientSink;
+import com.heterodain.smartmeter.sink.Sink;
+import com.heterodain.smartmeter.sink.SinkPipeline;
+import com.heterodain.smartmeter.store.LinkStateFile;
+import com.heterodain.smartmeter.store.Outbox;
 
 import lombok.var;
 import lombok.extern.slf4j.Slf4j;
@@ -29,149 +31,127 @@ import lombok.extern.slf4j.Slf4j;
  */
 @Slf4j
 public class App {
-    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy年MM月dd日");
-
-    // バックグラウンドタスクを動かすためのスレッドプール
-    private static ScheduledExecutorService threadPool = Executors.newScheduledThreadPool(2);
-
     // JSONマッパー
     private static ObjectMapper om = new ObjectMapper();
 
     public static void main(final String[] args) throws Exception {
-        var settings = om.readValue(new File("settings.json"), Settings.class);
-
-        // 1分値送信先のAmbient
-        var ambient1Settings = settings.getAmbient1();
-        var ambient1 = new Ambient(ambient1Settings.getChannelId(), ambient1Settings.getReadKey(),
-                ambient1Settings.getWriteKey());
-
-        // 日計値送信先のAmbient
-        var ambient2Settings = settings.getAmbient2();
-        var ambient2 = new Ambient(ambient2Settings.getChannelId(), ambient2Settings.getReadKey(),
-                ambient2Settings.getWriteKey());
-
-        // LINE通知API
-        var httpConn = (HttpURLConnection) new URL(settings.getLineNotify().getUrl()).openConnection();
-        httpConn.setRequestMethod("POST");
-        httpConn.addRequestProperty("Authorization", "Bearer " + settings.getLineNotify().getToken());
-        httpConn.setDoOutput(true);
-
-        // スマートメーター接続
-        var smSettings = settings.getSmartMeter();
-        try (var smartMeter = new SmartMeter(smSettings.getComPort(), smSettings.getBrouteId(),
-                smSettings.getBroutePassword())) {
-            smartMeter.init();
-            smartMeter.connect();
-
-            var powers = new ArrayList<CurrentPower>();
-
-            // 10秒毎にスマートメーターから電力情報読込
-            Runnable readSmartMeterTask = () -> {
-                try {
-                    var power = smartMeter.getCurrentPower();
-                    synchronized (powers) {
-                        powers.add(power);
-                    }
+        var settingsFile = new File("settings.json");
+        var settings = om.readValue(settingsFile, Settings.class);
+        if (settings.isVirtualThreads() || Boolean.getBoolean("smartmeter.virtualThreads")) {
+            Threads.enableVirtual();
+        }
 
-                } catch (InterruptedException ignore) {
-                    return;
-                } catch (Exception e) {
-                    log.warn("スマートメーターへのアクセスに失敗しました。", e);
+        // HTTPクライアント (AmbientとLINE通知で接続を共有)
+        var http = new HttpClient(10000, 20000);
+
+        // LINE通知
+        var lineNotifier = new LineNotifier(http, settings.getLineNotify().getUrl(),
+                settings.getLineNotify().getToken());
+
+        // メトリクスの公開 (metricsPortを指定した場合のみ)
+        var metricsServer = settings.getMetricsPort() > 0
+                ? new MetricsServer(MetricRegistry.getDefault(), settings.getMetricsPort())
+                : null;
+
+        // 計測値の送信先 (送信先ごとにまとめて送信、送信できない間はディスクに溜める)
+        try (var sinks = new SinkPipeline(new File("outbox"));
+                // LINE通知の送信キュー
+                var lineForwarder = new Forwarder("line", new Outbox(new File("outbox", "line")), 1, 0, 100,
+                        entries -> {
+                            for (var entry : entries) {
+                                lineNotifier.send(new String(entry, StandardCharsets.UTF_8));
+                            }
+                        })) {
+
+            addSinks(sinks, settings, http);
+
+            // 接続パラメータの保存先 (settings.jsonと同じディレクトリ)
+            var linkStates = new LinkStateFile(
+                    new File(settingsFile.getAbsoluteFile().getParentFile(), "link-state.json"));
+
+            // スマートメーターごとに監視開始
+            var pollers = new ArrayList<MeterPoller>();
+            try {
+                for (var meter : settings.getMeterList()) {
+                    var dataDir = meter.getName() == null ? new File("data") : new File("data", meter.getName());
+                    var poller = new MeterPoller(meter, sinks, lineForwarder, linkStates, dataDir,
+                            settings.getRetentionDays());
+                    pollers.add(poller);
+                    poller.start();
                 }
-            };
-            threadPool.scheduleWithFixedDelay(readSmartMeterTask, 0, 10, TimeUnit.SECONDS);
 
-            // 1分毎にAmbientにデータ送信
-            Runnable sendAmbientTask = () -> {
-                if (powers.isEmpty()) {
-                    return;
+                // プログラムが止められるまで待つ : SIGINT(Ctrl + C)
+                var wait = new Object();
+                synchronized (wait) {
+                    try {
+                        wait.wait();
+                    } catch (InterruptedException ignore) {
+                        // NOP
+                    }
                 }
 
-                try {
-                    Double rw, tw;
-                    Accumu30Power accumu30;
-                    synchronized (powers) {
-                        // R相の1分間平均電力(W)算出
-                        rw = powers.stream().mapToDouble(p -> {
-                            double w = p.getInstantPower();
-                            long r = p.getInstantRAmp();
-                            long t = p.getInstantTAmp();
-                            long a = r + t;
-                            return a == 0 ? 0D : w * r / a;
-                        }).average().orElse(0D);
-
-                        // T相の1分間平均電力(W)算出
-                        tw = powers.stream().mapToDouble(p -> {
-                            double w = p.getInstantPower();
-                            long r = p.getInstantRAmp();
-                            long t = p.getInstantTAmp();
-                            long a = r + t;
-                            return a == 0 ? 0D : w * t / a;
-                        }).average().orElse(0D);
-
-                        // 30分積算電力
-                        accumu30 = powers.stream().filter(p -> p.getAccumu30() != null).map(p -> p.getAccumu30())
-                                .findFirst().orElse(null);
+            } finally {
+                for (var poller : pollers) {
+                    try {
+                        poller.close();
+                    } catch (Exception e) {
+                        log.warn("スマートメーターの監視の終了に失敗しました。", e);
                     }
+                }
+            }
+        } finally {
+            if (metricsServer != null) {
+                metricsServer.close();
+            }
+        }
+    }
 
-                    if (accumu30 == null) {
-                        // 瞬時電力送信
-                        ambient1.send(ZonedDateTime.now(), rw, tw);
-
-                    } else {
-                        // 瞬時電力と30分積算電力送信
-                        ambient1.send(ZonedDateTime.now(), rw, tw, (double) accumu30.getPower());
-
-                        // 0時0分の30分積算電力を受信したら、スマートメーターから昨日の電力使用量を取得して送信 & LINE通知
-                        if (accumu30.getTime().getHour() == 0 && accumu30.getTime().getMinute() == 0) {
-                            long yesterdayPower;
-                            try {
-                                HistoryPower yesterday = smartMeter.getBeforeDayPower(1);
-                                yesterdayPower = accumu30.getTotalPower() - yesterday.getAccumu30Powers().get(0);
-
-                            } catch (InterruptedException ignore) {
-                                return;
-                            } catch (Exception e) {
-                                log.warn("スマートメーターへのアクセスに失敗しました。", e);
-                                return;
-                            }
-
-                            // 日計値送信
-                            ZonedDateTime yesterday = accumu30.getTime().minusDays(1);
-                            ambient2.send(yesterday, (double) yesterdayPower);
+    /**
+     * 送信先の登録
+     * 
+     * スマートメーターごとのambient1(1分値を10件または2分でまとめて送信)とambient2(日計値)に加えて、sinksに記入した送信先を登録する。
+     * 
+     * @param sinks    登録先
+     * @param settings 設定情報
+     * @param http     HTTPクライアント
+     * @throws IOException
+     */
+    private static void addSinks(SinkPipeline sinks, Settings settings, HttpClient http) throws IOException {
+        for (var meter : settings.getMeterList()) {
+            if (meter.getAmbient1() != null) {
+                sinks.add(new AmbientSink(null, newAmbient(http, meter.getAmbient1())), meter.getName(),
+                        EnumSet.of(Kind.MINUTE), 10, TimeUnit.MINUTES.toMillis(2), 7 * 1440);
+            }
+            if (meter.getAmbient2() != null) {
+                sinks.add(new AmbientSink(null, newAmbient(http, meter.getAmbient2())), meter.getName(),
+                        EnumSet.of(Kind.DAY), 10, TimeUnit.MINUTES.toMillis(2), 7 * 1440);
+            }
+        }
 
-                            // LINE通知
-                            var message = String.format("%sの消費電力 %.0f Wh", DATE_FORMATTER.format(yesterday),
-                                    yesterdayPower);
-                            httpConn.connect();
-                            try (var out = new OutputStreamWriter(httpConn.getOutputStream())) {
-                                out.write("message=" + URLEncoder.encode(message, StandardCharsets.UTF_8));
-                            }
-                            var resCode = httpConn.getResponseCode();
-                            if (resCode != 200) {
-                                log.warn("LINE通知に失敗しました。statusCode={}", resCode);
-                            }
-                        }
+        if (settings.getSinks() != null) {
+            for (var sink : settings.getSinks()) {
+                EnumSet<Kind> kinds = null;
+                if (sink.getKinds() != null) {
+                    kinds = EnumSet.noneOf(Kind.class);
+                    for (var kind : sink.getKinds()) {
+                        kinds.add(Kind.of(kind));
                     }
-
-                } catch (Exception e) {
-                    log.warn("Ambientへのデータ送信に失敗しました。", e);
-                }
-            };
-            threadPool.scheduleWithFixedDelay(sendAmbientTask, 1, 1, TimeUnit.MINUTES);
-
-            // プログラムが止められるまで待つ : SIGINT(Ctrl + C)
-            var wait = new Object();
-            synchronized (wait) {
-                try {
-                    wait.wait();
-                } catch (InterruptedException ignore) {
-                    // NOP
                 }
+                sinks.add(Sink.of(sink, http), sink.getMeter(), kinds, sink.getBatchSize(),
+                        TimeUnit.SECONDS.toMillis(sink.getMaxDelay()), sink.getCapacity());
             }
-
-            threadPool.shutdown();
-            threadPool.awaitTermination(15, TimeUnit.SECONDS);
         }
     }
+
+    /**
+     * Ambient生成
+     * 
+     * @param http     HTTPクライアント
+     * @param settings Ambientの設定
+     * @return Ambient
+     */
+    private static Ambient newAmbient(HttpClient http, Settings.Ambient settings) {
+        return new Ambient(http, Ambient.DEFAULT_BASE_URL, settings.getChannelId(), settings.getReadKey(),
+                settings.getWriteKey());
+    }
 }
@@ -4,14 +4,16 @@ import java.io.File;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.heterodain.smartmeter.device.SmartMeter;
-import com.heterodain.smartmeter.model.HistoryPower;
 import com.heterodain.smartmeter.model.Settings;
+import com.heterodain.smartmeter.service.HistoryBackfill;
 
 import lombok.var;
 import lombok.extern.slf4j.Slf4j;
 
 /**
  * 過去45日電力情報取得
+ * 
+ * 取得済みの日はbackfill.jsonに保存され、再実行時は未取得の日だけ取得する。結果はbackfill.csvに出力する。
  */
 @Slf4j
 public class App2 {
@@ -27,12 +29,11 @@ public class App2 {
             smartMeter.init();
             smartMeter.connect();
 
-            for (var beforeDays = 0; beforeDays < 45; beforeDays++) {
-                HistoryPower history = smartMeter.getBeforeDayPower(beforeDays);
-                long powerOfDay = history.getAccumu30Powers().get(0);
-                log.info("{}: {}Wh", history.getTime(), powerOfDay);
-                Thread.sleep(5000);
-            }
+            var backfill = new HistoryBackfill(smartMeter, new File("backfill.json"));
+            backfill.run(45);
+            backfill.writeCsv(new File("backfill.csv"));
+
+            log.info("電力履歴を出力しました。{}日分", backfill.size());
         }
     }
 }
@@ -0,0 +1,498 @@
+package com.heterodain.smartmeter;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.heterodain.smartmeter.aggregate.PowerWindow;
+import com.heterodain.smartmeter.aggregate.Resolution;
+import com.heterodain.smartmeter.aggregate.RollupEngine;
+import com.heterodain.smartmeter.device.SmartMeter;
+import com.heterodain.smartmeter.metrics.MetricRegistry;
+import com.heterodain.smartmeter.model.CurrentPower.Accumu30Power;
+import com.heterodain.smartmeter.model.Measurement;
+import com.heterodain.smartmeter.model.Settings;
+import com.heterodain.smartmeter.model.WiSunLink;
+import com.heterodain.smartmeter.service.Forwarder;
+import com.heterodain.smartmeter.service.PollInterval;
+import com.heterodain.smartmeter.service.Threads;
+import com.heterodain.smartmeter.sink.SinkPipeline;
+import com.heterodain.smartmeter.store.LinkStateFile;
+import com.heterodain.smartmeter.store.PowerStore;
+
+import lombok.var;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * スマートメーター1台分の監視
+ *
+ * スマートメーターごとに専用のスレッドで接続・読込・送信を行うため、接続に時間がかかったり再接続中のスマートメーターがあっても、
+ * 他のスマートメーターの処理は遅れない。送信先とLINE通知は全てのスマートメーターで共有する。
+ * 仮想スレッドモードでは、接続・読込・送信の処理はそれぞれ仮想スレッドで動く。
+ */
+@Slf4j
+public class MeterPoller implements Closeable {
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy年MM月dd日");
+
+    // 接続に失敗した時の再試行間隔(秒)
+    private static final long RETRY_INTERVAL = 60;
+    // 電力情報の保存先の手入れの間隔(分)
+    private static final long STORE_MAINTENANCE_INTERVAL = 60;
+    // 昨日の電力使用量を取得する回数
+    private static final int YESTERDAY_ATTEMPTS = 3;
+    // 昨日の電力使用量を取り直すまでの間隔(分)
+    private static final long YESTERDAY_RETRY_INTERVAL = 10;
+
+    // 名前 (1台だけの場合はnull)
+    private final String name;
+    // スマートメーターの設定
+    private final Settings.SmartMeter settings;
+    // 計測値の送信先
+    private final SinkPipeline sinks;
+    // LINE通知の送信キュー
+    private final Forwarder lineForwarder;
+    // 接続パラメータの保存先
+    private final LinkStateFile linkStates;
+
+    // 電力情報の保存先
+    private final PowerStore store;
+    // 電力情報を保存しておく日数 (0の場合は削除しない)
+    private final int retentionDays;
+    // 1分間の瞬時電力 (書き込みは受信スレッド、読み出しは送信タスク)
+    private final PowerWindow window = new PowerWindow(64);
+    // 1分/30分/日/月の集計
+    private final RollupEngine rollups = new RollupEngine();
+    // 1分間の平均電力 (送信タスク専用)
+    private final PowerWindow.Average average = new PowerWindow.Average();
+    // このスマートメーター専用のスケジューラ (タイミングを計るだけで、処理はworkersで動かす)
+    private final ScheduledExecutorService scheduler;
+    // このスマートメーター専用の、ブロックする処理を動かすスレッドプール
+    private final ExecutorService workers;
+    // 読込タスクが動いているか
+    private final AtomicBoolean reading = new AtomicBoolean();
+    // 送信タスクが動いているか
+    private final AtomicBoolean sending = new AtomicBoolean();
+    // 電力情報の書き込み待ち (受信順に書き込む)
+    private final Queue<Runnable> storeQueue = new ConcurrentLinkedQueue<>();
+    // 電力情報の書き込みが動いているか
+    private final AtomicBoolean storing = new AtomicBoolean();
+    // 読込間隔の調整
+    private final PollInterval pollInterval = new PollInterval();
+    // 読み込めた電力情報の数
+    private final MetricRegistry.Counter samples;
+    // 読み込めなかった電力情報の数
+    private final MetricRegistry.Counter sampleFailures;
+    // 保存できなかった電力情報の数
+    private final MetricRegistry.Counter storeFailures;
+
+    // 接続済みのスマートメーター
+    private volatile SmartMeter smartMeter;
+    // 最後に分かった接続パラメータ (接続時にスキャンを省略する)
+    private volatile WiSunLink link;
+
+    /**
+     * コンストラクタ
+     *
+     * @param meter         スマートメーターごとの設定
+     * @param sinks         計測値の送信先
+     * @param lineForwarder LINE通知の送信キュー
+     * @param linkStates    接続パラメータの保存先
+     * @param dataDir       電力情報の保存先ディレクトリ
+     * @param retentionDays 電力情報を保存しておく日数 (0の場合は削除しない)
+     * @throws IOException
+     */
+    public MeterPoller(Settings.Meter meter, SinkPipeline sinks, Forwarder lineForwarder, LinkStateFile linkStates,
+            File dataDir, int retentionDays) throws IOException {
+        this.name = meter.getName();
+        this.settings = meter.getSmartMeter();
+        this.sinks = sinks;
+        this.lineForwarder = lineForwarder;
+        this.linkStates = linkStates;
+        this.store = new PowerStore(dataDir);
+        this.retentionDays = retentionDays;
+        this.link = linkStates.get(stateKey(), settings.getBrouteId());
+
+        var threadName = name == null ? "meter" : "meter-" + name;
+        scheduler = Executors.newSingleThreadScheduledExecutor(Threads.platformFactory(threadName + "-scheduler"));
+        workers = Threads.newWorkers(threadName);
+
+        var metrics = MetricRegistry.getDefault();
+        samples = metrics.counter("smartmeter_samples_total", "スマートメーターから電力情報を読み込んだ回数", "meter", stateKey(),
+                "result", "ok");
+        sampleFailures = metrics.counter("smartmeter_samples_total", "スマートメーターから電力情報を読み込んだ回数", "meter",
+                stateKey(), "result", "failed");
+        storeFailures = metrics.counter("smartmeter_store_failures_total", "電力情報の保存に失敗した回数", "meter",
+                stateKey());
+        metrics.gauge("smartmeter_poll_interval_seconds", "電力情報の読込間隔(秒)", () -> pollInterval.getInterval() / 1000.0,
+                "meter", stateKey());
+
+        rollups.addListener(r -> {
+            if (r.getResolution() == Resolution.DAY || r.getResolution() == Resolution.MONTH) {
+                log.info("{}{} {}: 平均{}W 最大{}W 電力量{}Wh", prefix(), r.getResolution(), r.getStartTime(),
+                        Math.round(r.getPowerAverage()), r.getPowerMax(), Math.round(r.getEnergy()));
+            }
+        });
+    }
+
+    /**
+     * 監視開始 (接続は専用のスレッドで行い、失敗したら再試行する)
+     *
+     * @throws IOException
+     */
+    public void start() throws IOException {
+        workers.execute(this::connect);
+        // 1時間毎に電力情報をディスクに書き出し、古いものを削除
+        scheduler.scheduleWithFixedDelay(() -> submit(this::maintainStore, null), STORE_MAINTENANCE_INTERVAL,
+                STORE_MAINTENANCE_INTERVAL, TimeUnit.MINUTES);
+    }
+
+    /**
+     * 監視終了 (動いている処理には割り込みをかけて終わるのを待つ)
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        scheduler.shutdownNow();
+        workers.shutdownNow();
+        try {
+            if (!workers.awaitTermination(15, TimeUnit.SECONDS)) {
+                log.warn("{}終了しない処理があります。", prefix());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            if (smartMeter != null) {
+                smartMeter.close();
+            }
+        } finally {
+            store.close();
+        }
+    }
+
+    /**
+     * スマートメーターに接続して、読込と送信のタスクを開始
+     */
+    private void connect() {
+        var sm = new SmartMeter(settings.getComPort(), settings.getBrouteId(), settings.getBroutePassword());
+        sm.setName(stateKey());
+        sm.setLink(link);
+        try {
+            sm.init();
+            sm.connect();
+        } catch (Exception e) {
+            saveLink(sm.getLink());
+            log.warn("{}スマートメーターに接続できませんでした。{}秒後に再試行します。", prefix(), RETRY_INTERVAL, e);
+            try {
+                sm.close();
+            } catch (Exception ignore) {
+                // NOP
+            }
+            if (e instanceof InterruptedException) {
+                return;
+            }
+            if (!scheduler.isShutdown()) {
+                scheduler.schedule(() -> submit(this::connect, null), RETRY_INTERVAL, TimeUnit.SECONDS);
+            }
+            return;
+        }
+        smartMeter = sm;
+        saveLink(sm.getLink());
+
+        // スマートメーターから電力情報読込 (応答は受信スレッドで受け取り、次の読込を予約する)
+        scheduleRead(0);
+        // 1分毎に送信先にデータ送信
+        scheduler.scheduleWithFixedDelay(() -> submit(this::sendMeasurements, sending), 1, 1, TimeUnit.MINUTES);
+    }
+
+    /**
+     * 処理をworkersで動かす (前回の処理が終わっていなければ今回は動かさない)
+     *
+     * @param task    処理
+     * @param running 処理が動いているか (重複を許す場合はnull)
+     */
+    private void submit(Runnable task, AtomicBoolean running) {
+        if (running != null && !running.compareAndSet(false, true)) {
+            log.debug("{}前回の処理が終わっていないため、今回は動かしません。", prefix());
+            MetricRegistry.getDefault().counter("smartmeter_polls_skipped_total", "前回の処理が終わっていないため動かさなかった回数",
+                    "meter", stateKey(), "task", running == reading ? "read" : "send").inc();
+            return;
+        }
+        try {
+            workers.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    if (running != null) {
+                        running.set(false);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // 終了処理中
+            if (running != null) {
+                running.set(false);
+            }
+        }
+    }
+
+    /**
+     * 次の読込を予約
+     *
+     * @param delay 待ち時間(ミリ秒)
+     */
+    private void scheduleRead(long delay) {
+        try {
+            scheduler.schedule(() -> submit(this::readSmartMeter, reading), delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // 終了処理中
+        }
+    }
+
+    /**
+     * スマートメーターから電力情報読込 (完了したら、応答時間と電力の変化に応じて次の読込を予約する)
+     */
+    private void readSmartMeter() {
+        var start = System.nanoTime();
+        try {
+            smartMeter.getCurrentPowerAsync().whenComplete((power, e) -> {
+                if (e != null) {
+                    sampleFailures.inc();
+                    log.warn("{}スマートメーターへのアクセスに失敗しました。", prefix(), e);
+                    scheduleRead(pollInterval.onFailure());
+                    return;
+                }
+                if (power.getInstantPower() == null || power.getInstantRAmp() == null
+                        || power.getInstantTAmp() == null) {
+                    // E7、E8が返らなかった (PDCが合わずに捨てた場合も含む) サンプルは集計も保存もしない
+                    sampleFailures.inc();
+                    log.warn("{}瞬時電力または瞬時電流が返らなかったため、このサンプルは使いません。{}", prefix(), power);
+                    var accumu30 = power.getAccumu30();
+                    if (accumu30 != null) {
+                        // 30分積算値は次の30分まで取り直さないため、集計には入れておく
+                        rollups.addMeterEnergy(accumu30.getTime().toEpochSecond(), accumu30.getPower());
+                    }
+                    scheduleRead(pollInterval.onFailure());
+                    return;
+                }
+                samples.inc();
+                var rtt = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                var next = pollInterval.onSuccess(rtt, power.getInstantPower(),
+                        smartMeter.getLinkManager().isRestricted());
+                log.debug("{}次の読込まで{}ミリ秒 (応答時間{}ミリ秒)", prefix(), next, rtt);
+                scheduleRead(next);
+
+                var now = System.currentTimeMillis() / 1000;
+                window.add(now, power);
+                rollups.add(now, power);
+                // ディスクへの書き込みは受信スレッドで行わない
+                storeQueue.add(() -> {
+                    try {
+                        store.append(now, power);
+                    } catch (Exception ex) {
+                        storeFailures.inc();
+                        log.warn("{}電力情報の保存に失敗しました。", prefix(), ex);
+                    }
+                });
+                drainStoreQueue();
+            });
+
+        } catch (Exception e) {
+            sampleFailures.inc();
+            log.warn("{}スマートメーターへのアクセスに失敗しました。", prefix(), e);
+            scheduleRead(pollInterval.onFailure());
+        }
+    }
+
+    /**
+     * 電力情報の書き込みをworkersで順番に動かす (動いていれば、動いている処理が続けて書き込む)
+     */
+    private void drainStoreQueue() {
+        if (!storing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            workers.execute(() -> {
+                try {
+                    Runnable task;
+                    while ((task = storeQueue.poll()) != null) {
+                        task.run();
+                    }
+                } finally {
+                    storing.set(false);
+                }
+                // 終わる間際に追加された分
+                if (!storeQueue.isEmpty()) {
+                    drainStoreQueue();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // 終了処理中
+            storing.set(false);
+        }
+    }
+
+    /**
+     * 電力情報の保存先の手入れ (ディスクへの書き出しと、保存日数を過ぎたセグメントの削除)
+     */
+    private void maintainStore() {
+        try {
+            store.flush();
+            if (retentionDays > 0) {
+                var deleted = store.deleteBefore(System.currentTimeMillis() / 1000 - retentionDays * 86400L);
+                if (deleted > 0) {
+                    log.info("{}保存日数を過ぎた電力情報のセグメントを{}個削除しました。", prefix(), deleted);
+                }
+            }
+        } catch (Exception e) {
+            log.warn("{}電力情報の保存先の手入れに失敗しました。", prefix(), e);
+        }
+    }
+
+    /**
+     * 送信先にデータ送信
+     */
+    private void sendMeasurements() {
+        // バックグラウンドの再接続で接続パラメータが変わっていれば保存
+        saveLink(smartMeter.getLink());
+
+        // R相、T相の1分間平均電力(W)算出
+        if (!window.drain(average)) {
+            return;
+        }
+
+        try {
+            Double rw = average.getRWatt();
+            Double tw = average.getTWatt();
+
+            // 30分積算電力
+            final var accumu30 = window.takeAccumu30();
+            if (accumu30 == null) {
+                // 瞬時電力送信
+                sinks.publish(new Measurement(name, Measurement.Kind.MINUTE, ZonedDateTime.now(),
+                        new Double[] { rw, tw, null }));
+
+            } else {
+                // 瞬時電力と30分積算電力送信
+                sinks.publish(new Measurement(name, Measurement.Kind.MINUTE, ZonedDateTime.now(),
+                        new Double[] { rw, tw, (double) accumu30.getPower() }));
+
+                // 0時0分の30分積算電力を受信したら、スマートメーターから昨日の電力使用量を取得して送信 & LINE通知
+                if (accumu30.getTime().getHour() == 0 && accumu30.getTime().getMinute() == 0) {
+                    sendYesterdayPower(accumu30, 1);
+                }
+            }
+
+        } catch (Exception e) {
+            log.warn("{}データ送信に失敗しました。", prefix(), e);
+        }
+    }
+
+    /**
+     * 昨日の電力使用量を送信 & LINE通知
+     *
+     * 昨日の0時0分の積算電力が取れなかった場合(未計測のコマや取得の失敗)は、時間を置いて取り直す。
+     *
+     * @param accumu30 今日の0時0分の30分積算電力
+     * @param attempt  何回目の取得か
+     */
+    private void sendYesterdayPower(Accumu30Power accumu30, int attempt) {
+        var yesterday = accumu30.getTime().minusDays(1);
+        smartMeter.getBeforeDayPowerAsync(1).thenAcceptAsync(yesterdayHistory -> {
+            var powers = yesterdayHistory.getAccumu30Powers();
+            var start = powers.isEmpty() ? null : powers.get(0);
+            if (start == null) {
+                retryYesterdayPower(accumu30, attempt, "昨日の0時0分の積算電力が未計測です。", null);
+                return;
+            }
+
+            long yesterdayPower = smartMeter.getEnergyScale().differenceWh(start, accumu30.getTotalPower());
+            try {
+                // 日計値送信
+                sinks.publish(new Measurement(name, Measurement.Kind.DAY, yesterday,
+                        new Double[] { (double) yesterdayPower }));
+
+                // LINE通知
+                var message = String.format("%s%sの消費電力 %d Wh", prefix(), DATE_FORMATTER.format(yesterday),
+                        yesterdayPower);
+                lineForwarder.offer(message.getBytes(StandardCharsets.UTF_8));
+
+            } catch (Exception e) {
+                log.warn("{}日計値の送信に失敗しました。", prefix(), e);
+            }
+        }, workers).exceptionally(e -> {
+            retryYesterdayPower(accumu30, attempt, "スマートメーターへのアクセスに失敗しました。", e);
+            return null;
+        });
+    }
+
+    /**
+     * 昨日の電力使用量の取得を予約 (回数の上限に達した場合は日計値を送信しない)
+     *
+     * @param accumu30 今日の0時0分の30分積算電力
+     * @param attempt  失敗した取得が何回目か
+     * @param reason   失敗の理由
+     * @param error    エラー (無い場合はnull)
+     */
+    private void retryYesterdayPower(Accumu30Power accumu30, int attempt, String reason, Throwable error) {
+        var date = DATE_FORMATTER.format(accumu30.getTime().minusDays(1));
+        if (attempt >= YESTERDAY_ATTEMPTS) {
+            log.warn("{}{} {}の日計値は送信しません。", prefix(), reason, date, error);
+            return;
+        }
+        log.warn("{}{} {}分後に{}の日計値を取り直します。", prefix(), reason, YESTERDAY_RETRY_INTERVAL, date, error);
+        try {
+            scheduler.schedule(() -> submit(() -> sendYesterdayPower(accumu30, attempt + 1), null),
+                    YESTERDAY_RETRY_INTERVAL, TimeUnit.MINUTES);
+        } catch (RejectedExecutionException e) {
+            // 終了処理中
+        }
+    }
+
+    /**
+     * 接続パラメータを覚えて保存 (変わっていない場合は何もしない)
+     *
+     * @param current 現在の接続パラメータ (無い場合はnull)
+     */
+    private void saveLink(WiSunLink current) {
+        if (current == null) {
+            return;
+        }
+        link = current;
+        try {
+            linkStates.put(stateKey(), settings.getBrouteId(), current);
+        } catch (Exception e) {
+            log.warn("{}接続パラメータの保存に失敗しました。", prefix(), e);
+        }
+    }
+
+    /**
+     * 接続パラメータの保存先のキー
+     *
+     * @return キー
+     */
+    private String stateKey() {
+        return name == null ? "default" : name;
+    }
+
+    /**
+     * ログとLINE通知の先頭に付ける名前
+     *
+     * @return 名前 (1台だけの場合は空文字)
+     */
+    private String prefix() {
+        return name == null ? "" : "[" + name + "] ";
+    }
+}
@@ -0,0 +1,217 @@
+package com.heterodain.smartmeter.aggregate;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.heterodain.smartmeter.model.CurrentPower;
+import com.heterodain.smartmeter.model.CurrentPower.Accumu30Power;
+
+import lombok.Getter;
+import lombok.var;
+
+/**
+ * 瞬時電力の集計ウィンドウ
+ *
+ * 書き込み1スレッド、読み出し1スレッド専用のロックフリーなリングバッファ。
+ * 項目ごとのlong配列に保持し、R相/T相の按分電力は累積和で持つため、平均の算出はサンプル数によらず一定時間で済む。
+ * 読み出しが追いつかない場合は古いサンプルから上書きするが、平均は累積和の差で求めるため影響を受けない。
+ * 各サンプルは前のサンプルからの経過秒数で重み付けするため、読込間隔が変わっても平均は時間平均になる。
+ */
+public class PowerWindow {
+    // 1サンプルの重みの上限(秒) ※読込が途切れた後の最初のサンプルが平均を支配しないようにする
+    static final long MAX_WEIGHT = 60;
+
+    // バッファサイズ-1 (サイズは2のべき乗)
+    private final int mask;
+
+    // 時刻(エポック秒)
+    private final long[] times;
+    // 瞬時電力(W)
+    private final long[] watts;
+    // R相電流(0.1A)
+    private final long[] rAmps;
+    // T相電流(0.1A)
+    private final long[] tAmps;
+    // R相の按分電力の累積和(mW)
+    private final long[] rSums;
+    // T相の按分電力の累積和(mW)
+    private final long[] tSums;
+    // 重みの累積和(秒)
+    private final long[] weightSums;
+
+    // 書き込み済みのサンプル数
+    private final AtomicLong written = new AtomicLong();
+    // 未取得の30分積算電力
+    private final AtomicReference<Accumu30Power> accumu30 = new AtomicReference<>();
+
+    // R相の按分電力の累積(mW) ※書き込みスレッド専用
+    private long rTotal;
+    // T相の按分電力の累積(mW) ※書き込みスレッド専用
+    private long tTotal;
+    // 重みの累積(秒) ※書き込みスレッド専用
+    private long weightTotal;
+    // 前のサンプルの時刻(エポック秒) ※書き込みスレッド専用、未追加の場合は-1
+    private long lastTime = -1;
+
+    // 読み出し済みのサンプル数 ※読み出しスレッド専用
+    private long consumed;
+    // 読み出し済みのR相の按分電力の累積(mW) ※読み出しスレッド専用
+    private long rConsumed;
+    // 読み出し済みのT相の按分電力の累積(mW) ※読み出しスレッド専用
+    private long tConsumed;
+    // 読み出し済みの重みの累積(秒) ※読み出しスレッド専用
+    private long weightConsumed;
+
+    /**
+     * 平均電力
+     */
+    @Getter
+    public static class Average {
+        // サンプル数
+        private long count;
+        // R相の平均電力(W)
+        private double rWatt;
+        // T相の平均電力(W)
+        private double tWatt;
+    }
+
+    /**
+     * コンストラクタ
+     *
+     * @param capacity 保持するサンプル数(2のべき乗に切り上げる)
+     */
+    public PowerWindow(int capacity) {
+        var size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        mask = size - 1;
+        times = new long[size];
+        watts = new long[size];
+        rAmps = new long[size];
+        tAmps = new long[size];
+        rSums = new long[size];
+        tSums = new long[size];
+        weightSums = new long[size];
+    }
+
+    /**
+     * サンプル追加 (書き込みスレッドから呼ぶ)
+     *
+     * @param epochSecond 時刻(エポック秒)
+     * @param power       電力情報
+     */
+    public void add(long epochSecond, CurrentPower power) {
+        add(epochSecond, power.getInstantPower(), power.getInstantRAmp(), power.getInstantTAmp());
+        if (power.getAccumu30() != null) {
+            accumu30.set(power.getAccumu30());
+        }
+    }
+
+    /**
+     * サンプル追加 (書き込みスレッドから呼ぶ)
+     *
+     * @param epochSecond 時刻(エポック秒)
+     * @param watt        瞬時電力(W)
+     * @param rAmp        R相電流(0.1A)
+     * @param tAmp        T相電流(0.1A)
+     */
+    public void add(long epochSecond, long watt, long rAmp, long tAmp) {
+        // 前のサンプルからの経過秒数を重みにする (最初のサンプルと時刻が戻った場合は1)
+        var weight = lastTime < 0 ? 1 : Math.max(1, Math.min(MAX_WEIGHT, epochSecond - lastTime));
+        lastTime = epochSecond;
+        weightTotal += weight;
+
+        // 瞬時電力を電流の比率でR相とT相に按分
+        var amp = rAmp + tAmp;
+        if (amp != 0) {
+            rTotal += watt * rAmp * 1000 / amp * weight;
+            tTotal += watt * tAmp * 1000 / amp * weight;
+        }
+
+        var seq = written.get();
+        var slot = (int) seq & mask;
+        times[slot] = epochSecond;
+        watts[slot] = watt;
+        rAmps[slot] = rAmp;
+        tAmps[slot] = tAmp;
+        rSums[slot] = rTotal;
+        tSums[slot] = tTotal;
+        weightSums[slot] = weightTotal;
+        written.lazySet(seq + 1);
+    }
+
+    /**
+     * 前回の読み出し以降の平均電力を取得 (読み出しスレッドから呼ぶ)
+     *
+     * @param result 結果の格納先
+     * @return 新しいサンプルがあった場合はtrue
+     */
+    public boolean drain(Average result) {
+        while (true) {
+            var seq = written.get();
+            if (seq == consumed) {
+                return false;
+            }
+
+            var slot = (int) (seq - 1) & mask;
+            var rSum = rSums[slot];
+            var tSum = tSums[slot];
+            var weightSum = weightSums[slot];
+            if (written.get() - seq >= mask) {
+                // 読んでいる間に上書きされたので読み直す
+                continue;
+            }
+
+            var weight = weightSum - weightConsumed;
+            result.count = seq - consumed;
+            result.rWatt = (rSum - rConsumed) / 1000D / weight;
+            result.tWatt = (tSum - tConsumed) / 1000D / weight;
+
+            consumed = seq;
+            rConsumed = rSum;
+            tConsumed = tSum;
+            weightConsumed = weightSum;
+            return true;
+        }
+    }
+
+    /**
+     * 未取得の30分積算電力を取り出す
+     *
+     * @return 30分積算電力 (無い場合はnull)
+     */
+    public Accumu30Power takeAccumu30() {
+        return accumu30.getAndSet(null);
+    }
+
+    /**
+     * 直近のサンプルを新しい順に読み込む (読み出しスレッドから呼ぶ)
+     *
+     * 読み込み中に書き込まれた場合、最も古いサンプルは新しいサンプルに置き換わっている可能性がある。
+     *
+     * @param max     最大件数
+     * @param visitor サンプルを受け取る関数
+     * @return 読み込んだ件数
+     */
+    public int recent(int max, SampleVisitor visitor) {
+        var seq = written.get();
+        var n = (int) Math.min(Math.min(max, mask), seq);
+        for (var i = 0; i < n; i++) {
+            var slot = (int) (seq - 1 - i) & mask;
+            visitor.visit(times[slot], watts[slot], rAmps[slot], tAmps[slot]);
+        }
+        return n;
+    }
+
+    /**
+     * サンプルを受け取る関数
+     */
+    @FunctionalInterface
+    public interface SampleVisitor {
+        /**
+         * @param epochSecond 時刻(エポック秒)
+         * @param watt        瞬時電力(W)
+         * @param rAmp        R相電流(0.1A)
+         * @param tAmp        T相電流(0.1A)
+         */
+        void visit(long epochSecond, long watt, long rAmp, long tAmp);
+    }
+}
@@ -0,0 +1,63 @@
+package com.heterodain.smartmeter.aggregate;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+
+import lombok.var;
+
+/**
+ * 集計の時間単位
+ */
+public enum Resolution {
+    /** 1分 */
+    MINUTE,
+    /** 30分 */
+    HALF_HOUR,
+    /** 1日 */
+    DAY,
+    /** 1ヶ月 */
+    MONTH;
+
+    private static final ZoneId JST = ZoneId.of("Asia/Tokyo");
+
+    /**
+     * 時刻を含む集計期間の開始時刻
+     *
+     * @param epochSecond 時刻(エポック秒)
+     * @return 開始時刻(エポック秒)
+     */
+    public long floor(long epochSecond) {
+        switch (this) {
+        case MINUTE:
+            return Math.floorDiv(epochSecond, 60) * 60;
+        case HALF_HOUR:
+            // JSTは+9時間なので30分単位の区切りはUTCと同じ
+            return Math.floorDiv(epochSecond, 1800) * 1800;
+        case DAY:
+            return Instant.ofEpochSecond(epochSecond).atZone(JST).truncatedTo(ChronoUnit.DAYS).toEpochSecond();
+        default:
+            var time = Instant.ofEpochSecond(epochSecond).atZone(JST).truncatedTo(ChronoUnit.DAYS);
+            return time.withDayOfMonth(1).toEpochSecond();
+        }
+    }
+
+    /**
+     * 次の集計期間の開始時刻
+     *
+     * @param start 集計期間の開始時刻(エポック秒)
+     * @return 次の集計期間の開始時刻(エポック秒)
+     */
+    public long next(long start) {
+        switch (this) {
+        case MINUTE:
+            return start + 60;
+        case HALF_HOUR:
+            return start + 1800;
+        case DAY:
+            return Instant.ofEpochSecond(start).atZone(JST).plusDays(1).toEpochSecond();
+        default:
+            return Instant.ofEpochSecond(start).atZone(JST).plusMonths(1).toEpochSecond();
+        }
+    }
+}
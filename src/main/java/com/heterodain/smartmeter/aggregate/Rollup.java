@@ -0,0 +1,169 @@
+package com.heterodain.smartmeter.aggregate;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * 集計期間ごとの電力の集計値
+ *
+ * 平均は各サンプルを前のサンプルからの経過秒数で重み付けした時間平均とし、読込間隔が変わっても偏らないようにする。
+ */
+@Getter
+@ToString
+public class Rollup {
+    private static final ZoneId JST = ZoneId.of("Asia/Tokyo");
+
+    // 時間単位
+    private final Resolution resolution;
+    // 開始時刻(エポック秒)
+    private final long start;
+    // 終了時刻(エポック秒、この時刻を含まない)
+    private final long end;
+
+    // サンプル数
+    private long count;
+    // 重みの合計(秒)
+    private long weightSum;
+
+    // 瞬時電力の重み付き合計/最小/最大(W)
+    private long powerSum;
+    private long powerMin = Long.MAX_VALUE;
+    private long powerMax = Long.MIN_VALUE;
+    // R相の按分電力の重み付き合計/最小/最大(W)
+    private double rPowerSum;
+    private double rPowerMin = Double.MAX_VALUE;
+    private double rPowerMax = -Double.MAX_VALUE;
+    // T相の按分電力の重み付き合計/最小/最大(W)
+    private double tPowerSum;
+    private double tPowerMin = Double.MAX_VALUE;
+    private double tPowerMax = -Double.MAX_VALUE;
+
+    // 瞬時電力から積算した電力量(Ws)
+    private long energyWs;
+    // スマートメーターの30分積算電力量の増分の合計(Wh) ※期間内の値が無い場合はnull
+    private Long meterEnergy;
+
+    Rollup(Resolution resolution, long start) {
+        this.resolution = resolution;
+        this.start = start;
+        this.end = resolution.next(start);
+    }
+
+    private Rollup(Rollup src) {
+        this(src.resolution, src.start);
+        count = src.count;
+        weightSum = src.weightSum;
+        powerSum = src.powerSum;
+        powerMin = src.powerMin;
+        powerMax = src.powerMax;
+        rPowerSum = src.rPowerSum;
+        rPowerMin = src.rPowerMin;
+        rPowerMax = src.rPowerMax;
+        tPowerSum = src.tPowerSum;
+        tPowerMin = src.tPowerMin;
+        tPowerMax = src.tPowerMax;
+        energyWs = src.energyWs;
+        meterEnergy = src.meterEnergy;
+    }
+
+    /**
+     * サンプルを加算
+     *
+     * @param watt    瞬時電力(W)
+     * @param rWatt   R相の按分電力(W)
+     * @param tWatt   T相の按分電力(W)
+     * @param seconds 前のサンプルからの経過秒数 (電力量の積算に使う)
+     * @param weight  平均の重み(秒)
+     */
+    void add(long watt, double rWatt, double tWatt, long seconds, long weight) {
+        count++;
+        weightSum += weight;
+        powerSum += watt * weight;
+        powerMin = Math.min(powerMin, watt);
+        powerMax = Math.max(powerMax, watt);
+        rPowerSum += rWatt * weight;
+        rPowerMin = Math.min(rPowerMin, rWatt);
+        rPowerMax = Math.max(rPowerMax, rWatt);
+        tPowerSum += tWatt * weight;
+        tPowerMin = Math.min(tPowerMin, tWatt);
+        tPowerMax = Math.max(tPowerMax, tWatt);
+        energyWs += watt * seconds;
+    }
+
+    /**
+     * スマートメーターの30分積算電力量の増分を加算
+     *
+     * @param wh 電力量(Wh)
+     */
+    void addMeterEnergy(long wh) {
+        meterEnergy = meterEnergy == null ? wh : meterEnergy + wh;
+    }
+
+    /**
+     * 複製
+     *
+     * @return 複製した集計値
+     */
+    Rollup copy() {
+        return new Rollup(this);
+    }
+
+    /**
+     * 時刻が集計期間に含まれるか
+     *
+     * @param epochSecond 時刻(エポック秒)
+     * @return 含まれる場合はtrue
+     */
+    public boolean contains(long epochSecond) {
+        return start <= epochSecond && epochSecond < end;
+    }
+
+    /**
+     * 開始時刻
+     *
+     * @return 開始時刻(JST)
+     */
+    public ZonedDateTime getStartTime() {
+        return Instant.ofEpochSecond(start).atZone(JST);
+    }
+
+    /**
+     * 瞬時電力の時間平均(W)
+     *
+     * @return 平均 (サンプルが無い場合は0)
+     */
+    public double getPowerAverage() {
+        return weightSum == 0 ? 0 : (double) powerSum / weightSum;
+    }
+
+    /**
+     * R相の按分電力の時間平均(W)
+     *
+     * @return 平均 (サンプルが無い場合は0)
+     */
+    public double getRPowerAverage() {
+        return weightSum == 0 ? 0 : rPowerSum / weightSum;
+    }
+
+    /**
+     * T相の按分電力の時間平均(W)
+     *
+     * @return 平均 (サンプルが無い場合は0)
+     */
+    public double getTPowerAverage() {
+        return weightSum == 0 ? 0 : tPowerSum / weightSum;
+    }
+
+    /**
+     * 瞬時電力から積算した電力量(Wh)
+     *
+     * @return 電力量(Wh)
+     */
+    public double getEnergy() {
+        return energyWs / 3600D;
+    }
+}
@@ -0,0 +1,186 @@
+package com.heterodain.smartmeter.aggregate;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+import com.heterodain.smartmeter.model.CurrentPower;
+
+import lombok.var;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 1分/30分/1日/1ヶ月単位の電力の逐次集計
+ *
+ * サンプルを受け取るたびに全ての時間単位の集計値を更新し、集計期間が終わったら履歴に移してリスナーに通知する。
+ * 参照側は集計済みの値を読むだけで、生のサンプルを走査し直す必要がない。
+ */
+@Slf4j
+public class RollupEngine {
+    // 経過時間を電力量の積算に使う上限(秒) ※これ以上間隔が空いた場合は積算しない
+    private static final long MAX_GAP = 300;
+
+    // 時間単位ごとの保持する履歴数
+    private final Map<Resolution, Integer> historySizes = new EnumMap<>(Resolution.class);
+    // 集計中の値
+    private final Map<Resolution, Rollup> currents = new EnumMap<>(Resolution.class);
+    // 集計済みの値 (古い順)
+    private final Map<Resolution, ArrayDeque<Rollup>> histories = new EnumMap<>(Resolution.class);
+    // 集計期間が終わった時の通知先
+    private final List<Consumer<Rollup>> listeners = new CopyOnWriteArrayList<>();
+
+    // 前のサンプルの時刻(エポック秒)
+    private long lastTime = Long.MIN_VALUE;
+
+    /**
+     * コンストラクタ
+     *
+     * 履歴は 1分値60個、30分値48個、日計値31個、月計値12個 を保持する。
+     */
+    public RollupEngine() {
+        historySizes.put(Resolution.MINUTE, 60);
+        historySizes.put(Resolution.HALF_HOUR, 48);
+        historySizes.put(Resolution.DAY, 31);
+        historySizes.put(Resolution.MONTH, 12);
+        for (var resolution : Resolution.values()) {
+            histories.put(resolution, new ArrayDeque<>());
+        }
+    }
+
+    /**
+     * 集計期間が終わった時の通知先を追加 (サンプルを追加したスレッドで呼ばれる)
+     *
+     * @param listener 通知先
+     */
+    public void addListener(Consumer<Rollup> listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * サンプル追加
+     *
+     * @param epochSecond 時刻(エポック秒)
+     * @param power       電力情報
+     */
+    public void add(long epochSecond, CurrentPower power) {
+        add(epochSecond, power.getInstantPower(), power.getInstantRAmp(), power.getInstantTAmp());
+
+        var accumu30 = power.getAccumu30();
+        if (accumu30 != null) {
+            addMeterEnergy(accumu30.getTime().toEpochSecond(), accumu30.getPower());
+        }
+    }
+
+    /**
+     * サンプル追加
+     *
+     * @param epochSecond 時刻(エポック秒)
+     * @param watt        瞬時電力(W)
+     * @param rAmp        R相電流(0.1A)
+     * @param tAmp        T相電流(0.1A)
+     */
+    public void add(long epochSecond, long watt, long rAmp, long tAmp) {
+        var closed = new ArrayList<Rollup>();
+        synchronized (this) {
+            if (epochSecond < lastTime) {
+                log.debug("時刻が戻ったサンプルは集計しません。{} < {}", epochSecond, lastTime);
+                return;
+            }
+            var gap = lastTime == Long.MIN_VALUE ? 0 : epochSecond - lastTime;
+            var seconds = gap <= MAX_GAP ? gap : 0;
+            // 平均の重みは前のサンプルからの経過秒数 (PowerWindowと同じく上限を設ける)
+            var weight = Math.max(1, Math.min(PowerWindow.MAX_WEIGHT, gap));
+            lastTime = epochSecond;
+
+            // 瞬時電力を電流の比率でR相とT相に按分
+            var amp = rAmp + tAmp;
+            var rWatt = amp == 0 ? 0D : (double) watt * rAmp / amp;
+            var tWatt = amp == 0 ? 0D : (double) watt * tAmp / amp;
+
+            for (var resolution : Resolution.values()) {
+                var current = currents.get(resolution);
+                if (current == null || !current.contains(epochSecond)) {
+                    if (current != null) {
+                        closed.add(close(current));
+                    }
+                    current = new Rollup(resolution, resolution.floor(epochSecond));
+                    currents.put(resolution, current);
+                }
+                current.add(watt, rWatt, tWatt, seconds, weight);
+            }
+        }
+
+        // ロックの外で通知する
+        for (var rollup : closed) {
+            listeners.forEach(l -> l.accept(rollup));
+        }
+    }
+
+    /**
+     * スマートメーターの30分積算電力量の増分を追加
+     *
+     * 30分積算電力量は区切りの時刻の後に届くため、その30分が含まれる集計期間が終わっていれば直近の履歴に加算する。
+     *
+     * @param periodEnd 30分積算電力量の時刻(エポック秒) ※この時刻までの30分間の値
+     * @param wh        電力量(Wh)
+     */
+    public synchronized void addMeterEnergy(long periodEnd, long wh) {
+        var time = periodEnd - 1;
+        for (var resolution : Resolution.values()) {
+            if (resolution == Resolution.MINUTE) {
+                continue;
+            }
+            var current = currents.get(resolution);
+            if (current != null && current.contains(time)) {
+                current.addMeterEnergy(wh);
+                continue;
+            }
+            var last = histories.get(resolution).peekLast();
+            if (last != null && last.contains(time)) {
+                last.addMeterEnergy(wh);
+            }
+        }
+    }
+
+    /**
+     * 集計中の値を取得
+     *
+     * @param resolution 時間単位
+     * @return 集計中の値の複製 (サンプルが無い場合はnull)
+     */
+    public synchronized Rollup current(Resolution resolution) {
+        var current = currents.get(resolution);
+        return current == null ? null : current.copy();
+    }
+
+    /**
+     * 集計済みの値を取得
+     *
+     * @param resolution 時間単位
+     * @return 集計済みの値の複製 (古い順)
+     */
+    public synchronized List<Rollup> history(Resolution resolution) {
+        var result = new ArrayList<Rollup>();
+        histories.get(resolution).forEach(r -> result.add(r.copy()));
+        return result;
+    }
+
+    /**
+     * 集計期間を終えて履歴に移す
+     *
+     * @param rollup 集計値
+     * @return 通知用の複製
+     */
+    private Rollup close(Rollup rollup) {
+        var history = histories.get(rollup.getResolution());
+        history.addLast(rollup);
+        while (history.size() > historySizes.get(rollup.getResolution())) {
+            history.removeFirst();
+        }
+        return rollup.copy();
+    }
+}
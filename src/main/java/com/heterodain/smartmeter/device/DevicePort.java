@@ -0,0 +1,50 @@
+package com.heterodain.smartmeter.device;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Wi-SUNモジュールとの入出力
+ *
+ * 通常はシリアルポートを使う。ポート名が{@value #SIMULATOR_PREFIX}で始まる場合は、プロセス内のシミュレーターを使う。
+ */
+public interface DevicePort extends Closeable {
+    // シミュレーターを使うポート名の接頭辞
+    String SIMULATOR_PREFIX = "sim";
+
+    /**
+     * ポート名から入出力を生成
+     *
+     * @param name ポート名 (シリアルポート名、または"sim"で始まる名前)
+     * @return 入出力
+     */
+    static DevicePort forName(String name) {
+        if (name.startsWith(SIMULATOR_PREFIX)) {
+            return new MeterSimulator(name);
+        }
+        return new SerialDevicePort(name);
+    }
+
+    /**
+     * 開く
+     *
+     * @throws IOException
+     */
+    void open() throws IOException;
+
+    /**
+     * Wi-SUNモジュールからの入力
+     *
+     * @return 入力ストリーム
+     */
+    InputStream getInputStream();
+
+    /**
+     * Wi-SUNモジュールへの出力
+     *
+     * @return 出力ストリーム
+     */
+    OutputStream getOutputStream();
+}
@@ -0,0 +1,186 @@
+package com.heterodain.smartmeter.device;
+
+import java.util.Arrays;
+
+import lombok.Getter;
+import lombok.var;
+
+/**
+ * Echonet Lite電文のデコード結果
+ *
+ * 電文ごとに生成せず、同じインスタンスを使い回す前提の可変オブジェクト。
+ */
+public class EchonetFrame {
+    // 電文のバイナリデータ
+    @Getter
+    private byte[] data = new byte[256];
+    // 電文の長さ
+    @Getter
+    private int length;
+
+    // EHD (EHD1 + EHD2)
+    @Getter
+    private int ehd;
+    // トランザクションID
+    @Getter
+    private int tid;
+    // 送信元オブジェクト
+    @Getter
+    private int seoj;
+    // 送信先オブジェクト
+    @Getter
+    private int deoj;
+    // サービス
+    @Getter
+    private int esv;
+    // プロパティ数
+    @Getter
+    private int opc;
+
+    // プロパティ (EPC)
+    private int[] epcs = new int[16];
+    // プロパティのデータサイズ (PDC)
+    private int[] pdcs = new int[16];
+    // プロパティデータ(EDT)の開始位置
+    private int[] edtOffsets = new int[16];
+
+    /**
+     * 電文を格納するバッファを取得(必要に応じて拡張)
+     *
+     * @param capacity 必要なサイズ
+     * @return バッファ
+     */
+    byte[] buffer(int capacity) {
+        if (data.length < capacity) {
+            data = new byte[Math.max(capacity, data.length * 2)];
+        }
+        return data;
+    }
+
+    /**
+     * バッファに格納された電文のヘッダとプロパティを解析
+     *
+     * @param length 電文の長さ
+     * @return 正しい電文ならtrue
+     */
+    boolean parse(int length) {
+        this.length = length;
+        this.opc = 0;
+        if (length < 12) {
+            return false;
+        }
+
+        ehd = u16(0);
+        tid = u16(2);
+        seoj = u24(4);
+        deoj = u24(7);
+        esv = data[10] & 0xFF;
+        var count = data[11] & 0xFF;
+
+        if (epcs.length < count) {
+            epcs = Arrays.copyOf(epcs, count);
+            pdcs = Arrays.copyOf(pdcs, count);
+            edtOffsets = Arrays.copyOf(edtOffsets, count);
+        }
+
+        var pos = 12;
+        for (var i = 0; i < count; i++) {
+            if (pos + 2 > length) {
+                return false;
+            }
+            epcs[i] = data[pos] & 0xFF;
+            pdcs[i] = data[pos + 1] & 0xFF;
+            edtOffsets[i] = pos + 2;
+            pos += 2 + pdcs[i];
+            if (pos > length) {
+                return false;
+            }
+        }
+        opc = count;
+
+        return ehd == 0x1081;
+    }
+
+    /**
+     * プロパティの位置を検索
+     *
+     * @param epc プロパティ
+     * @return 位置(見つからない場合は-1)
+     */
+    public int indexOf(int epc) {
+        for (var i = 0; i < opc; i++) {
+            if (epcs[i] == epc) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * プロパティ取得
+     *
+     * @param index 位置
+     * @return プロパティ (EPC)
+     */
+    public int getEpc(int index) {
+        return epcs[index];
+    }
+
+    /**
+     * プロパティのデータサイズ取得
+     *
+     * @param index 位置
+     * @return データサイズ (PDC)
+     */
+    public int getPdc(int index) {
+        return pdcs[index];
+    }
+
+    /**
+     * プロパティデータを符号なし整数として取得
+     *
+     * @param index  位置
+     * @param offset EDT内の開始位置
+     * @param size   バイト数(最大8)
+     * @return 値
+     */
+    public long getUnsigned(int index, int offset, int size) {
+        var pos = edtOffsets[index] + offset;
+        var value = 0L;
+        for (var i = 0; i < size; i++) {
+            value = (value << 8) | (data[pos + i] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * プロパティデータ全体を符号なし整数として取得
+     *
+     * @param index 位置
+     * @return 値
+     */
+    public long getUnsigned(int index) {
+        return getUnsigned(index, 0, pdcs[index]);
+    }
+
+    /**
+     * プロパティデータを符号付き整数として取得
+     *
+     * @param index  位置
+     * @param offset EDT内の開始位置
+     * @param size   バイト数(1～8)
+     * @return 値
+     */
+    public long getSigned(int index, int offset, int size) {
+        var shift = 64 - size * 8;
+        return (getUnsigned(index, offset, size) << shift) >> shift;
+    }
+
+    private int u16(int pos) {
+        return ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+    }
+
+    private int u24(int pos) {
+        return ((data[pos] & 0xFF) << 16) | ((data[pos + 1] & 0xFF) << 8) | (data[pos + 2] & 0xFF);
+    }
+}
@@ -0,0 +1,118 @@
+package com.heterodain.smartmeter.device;
+
+import lombok.var;
+
+/**
+ * ERXUDPイベントからEchonet Lite電文をデコードする
+ *
+ * 受信行を文字列分割せずにその場で16進デコードし、結果を再利用可能な{@link EchonetFrame}に格納する。
+ */
+public class EchonetFrameDecoder {
+    // ERXUDPイベントの接頭辞
+    private static final String ERXUDP = "ERXUDP ";
+    // 電文データが格納されている項目の位置
+    private static final int DATA_FIELD_INDEX = 8;
+
+    /**
+     * ERXUDPイベントの受信行をデコード
+     *
+     * @param line  受信行
+     * @param frame デコード結果の格納先
+     * @return Echonet Lite電文をデコードできた場合はtrue
+     */
+    public boolean decode(CharSequence line, EchonetFrame frame) {
+        var len = line.length();
+        if (len < ERXUDP.length()) {
+            return false;
+        }
+        for (var i = 0; i < ERXUDP.length(); i++) {
+            if (line.charAt(i) != ERXUDP.charAt(i)) {
+                return false;
+            }
+        }
+
+        // 電文データの開始位置を探す
+        var pos = 0;
+        for (var field = 0; field < DATA_FIELD_INDEX; field++) {
+            while (pos < len && line.charAt(pos) != ' ') {
+                pos++;
+            }
+            pos++;
+        }
+        var end = pos;
+        while (end < len && hexValue(line.charAt(end)) >= 0) {
+            end++;
+        }
+        if (pos >= end || ((end - pos) & 1) != 0) {
+            return false;
+        }
+
+        var buf = frame.buffer((end - pos) / 2);
+        var n = 0;
+        for (var i = pos; i < end; i += 2) {
+            buf[n++] = (byte) ((hexValue(line.charAt(i)) << 4) | hexValue(line.charAt(i + 1)));
+        }
+        return frame.parse(n);
+    }
+
+    /**
+     * ERXUDPイベントの受信行(ASCII)をデコード
+     *
+     * @param line   受信行のバッファ
+     * @param offset 受信行の開始位置
+     * @param length 受信行の長さ
+     * @param frame  デコード結果の格納先
+     * @return Echonet Lite電文をデコードできた場合はtrue
+     */
+    public boolean decode(byte[] line, int offset, int length, EchonetFrame frame) {
+        var limit = offset + length;
+        if (length < ERXUDP.length()) {
+            return false;
+        }
+        for (var i = 0; i < ERXUDP.length(); i++) {
+            if (line[offset + i] != ERXUDP.charAt(i)) {
+                return false;
+            }
+        }
+
+        // 電文データの開始位置を探す
+        var pos = offset;
+        for (var field = 0; field < DATA_FIELD_INDEX; field++) {
+            while (pos < limit && line[pos] != ' ') {
+                pos++;
+            }
+            pos++;
+        }
+        var end = pos;
+        while (end < limit && hexValue(line[end]) >= 0) {
+            end++;
+        }
+        if (pos >= end || ((end - pos) & 1) != 0) {
+            return false;
+        }
+
+        var buf = frame.buffer((end - pos) / 2);
+        var n = 0;
+        for (var i = pos; i < end; i += 2) {
+            buf[n++] = (byte) ((hexValue(line[i]) << 4) | hexValue(line[i + 1]));
+        }
+        return frame.parse(n);
+    }
+
+    /**
+     * 16進文字を数値に変換
+     *
+     * @param c 文字
+     * @return 数値(16進文字でない場合は-1)
+     */
+    private static int hexValue(int c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        } else if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        } else if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,222 @@
+package com.heterodain.smartmeter.device;
+
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+import lombok.var;
+
+/**
+ * 低圧スマート電力量メータのEchonet Liteプロパティ
+ *
+ * プロパティごとにEPC、EDTのサイズの範囲とデコード方法を持つ。応答電文は{@link #of(int)}でEPCから定義を引き、
+ * 定義があってEDTのサイズ(PDC)が範囲内のプロパティだけを{@link PropertyMap}にデコードする。
+ *
+ * @param <T> デコード後の値の型
+ */
+@Getter
+public final class EchonetProperty<T> {
+    private static final ZoneId JST = ZoneId.of("Asia/Tokyo");
+
+    // EPCごとの定義
+    private static final EchonetProperty<?>[] TABLE = new EchonetProperty<?>[256];
+
+    // 積算電力量計測値履歴の未計測値
+    public static final long NO_DATA = 0xFFFFFFFEL;
+
+    /** 動作状態 (0x30=ON、0x31=OFF) */
+    public static final EchonetProperty<Long> OPERATION_STATUS = unsigned(0x80, "動作状態", 1);
+    /** 係数 (未実装のメーターもある) */
+    public static final EchonetProperty<Long> COEFFICIENT = unsigned(0xD3, "係数", 4);
+    /** 積算電力量有効桁数 */
+    public static final EchonetProperty<Long> EFFECTIVE_DIGITS = unsigned(0xD7, "積算電力量有効桁数", 1);
+    /** 積算電力量計測値(正方向) */
+    public static final EchonetProperty<Long> CUMULATIVE_ENERGY = unsigned(0xE0, "積算電力量計測値(正方向)", 4);
+    /** 積算電力量単位 */
+    public static final EchonetProperty<Long> ENERGY_UNIT = unsigned(0xE1, "積算電力量単位", 1);
+    /** 積算電力量計測値(逆方向) */
+    public static final EchonetProperty<Long> CUMULATIVE_ENERGY_REVERSE = unsigned(0xE3, "積算電力量計測値(逆方向)", 4);
+    /** 積算履歴収集日１ */
+    public static final EchonetProperty<Long> HISTORY1_DAY = unsigned(0xE5, "積算履歴収集日１", 1);
+    /** 瞬時電力計測値(W) */
+    public static final EchonetProperty<Long> INSTANT_POWER = new EchonetProperty<>(0xE7, "瞬時電力計測値", 4, 4,
+            (f, i) -> f.getSigned(i, 0, 4));
+    /** 瞬時電流計測値(0.1A) */
+    public static final EchonetProperty<Current> INSTANT_CURRENT = new EchonetProperty<>(0xE8, "瞬時電流計測値", 4, 4,
+            (f, i) -> new Current(f.getSigned(i, 0, 2), f.getSigned(i, 2, 2)));
+    /** 定時積算電力量計測値(正方向) */
+    public static final EchonetProperty<Timed> ACCUMU30 = new EchonetProperty<>(0xEA, "定時積算電力量計測値(正方向)", 11,
+            11, (f, i) -> new Timed(dateTime(f, i, 0, true), f.getUnsigned(i, 7, 4)));
+    /** 定時積算電力量計測値(逆方向) */
+    public static final EchonetProperty<Timed> ACCUMU30_REVERSE = new EchonetProperty<>(0xEB,
+            "定時積算電力量計測値(逆方向)", 11, 11, (f, i) -> new Timed(dateTime(f, i, 0, true), f.getUnsigned(i, 7, 4)));
+    /** 積算電力量計測値履歴１(正方向) ※収集日(2) + 48コマ×計測値(4) */
+    public static final EchonetProperty<History1> HISTORY1 = new EchonetProperty<>(0xE2, "積算電力量計測値履歴１(正方向)",
+            2, 2 + 48 * 4, (f, i) -> {
+                var values = new long[(f.getPdc(i) - 2) / 4];
+                for (var n = 0; n < values.length; n++) {
+                    values[n] = f.getUnsigned(i, 2 + n * 4, 4);
+                }
+                return new History1((int) f.getUnsigned(i, 0, 2), values);
+            });
+    /** 積算電力量計測値履歴２(正方向、逆方向) ※収集日時(6) + コマ数(1) + 最大12コマ×計測値(4+4) */
+    public static final EchonetProperty<History2> HISTORY2 = new EchonetProperty<>(0xEC, "積算電力量計測値履歴２", 7,
+            7 + 12 * 8, (f, i) -> {
+                var slots = (int) f.getUnsigned(i, 6, 1);
+                var count = Math.min(slots, (f.getPdc(i) - 7) / 8);
+                var normal = new long[count];
+                var reverse = new long[count];
+                for (var n = 0; n < count; n++) {
+                    normal[n] = f.getUnsigned(i, 7 + n * 8, 4);
+                    reverse[n] = f.getUnsigned(i, 11 + n * 8, 4);
+                }
+                return new History2(dateTime(f, i, 0, false), normal, reverse);
+            });
+    /** 積算履歴収集日時及び収集コマ数 (履歴２) */
+    public static final EchonetProperty<Timed> HISTORY2_SETTING = new EchonetProperty<>(0xED,
+            "積算履歴収集日時及び収集コマ数", 7, 7, (f, i) -> new Timed(dateTime(f, i, 0, false), f.getUnsigned(i, 6, 1)));
+
+    // プロパティ (EPC)
+    private final int epc;
+    // 名前
+    private final String name;
+    // EDTの最小サイズ
+    private final int minPdc;
+    // EDTの最大サイズ
+    private final int maxPdc;
+    // EDTのデコード方法
+    private final Decoder<T> decoder;
+
+    /**
+     * EDTのデコード方法
+     *
+     * @param <T> デコード後の値の型
+     */
+    @FunctionalInterface
+    public interface Decoder<T> {
+        /**
+         * @param frame 応答電文
+         * @param index プロパティの位置
+         * @return 値
+         */
+        T decode(EchonetFrame frame, int index);
+    }
+
+    private EchonetProperty(int epc, String name, int minPdc, int maxPdc, Decoder<T> decoder) {
+        this.epc = epc;
+        this.name = name;
+        this.minPdc = minPdc;
+        this.maxPdc = maxPdc;
+        this.decoder = decoder;
+        TABLE[epc] = this;
+    }
+
+    /**
+     * EPCからプロパティの定義を取得
+     *
+     * @param epc プロパティ (EPC)
+     * @return 定義 (未定義の場合はnull)
+     */
+    public static EchonetProperty<?> of(int epc) {
+        return TABLE[epc & 0xFF];
+    }
+
+    /**
+     * EDTのサイズがこのプロパティの形式に合うか
+     *
+     * @param pdc EDTのサイズ
+     * @return 合う場合はtrue
+     */
+    public boolean accepts(int pdc) {
+        return minPdc <= pdc && pdc <= maxPdc;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%02X(%s)", epc, name);
+    }
+
+    /**
+     * EDT全体を符号なし整数とするプロパティ
+     *
+     * @param epc  プロパティ (EPC)
+     * @param name 名前
+     * @param size EDTのサイズ
+     * @return 定義
+     */
+    private static EchonetProperty<Long> unsigned(int epc, String name, int size) {
+        return new EchonetProperty<>(epc, name, size, size, (f, i) -> f.getUnsigned(i));
+    }
+
+    /**
+     * EDT内の日時を取得
+     *
+     * @param frame   応答電文
+     * @param index   プロパティの位置
+     * @param offset  EDT内の開始位置
+     * @param seconds 秒を含むか (年月日時分秒の7バイト、含まない場合は年月日時分の6バイト)
+     * @return 日時
+     */
+    private static ZonedDateTime dateTime(EchonetFrame frame, int index, int offset, boolean seconds) {
+        return ZonedDateTime.of((int) frame.getUnsigned(index, offset, 2), (int) frame.getUnsigned(index, offset + 2, 1),
+                (int) frame.getUnsigned(index, offset + 3, 1), (int) frame.getUnsigned(index, offset + 4, 1),
+                (int) frame.getUnsigned(index, offset + 5, 1),
+                seconds ? (int) frame.getUnsigned(index, offset + 6, 1) : 0, 0, JST);
+    }
+
+    /**
+     * 瞬時電流計測値
+     */
+    @Getter
+    @ToString
+    @AllArgsConstructor
+    public static class Current {
+        // R相電流(0.1A)
+        private final long rAmp;
+        // T相電流(0.1A)
+        private final long tAmp;
+    }
+
+    /**
+     * 日時付きの値
+     */
+    @Getter
+    @ToString
+    @AllArgsConstructor
+    public static class Timed {
+        // 日時
+        private final ZonedDateTime time;
+        // 値
+        private final long value;
+    }
+
+    /**
+     * 積算電力量計測値履歴１
+     */
+    @Getter
+    @ToString
+    @AllArgsConstructor
+    public static class History1 {
+        // 積算履歴収集日 (0=当日、1=前日…)
+        private final int day;
+        // 0時0分から30分毎の積算電力量計測値 (未計測のコマは{@link EchonetProperty#NO_DATA})
+        private final long[] values;
+    }
+
+    /**
+     * 積算電力量計測値履歴２
+     */
+    @Getter
+    @ToString
+    @AllArgsConstructor
+    public static class History2 {
+        // 最初のコマの日時
+        private final ZonedDateTime time;
+        // 最初のコマから30分ずつ遡った積算電力量計測値(正方向) ※未計測のコマは{@link EchonetProperty#NO_DATA}
+        private final long[] normal;
+        // 最初のコマから30分ずつ遡った積算電力量計測値(逆方向) ※未計測のコマは{@link EchonetProperty#NO_DATA}
+        private final long[] reverse;
+    }
+}
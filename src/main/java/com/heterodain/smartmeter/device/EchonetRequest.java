@@ -0,0 +1,61 @@
+package com.heterodain.smartmeter.device;
+
+import lombok.var;
+
+/**
+ * スマートメーターへのEchonet Lite要求電文の組み立て
+ *
+ * 送信元はコントローラ(05FF01)、送信先は低圧スマート電力量メータ(028801)。
+ * TIDは送信時に割り当てるため0にしておく。
+ */
+public final class EchonetRequest {
+    // Echonet Liteサービス: プロパティ値書き込み要求(応答要)
+    public static final int ESV_SET_C = 0x61;
+    // Echonet Liteサービス: プロパティ値読み出し要求
+    public static final int ESV_GET = 0x62;
+
+    // ヘッダ (EHD、TID、SEOJ、DEOJ)
+    private static final byte[] HEADER = { 0x10, (byte) 0x81, 0x00, 0x00, 0x05, (byte) 0xFF, 0x01, 0x02,
+            (byte) 0x88, 0x01 };
+
+    private EchonetRequest() {
+    }
+
+    /**
+     * プロパティ値読み出し要求(Get)
+     *
+     * @param properties 読み出すプロパティ
+     * @return 電文
+     */
+    public static byte[] get(EchonetProperty<?>... properties) {
+        var frame = new byte[HEADER.length + 2 + properties.length * 2];
+        System.arraycopy(HEADER, 0, frame, 0, HEADER.length);
+        var pos = HEADER.length;
+        frame[pos++] = (byte) ESV_GET;
+        frame[pos++] = (byte) properties.length;
+        for (var property : properties) {
+            frame[pos++] = (byte) property.getEpc();
+            frame[pos++] = 0;
+        }
+        return frame;
+    }
+
+    /**
+     * プロパティ値書き込み要求(SetC)
+     *
+     * @param property 書き込むプロパティ
+     * @param edt      書き込む値
+     * @return 電文
+     */
+    public static byte[] setC(EchonetProperty<?> property, byte... edt) {
+        var frame = new byte[HEADER.length + 4 + edt.length];
+        System.arraycopy(HEADER, 0, frame, 0, HEADER.length);
+        var pos = HEADER.length;
+        frame[pos++] = (byte) ESV_SET_C;
+        frame[pos++] = 1;
+        frame[pos++] = (byte) property.getEpc();
+        frame[pos++] = (byte) edt.length;
+        System.arraycopy(edt, 0, frame, pos, edt.length);
+        return frame;
+    }
+}
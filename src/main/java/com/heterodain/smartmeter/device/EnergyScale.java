@@ -0,0 +1,123 @@
+package com.heterodain.smartmeter.device;
+
+import lombok.Getter;
+import lombok.var;
+
+/**
+ * 積算電力量計測値からWhへの換算
+ *
+ * 係数(D3)、積算電力量単位(E1)、積算電力量有効桁数(D7)から、計測値1あたりのWhと計測値が0に戻る値を前もって求めておく。
+ * 積算電力量計測値は有効桁数を超えると0に戻るため、差分は戻った分を足して求める。
+ */
+@Getter
+public final class EnergyScale {
+    /** 係数1、単位0.1kWh、有効桁数6 (係数などを取得できなかった場合) */
+    public static final EnergyScale DEFAULT = new EnergyScale(1, 0x01, 6);
+
+    // 係数
+    private final long coefficient;
+    // 積算電力量単位 (E1のコード)
+    private final int unit;
+    // 積算電力量有効桁数
+    private final int digits;
+    // 計測値1あたりの電力量(Wh)
+    private final double whPerCount;
+    // 計測値が0に戻る値 (10の有効桁数乗)
+    private final long modulus;
+
+    /**
+     * コンストラクタ
+     *
+     * @param coefficient 係数 (D3)
+     * @param unit        積算電力量単位 (E1のコード)
+     * @param digits      積算電力量有効桁数 (D7)
+     * @throws IllegalArgumentException 値が規格の範囲外の場合
+     */
+    public EnergyScale(long coefficient, int unit, int digits) {
+        if (coefficient <= 0) {
+            throw new IllegalArgumentException("係数が不正です。coefficient=" + coefficient);
+        }
+        if (digits < 1 || digits > 8) {
+            throw new IllegalArgumentException("積算電力量有効桁数が不正です。digits=" + digits);
+        }
+        this.coefficient = coefficient;
+        this.unit = unit;
+        this.digits = digits;
+        this.whPerCount = coefficient * unitKWh(unit) * 1000;
+        var modulus = 1L;
+        for (var i = 0; i < digits; i++) {
+            modulus *= 10;
+        }
+        this.modulus = modulus;
+    }
+
+    /**
+     * 積算電力量計測値をWhに換算
+     *
+     * @param count 積算電力量計測値
+     * @return 積算電力量(Wh)
+     */
+    public long toWh(long count) {
+        return Math.round(count * whPerCount);
+    }
+
+    /**
+     * 2つの積算電力量計測値の間の電力量 (途中で0に戻っていても正しく求める)
+     *
+     * @param before 前の積算電力量計測値
+     * @param after  後の積算電力量計測値
+     * @return 電力量(Wh)
+     */
+    public long deltaWh(long before, long after) {
+        return toWh(Math.floorMod(after - before, modulus));
+    }
+
+    /**
+     * Whに換算済みの2つの積算電力量の間の電力量 (途中で0に戻っていても正しく求める)
+     *
+     * @param beforeWh 前の積算電力量(Wh)
+     * @param afterWh  後の積算電力量(Wh)
+     * @return 電力量(Wh)
+     */
+    public long differenceWh(long beforeWh, long afterWh) {
+        return Math.floorMod(afterWh - beforeWh, toWh(modulus));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("EnergyScale(coefficient=%d, unit=%02X, digits=%d, whPerCount=%s)", coefficient, unit,
+                digits, whPerCount);
+    }
+
+    /**
+     * 積算電力量単位のコードをkWhに変換
+     *
+     * @param unit 積算電力量単位 (E1のコード)
+     * @return 計測値1あたりの電力量(kWh)
+     * @throws IllegalArgumentException 規格に無いコードの場合
+     */
+    private static double unitKWh(int unit) {
+        switch (unit) {
+        case 0x00:
+            return 1;
+        case 0x01:
+            return 0.1;
+        case 0x02:
+            return 0.01;
+        case 0x03:
+            return 0.001;
+        case 0x04:
+            return 0.0001;
+        case 0x0A:
+            return 10;
+        case 0x0B:
+            return 100;
+        case 0x0C:
+            return 1000;
+        case 0x0D:
+            return 10000;
+        default:
+            throw new IllegalArgumentException(String.format("積算電力量単位が不正です。unit=%02X", unit));
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.heterodain.smartmeter.device;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import com.heterodain.smartmeter.model.EnergyReading;
+
+import lombok.var;
+
+/**
+ * 積算電力量計測値履歴２を使った30分毎の積算電力量の読み出し
+ *
+ * 期間を最大コマ数ずつのまとまりに分け、古いまとまりから順に取得する。
+ * 読み出し中のまとまりを返している間に次のまとまりを要求しておくため、スマートメーターの応答待ちは前後で重なる。
+ */
+final class HistoryIterator implements Iterator<EnergyReading> {
+    // 30分(分)
+    private static final long SLOT_MINUTES = 30;
+
+    // スマートメーター
+    private final SmartMeter smartMeter;
+    // 最後のコマの時刻
+    private final ZonedDateTime end;
+    // 次に要求するまとまりの最初のコマの時刻 (全て要求済みの場合はnull)
+    private ZonedDateTime next;
+    // 要求中のまとまり
+    private CompletableFuture<List<EnergyReading>> pending;
+    // 取得済みでまだ返していない積算電力量
+    private final ArrayDeque<EnergyReading> buffer = new ArrayDeque<>();
+
+    /**
+     * コンストラクタ
+     *
+     * @param smartMeter スマートメーター
+     * @param from       開始時刻 (30分単位に切り上げる)
+     * @param to         終了時刻 (30分単位に切り捨て、最新のコマより後は最新のコマまで)
+     */
+    HistoryIterator(SmartMeter smartMeter, ZonedDateTime from, ZonedDateTime to) {
+        this.smartMeter = smartMeter;
+        var now = ZonedDateTime.now(from.getZone());
+        this.end = floor(to.isAfter(now) ? now : to);
+        var start = floor(from);
+        this.next = start.isBefore(from) ? start.plusMinutes(SLOT_MINUTES) : start;
+        request();
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (buffer.isEmpty() && pending != null) {
+            var readings = await(pending);
+            pending = null;
+            // 返している間に次のまとまりを要求しておく
+            request();
+            buffer.addAll(readings);
+        }
+        return !buffer.isEmpty();
+    }
+
+    @Override
+    public EnergyReading next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return buffer.poll();
+    }
+
+    /**
+     * 次のまとまりを要求
+     */
+    private void request() {
+        if (next == null || next.isAfter(end)) {
+            next = null;
+            return;
+        }
+        var slots = (int) Math.min(SmartMeter.HISTORY2_MAX_SLOTS,
+                ChronoUnit.MINUTES.between(next, end) / SLOT_MINUTES + 1);
+        var last = next.plusMinutes(SLOT_MINUTES * (slots - 1));
+        pending = smartMeter.getHistory2Async(last, slots);
+        next = last.plusMinutes(SLOT_MINUTES);
+    }
+
+    /**
+     * 要求の完了を待つ
+     *
+     * @param future 要求
+     * @return 積算電力量
+     * @throws UncheckedIOException 取得に失敗した場合、または待っている間に割り込まれた場合
+     */
+    private static List<EnergyReading> await(CompletableFuture<List<EnergyReading>> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UncheckedIOException(new InterruptedIOException("積算電力量の取得中に割り込まれました。"));
+        } catch (ExecutionException e) {
+            var cause = e.getCause();
+            throw new UncheckedIOException(
+                    cause instanceof IOException ? (IOException) cause : new IOException(cause.getMessage(), cause));
+        }
+    }
+
+    /**
+     * 30分単位に切り捨て
+     *
+     * @param time 時刻
+     * @return 切り捨てた時刻
+     */
+    private static ZonedDateTime floor(ZonedDateTime time) {
+        var truncated = time.truncatedTo(ChronoUnit.MINUTES);
+        return truncated.minusMinutes(truncated.getMinute() % SLOT_MINUTES);
+    }
+}
@@ -0,0 +1,169 @@
+package com.heterodain.smartmeter.device;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import lombok.Getter;
+import lombok.var;
+
+/**
+ * 入力ストリームからCRLF区切りの行をバイト列のまま切り出す
+ *
+ * 固定サイズのリングバッファに読み込み、1行ごとに文字列を生成せずバッファ上の範囲を返す。
+ * 行がリングバッファの末尾をまたぐ場合だけ、行用バッファにコピーする。
+ * 取得した行の内容は次の{@link #readLine()}呼び出しまで有効。
+ */
+public class LineReader implements Closeable {
+    // 入力ストリーム
+    private final InputStream in;
+
+    // リングバッファ
+    private final byte[] ring;
+    // 未読データの開始位置
+    private int head;
+    // 未読データのサイズ
+    private int count;
+    // 改行を探し終えたサイズ
+    private int scanned;
+
+    // 行がリングバッファの末尾をまたぐ場合のコピー先
+    private final byte[] wrapBuffer;
+
+    // 現在の行のバッファ
+    @Getter
+    private byte[] buffer;
+    // 現在の行の開始位置
+    @Getter
+    private int offset;
+    // 現在の行の長さ(CRLFを除く)
+    @Getter
+    private int length;
+
+    /**
+     * コンストラクタ
+     *
+     * @param in       入力ストリーム
+     * @param capacity バッファサイズ(1行の最大長)
+     */
+    public LineReader(InputStream in, int capacity) {
+        this.in = in;
+        this.ring = new byte[capacity];
+        this.wrapBuffer = new byte[capacity];
+        this.buffer = ring;
+    }
+
+    /**
+     * 1行読み込む
+     *
+     * 改行が来るまでブロックする。バッファサイズを超える行は途中で区切る。
+     *
+     * @return 行を読み込めた場合はtrue、ストリームの終端に達した場合はfalse
+     * @throws IOException
+     */
+    public boolean readLine() throws IOException {
+        while (true) {
+            // 読み込み済みデータから改行を探す
+            while (scanned < count) {
+                var pos = (head + scanned) % ring.length;
+                scanned++;
+                if (ring[pos] == '\n') {
+                    takeLine(scanned, scanned - 1);
+                    return true;
+                }
+            }
+
+            if (count == ring.length) {
+                // 改行のない長い行はバッファサイズで区切る
+                takeLine(count, count);
+                return true;
+            }
+
+            // 空き領域(連続している範囲)に読み込む
+            var tail = (head + count) % ring.length;
+            var free = tail >= head ? ring.length - tail : head - tail;
+            free = Math.min(free, ring.length - count);
+            var n = in.read(ring, tail, free);
+            if (n < 0) {
+                if (count > 0) {
+                    takeLine(count, count);
+                    return true;
+                }
+                return false;
+            }
+            count += n;
+        }
+    }
+
+    /**
+     * 読み込み済みの行、またはストリームに未読データがあるか
+     *
+     * @return 未読データがあればtrue
+     * @throws IOException
+     */
+    public boolean ready() throws IOException {
+        return count > 0 || in.available() > 0;
+    }
+
+    /**
+     * 現在の行が指定した文字列で始まるか
+     *
+     * @param prefix 文字列(ASCII)
+     * @return 指定した文字列で始まる場合はtrue
+     */
+    public boolean startsWith(String prefix) {
+        if (prefix.length() > length) {
+            return false;
+        }
+        for (var i = 0; i < prefix.length(); i++) {
+            if (buffer[offset + i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 現在の行を文字列で取得
+     *
+     * @return 行の文字列
+     */
+    @Override
+    public String toString() {
+        return new String(buffer, offset, length, StandardCharsets.ISO_8859_1);
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * バッファの先頭から行を取り出す
+     *
+     * @param consume 消費するサイズ(改行を含む)
+     * @param size    行のサイズ(LFを除く)
+     */
+    private void takeLine(int consume, int size) {
+        if (size > 0 && ring[(head + size - 1) % ring.length] == '\r') {
+            size--;
+        }
+
+        if (head + size <= ring.length) {
+            buffer = ring;
+            offset = head;
+        } else {
+            var first = ring.length - head;
+            System.arraycopy(ring, head, wrapBuffer, 0, first);
+            System.arraycopy(ring, 0, wrapBuffer, first, size - first);
+            buffer = wrapBuffer;
+            offset = 0;
+        }
+        length = size;
+
+        head = (head + consume) % ring.length;
+        count -= consume;
+        scanned = 0;
+    }
+}
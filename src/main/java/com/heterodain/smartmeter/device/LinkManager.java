@@ -0,0 +1,410 @@
+package com.heterodain.smartmeter.device;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import com.heterodain.smartmeter.metrics.MetricRegistry;
+import com.heterodain.smartmeter.model.WiSunLink;
+
+import lombok.Getter;
+import lombok.var;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * スマートメーターとのWi-SUN接続の管理
+ *
+ * スキャンで見つけた接続パラメータを保持し、次回からはスキャンせずに直接PANA認証を試みる (失敗したらスキャンする)。
+ * PANAセッションの有効期限切れ(EVENT 29)から有効期間を覚え、期限が切れる前に再認証できるようにする。
+ * 接続状態と接続回数などの統計を公開する。
+ */
+@Slf4j
+public class LinkManager {
+    // コマンド
+    private static final String SKSCAN_COMMAND = "SKSCAN 2 FFFFFFFF %X";
+    private static final String SKLL64_COMMAND = "SKLL64 %s";
+    private static final String SKSREG_COMMAND = "SKSREG %s %s";
+    private static final String SKJOIN_COMMAND = "SKJOIN %s";
+    private static final String SKREJOIN_COMMAND = "SKREJOIN";
+    private static final String SKINFO_COMMAND = "SKINFO";
+
+    // スキャン時間
+    private static final int SCAN_DURATION = 6;
+    // コマンド応答の待ち時間(ミリ秒)
+    private static final long COMMAND_TIMEOUT = 5000;
+    // スキャン結果、PANA認証結果の待ち時間(ミリ秒)
+    private static final long JOIN_TIMEOUT = 20000;
+    // PANAセッションの有効期間のうち、再認証を始めるまでの割合
+    private static final double REJOIN_RATIO = 0.9;
+    // 再認証を行う有効期間の下限(ミリ秒) ※これより短い場合は再認証が続かないよう何もしない
+    private static final long MIN_SESSION_LIFETIME = 10 * 60 * 1000;
+
+    /**
+     * 接続状態
+     */
+    public enum State {
+        // 未接続
+        DOWN,
+        // 接続中
+        JOINING,
+        // 接続済み
+        UP,
+        // 再認証中
+        REAUTH
+    }
+
+    // SKSTACKコマンド送受信
+    private final SkStackTransport transport;
+    // 接続が切れた時の通知先 (受信スレッドで呼ばれる)
+    private final Runnable onLost;
+
+    // 接続パラメータ (未スキャンの場合はnull)
+    @Getter
+    private volatile WiSunLink link;
+    // 接続状態
+    @Getter
+    private volatile State state = State.DOWN;
+    // PANAセッションの有効期間(ミリ秒) ※不明の場合は0
+    @Getter
+    private volatile long sessionLifetime;
+    // 最後にPANA認証した時刻(ミリ秒)
+    @Getter
+    private volatile long authenticatedAt;
+    // 最後の接続にかかった時間(ミリ秒)
+    @Getter
+    private volatile long lastJoinMillis;
+    // 送信時間制限(デューティ比の上限)により送信できない状態か
+    @Getter
+    private volatile boolean restricted;
+
+    // 接続した回数
+    private final AtomicLong joins = new AtomicLong();
+    // スキャンせずに接続できた回数
+    private final AtomicLong fastJoins = new AtomicLong();
+    // スキャンした回数
+    private final AtomicLong scans = new AtomicLong();
+    // 接続に失敗した回数
+    private final AtomicLong failures = new AtomicLong();
+    // 再認証した回数
+    private final AtomicLong rejoins = new AtomicLong();
+    // 接続が切れた回数
+    private final AtomicLong losses = new AtomicLong();
+
+    // メトリクス
+    private final MetricRegistry.Counter fastJoinMetric;
+    private final MetricRegistry.Counter scanJoinMetric;
+    private final MetricRegistry.Counter failureMetric;
+    private final MetricRegistry.Counter rejoinMetric;
+    private final MetricRegistry.Counter lossMetric;
+    private final MetricRegistry.Histogram joinSeconds;
+
+    /**
+     * コンストラクタ
+     *
+     * @param transport SKSTACKコマンド送受信
+     * @param link      前回の接続パラメータ (無い場合はnull)
+     * @param onLost    接続が切れた時の通知先 (受信スレッドで呼ばれる)
+     * @param name      メトリクスのラベルに使う名前
+     */
+    public LinkManager(SkStackTransport transport, WiSunLink link, Runnable onLost, String name) {
+        this.transport = transport;
+        this.link = link;
+        this.onLost = onLost;
+
+        var metrics = MetricRegistry.getDefault();
+        var joinHelp = "スマートメーターに接続した回数";
+        fastJoinMetric = metrics.counter("smartmeter_link_joins_total", joinHelp, "meter", name, "method", "fast");
+        scanJoinMetric = metrics.counter("smartmeter_link_joins_total", joinHelp, "meter", name, "method", "scan");
+        failureMetric = metrics.counter("smartmeter_link_join_failures_total", "スマートメーターへの接続に失敗した回数",
+                "meter", name);
+        rejoinMetric = metrics.counter("smartmeter_link_rejoins_total", "PANA再認証した回数", "meter", name);
+        lossMetric = metrics.counter("smartmeter_link_losses_total", "スマートメーターとの接続が切れた回数", "meter", name);
+        joinSeconds = metrics.histogram("smartmeter_link_join_seconds", "スマートメーターへの接続にかかった時間(秒)",
+                MetricRegistry.CONNECT_BUCKETS, "meter", name);
+        metrics.gauge("smartmeter_link_session_lifetime_seconds", "PANAセッションの有効期間(秒) ※不明の場合は0",
+                () -> sessionLifetime / 1000.0, "meter", name);
+    }
+
+    /**
+     * スマートメーターに接続 (前回の接続パラメータがあれば、まずスキャンせずに接続する)
+     *
+     * @return スマートメーターのIPV6アドレス
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public synchronized String join() throws IOException, InterruptedException {
+        state = State.JOINING;
+        var start = System.currentTimeMillis();
+        var success = false;
+        try {
+            var cached = link;
+            if (cached != null) {
+                try {
+                    joinTo(cached);
+                    fastJoins.incrementAndGet();
+                    fastJoinMetric.inc();
+                    success = true;
+                    return joined(start);
+                } catch (IOException e) {
+                    log.info("前回の接続パラメータで接続できなかったため、スキャンします。{}", e.getMessage());
+                }
+            }
+
+            var scanned = scan();
+            joinTo(scanned);
+            link = scanned;
+            scanJoinMetric.inc();
+            success = true;
+            return joined(start);
+
+        } finally {
+            if (!success) {
+                state = State.DOWN;
+                failures.incrementAndGet();
+                failureMetric.inc();
+            }
+        }
+    }
+
+    /**
+     * 接続中のスマートメーターにPANA再認証
+     *
+     * @throws IOException          再認証できなかった場合
+     * @throws InterruptedException
+     */
+    public synchronized void rejoin() throws IOException, InterruptedException {
+        if (state != State.UP) {
+            throw new IOException("スマートメーターに接続されていません。");
+        }
+        state = State.REAUTH;
+        transport.writeCommand(SKREJOIN_COMMAND);
+        var responses = transport.awaitResponse(JOIN_TIMEOUT, "EVENT 24", "EVENT 25", "FAIL");
+        if (!responses.contains("OK") || responses.stream().noneMatch(r -> r.startsWith("EVENT 25"))) {
+            state = State.DOWN;
+            throw new IOException("PANA再認証に失敗しました。" + responses);
+        }
+        rejoins.incrementAndGet();
+        rejoinMetric.inc();
+        log.info("PANA再認証しました。");
+    }
+
+    /**
+     * PANAセッションの有効期限が近いか
+     *
+     * @return 再認証すべき場合はtrue
+     */
+    public boolean isRejoinDue() {
+        var lifetime = sessionLifetime;
+        return state == State.UP && lifetime >= MIN_SESSION_LIFETIME
+                && System.currentTimeMillis() - authenticatedAt >= lifetime * REJOIN_RATIO;
+    }
+
+    /**
+     * EVENT受信時の処理 (受信スレッドで呼ばれる)
+     *
+     * @param line 受信した行
+     */
+    public void onEvent(String line) {
+        log.debug("{}", line);
+        if (line.length() < 8) {
+            return;
+        }
+        var now = System.currentTimeMillis();
+        switch (line.substring(6, 8)) {
+        case "29":
+            // PANAセッションの有効期限切れ (Wi-SUNモジュールが自動で再認証する)
+            if (state == State.UP) {
+                sessionLifetime = now - authenticatedAt;
+                state = State.REAUTH;
+                log.info("PANAセッションの有効期限が切れました。有効期間={}分", sessionLifetime / 60000);
+            }
+            break;
+
+        case "25":
+            // PANA認証成功
+            if (state == State.REAUTH) {
+                authenticatedAt = now;
+                state = State.UP;
+            }
+            break;
+
+        case "24":
+        case "26":
+        case "27":
+        case "28":
+            // PANA認証失敗、セッション終了
+            if (state == State.UP || state == State.REAUTH) {
+                state = State.DOWN;
+                losses.incrementAndGet();
+                lossMetric.inc();
+                log.warn("スマートメーターとの接続が切れました。{}", line);
+                onLost.run();
+            }
+            break;
+
+        case "32":
+            restricted = true;
+            log.info("送信時間制限により送信できません。");
+            break;
+
+        case "33":
+            restricted = false;
+            log.info("送信時間制限が解除されました。");
+            break;
+
+        default:
+            break;
+        }
+    }
+
+    /**
+     * 接続した回数
+     *
+     * @return 回数
+     */
+    public long getJoinCount() {
+        return joins.get();
+    }
+
+    /**
+     * スキャンせずに接続できた回数
+     *
+     * @return 回数
+     */
+    public long getFastJoinCount() {
+        return fastJoins.get();
+    }
+
+    /**
+     * スキャンした回数
+     *
+     * @return 回数
+     */
+    public long getScanCount() {
+        return scans.get();
+    }
+
+    /**
+     * 接続に失敗した回数
+     *
+     * @return 回数
+     */
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    /**
+     * 再認証した回数
+     *
+     * @return 回数
+     */
+    public long getRejoinCount() {
+        return rejoins.get();
+    }
+
+    /**
+     * 接続が切れた回数
+     *
+     * @return 回数
+     */
+    public long getLossCount() {
+        return losses.get();
+    }
+
+    /**
+     * スマートメーターをスキャン
+     *
+     * @return 接続パラメータ
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private WiSunLink scan() throws IOException, InterruptedException {
+        log.info("スマートメーターをスキャンします...");
+        scans.incrementAndGet();
+
+        transport.writeCommand(SKSCAN_COMMAND, SCAN_DURATION);
+        var info = transport.awaitResponse(JOIN_TIMEOUT, "EVENT 22").stream().filter(r -> r.startsWith("  "))
+                .map(r -> r.trim().split(":")).collect(Collectors.toMap(r -> r[0], r -> r[1]));
+        if (!info.containsKey("Channel")) {
+            throw new IOException("スマートメーターが見つかりませんでした。");
+        }
+        log.info("スマートメーターが見つかりました。 {}", info);
+
+        transport.writeCommand(SKLL64_COMMAND, info.get("Addr"));
+        var address = transport.awaitResponse(COMMAND_TIMEOUT, "FE80:").stream().reduce((a, b) -> b).get().trim();
+
+        return new WiSunLink(info.get("Channel"), info.get("Pan ID"), info.get("Addr"), address);
+    }
+
+    /**
+     * 接続パラメータを設定してPANA認証
+     *
+     * @param target 接続パラメータ
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private void joinTo(WiSunLink target) throws IOException, InterruptedException {
+        if (!isConfigured(target)) {
+            transport.writeCommand(SKSREG_COMMAND, "S2", target.getChannel());
+            if (!transport.awaitResponse(COMMAND_TIMEOUT, "OK", "FAIL").contains("OK")) {
+                throw new IOException("SKSREGコマンドが失敗しました。");
+            }
+
+            transport.writeCommand(SKSREG_COMMAND, "S3", target.getPanId());
+            if (!transport.awaitResponse(COMMAND_TIMEOUT, "OK", "FAIL").contains("OK")) {
+                throw new IOException("SKSREGコマンドが失敗しました。");
+            }
+        }
+
+        transport.writeCommand(SKJOIN_COMMAND, target.getAddress());
+        var responses = transport.awaitResponse(JOIN_TIMEOUT, "EVENT 24", "EVENT 25", "FAIL");
+        if (!responses.contains("OK")) {
+            throw new IOException("SKJOINコマンドが失敗しました。");
+        } else if (responses.stream().anyMatch(r -> r.startsWith("EVENT 24"))) {
+            throw new IOException("PANA接続に失敗しました。");
+        }
+    }
+
+    /**
+     * Wi-SUNモジュールのチャネルとPAN IDが設定済みか (プロセスを再起動してもモジュールの設定は残っている)
+     *
+     * @param target 接続パラメータ
+     * @return 設定済みの場合はtrue
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private boolean isConfigured(WiSunLink target) throws IOException, InterruptedException {
+        // EINFO <IPADDR> <ADDR64> <CHANNEL> <PANID> <ADDR16>
+        transport.writeCommand(SKINFO_COMMAND);
+        var responses = transport.awaitResponse(COMMAND_TIMEOUT, "OK", "FAIL");
+        for (var response : responses) {
+            var values = response.trim().split(" ");
+            if (values.length >= 5 && values[0].equals("EINFO")) {
+                try {
+                    return Integer.parseInt(values[3], 16) == Integer.parseInt(target.getChannel(), 16)
+                            && Integer.parseInt(values[4], 16) == Integer.parseInt(target.getPanId(), 16);
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 接続できた時の処理
+     *
+     * @param start 接続を始めた時刻(ミリ秒)
+     * @return スマートメーターのIPV6アドレス
+     */
+    private String joined(long start) {
+        var now = System.currentTimeMillis();
+        authenticatedAt = now;
+        lastJoinMillis = now - start;
+        joinSeconds.observe(lastJoinMillis / 1000.0);
+        state = State.UP;
+        joins.incrementAndGet();
+        log.info("スマートメーターに接続しました。({}ミリ秒)", lastJoinMillis);
+        return link.getAddress();
+    }
+}
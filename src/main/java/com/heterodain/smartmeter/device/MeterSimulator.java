@@ -0,0 +1,805 @@
+package com.heterodain.smartmeter.device;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.binary.Hex;
+
+import lombok.Setter;
+import lombok.var;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Wi-SUNモジュールとスマートメーターのシミュレーター
+ *
+ * SKSTACKコマンド(SKSETPWD、SKSETRBID、SKSCAN、SKLL64、SKSREG、SKINFO、SKJOIN、SKREJOIN、SKTERM、SKSENDTO)に応答し、
+ * SKSENDTOで送られたEchonet Lite要求には低圧スマート電力量メータとしてERXUDPで応答する。
+ * 応答の遅延、応答の欠落、壊れた行の混入を設定できるため、実機なしで試験や負荷試験ができる。
+ *
+ * ポート名で設定を指定できる。例: {@code sim:latency=100,jitter=50,loss=0.05,garbage=0.01,power=1200}
+ * 係数と積算電力量単位も変えられ、{@code coefficient=0}とすると係数(D3)を未実装のメーターとして読み出し不可応答を返す。
+ */
+@Slf4j
+public class MeterSimulator implements DevicePort {
+    private static final ZoneId JST = ZoneId.of("Asia/Tokyo");
+
+    // スマートメーターの接続パラメータ
+    private static final String CHANNEL = "21";
+    private static final String PAN_ID = "8888";
+    private static final String METER_ADDR = "001D129012345678";
+    private static final String METER_IPV6 = "FE80:0000:0000:0000:021D:1290:1234:5678";
+    // Wi-SUNモジュールのアドレス
+    private static final String MODULE_ADDR = "001D129000000001";
+    private static final String MODULE_IPV6 = "FE80:0000:0000:0000:021D:1290:0000:0001";
+
+    // Echonet Liteオブジェクト: 低圧スマート電力量メータ
+    private static final int EOJ_SMART_METER = 0x028801;
+    // Echonet Liteオブジェクト: コントローラ
+    private static final int EOJ_CONTROLLER = 0x05FF01;
+    // 積算電力量の有効桁数 (D7)
+    private static final int DIGITS = 6;
+    // 積算電力量計測値履歴の未計測値
+    private static final long NO_DATA = 0xFFFFFFFEL;
+    // 30分(ミリ秒)
+    private static final long SLOT = 30 * 60 * 1000;
+
+    // 応答の遅延(ミリ秒)
+    @Setter
+    private long latency = 50;
+    // 応答の遅延のばらつき(ミリ秒)
+    @Setter
+    private long jitter = 20;
+    // スキャンにかかる時間(ミリ秒)
+    @Setter
+    private long scanTime = 500;
+    // Echonet Lite応答を落とす確率
+    @Setter
+    private double lossRate;
+    // 応答の前に壊れた行を入れる確率
+    @Setter
+    private double garbageRate;
+    // 平均電力(W)
+    @Setter
+    private double meanPower = 800;
+    // 起動時の積算電力量(Wh)
+    @Setter
+    private double initialEnergy = 50_000_000;
+    // 係数 (D3) ※0の場合は未実装として読み出し不可応答を返す
+    @Setter
+    private long coefficient = 1;
+    // 積算電力量単位 (E1のコード)
+    @Setter
+    private int unit = 0x01;
+
+    // 乱数
+    private final Random random = new Random();
+    // 応答の遅延用タイマー
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        var t = new Thread(r, "meter-simulator");
+        t.setDaemon(true);
+        return t;
+    });
+    // 送信待ちの応答
+    private final BlockingQueue<byte[]> toHost = new LinkedBlockingQueue<>();
+    // 起動した時刻(ミリ秒)
+    private final long startTime = System.currentTimeMillis();
+
+    // ホストからの入力
+    private final HostOutput output = new HostOutput();
+    // ホストへの出力
+    private final HostInput input = new HostInput();
+
+    // Bルートパスワード
+    private volatile String password;
+    // BルートID
+    private volatile String routeBId;
+    // 設定されたチャネル
+    private volatile String channel = "33";
+    // 設定されたPAN ID
+    private volatile String panId = "FFFF";
+    // PANA認証済みか
+    private volatile boolean joined;
+    // 積算履歴収集日１
+    private volatile int historyDay;
+    // 積算履歴収集日時(ミリ秒) ※0の場合は最新のコマ
+    private volatile long history2Time;
+    // 積算履歴収集コマ数
+    private volatile int history2Slots = 1;
+    // クローズ済みか
+    private volatile boolean closed;
+
+    /**
+     * コンストラクタ (既定の設定)
+     */
+    public MeterSimulator() {
+    }
+
+    /**
+     * コンストラクタ
+     *
+     * @param name ポート名 ("sim:latency=100,loss=0.05"のように設定を指定できる)
+     */
+    public MeterSimulator(String name) {
+        var colon = name.indexOf(':');
+        if (colon < 0) {
+            return;
+        }
+        for (var option : name.substring(colon + 1).split(",")) {
+            var kv = option.split("=", 2);
+            if (kv.length != 2) {
+                continue;
+            }
+            var value = kv[1].trim();
+            switch (kv[0].trim()) {
+            case "latency":
+                latency = Long.parseLong(value);
+                break;
+            case "jitter":
+                jitter = Long.parseLong(value);
+                break;
+            case "scan":
+                scanTime = Long.parseLong(value);
+                break;
+            case "loss":
+                lossRate = Double.parseDouble(value);
+                break;
+            case "garbage":
+                garbageRate = Double.parseDouble(value);
+                break;
+            case "power":
+                meanPower = Double.parseDouble(value);
+                break;
+            case "energy":
+                initialEnergy = Double.parseDouble(value);
+                break;
+            case "coefficient":
+                coefficient = Long.parseLong(value);
+                break;
+            case "unit":
+                unit = Integer.parseInt(value, 16);
+                break;
+            case "seed":
+                random.setSeed(Long.parseLong(value));
+                break;
+            default:
+                log.warn("シミュレーターの設定[{}]は使えません。", kv[0]);
+                break;
+            }
+        }
+    }
+
+    @Override
+    public void open() throws IOException {
+        log.info("スマートメーターのシミュレーターを使います。");
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return input;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return output;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        timer.shutdownNow();
+    }
+
+    /**
+     * コマンドの処理
+     *
+     * @param line コマンド行
+     */
+    private void onCommand(String line) {
+        emit(line);
+        var args = line.split(" ");
+        switch (args[0]) {
+        case "SKSETPWD":
+            password = args.length > 2 ? args[2] : null;
+            emit("OK");
+            break;
+
+        case "SKSETRBID":
+            routeBId = args.length > 1 ? args[1] : null;
+            emit("OK");
+            break;
+
+        case "SKSCAN":
+            emit("OK");
+            if (password != null && routeBId != null) {
+                emitLater(scanTime, "EVENT 20 " + MODULE_IPV6, "EPANDESC", "  Channel:" + CHANNEL,
+                        "  Channel Page:09", "  Pan ID:" + PAN_ID, "  Addr:" + METER_ADDR, "  LQI:E1",
+                        "  PairID:" + routeBId.substring(Math.max(0, routeBId.length() - 8)),
+                        "EVENT 22 " + MODULE_IPV6);
+            } else {
+                emitLater(scanTime, "EVENT 22 " + MODULE_IPV6);
+            }
+            break;
+
+        case "SKLL64":
+            emit(args.length > 1 ? linkLocal(args[1]) : "FAIL ER06");
+            break;
+
+        case "SKSREG":
+            if (args.length > 2 && args[1].equals("S2")) {
+                channel = args[2];
+            } else if (args.length > 2 && args[1].equals("S3")) {
+                panId = args[2];
+            }
+            emit("OK");
+            break;
+
+        case "SKINFO":
+            emit(String.format("EINFO %s %s %s %s FFFE", MODULE_IPV6, MODULE_ADDR, channel, panId), "OK");
+            break;
+
+        case "SKJOIN":
+            emit("OK");
+            var accepted = args.length > 1 && args[1].equals(METER_IPV6) && sameHex(channel, CHANNEL)
+                    && sameHex(panId, PAN_ID) && password != null && routeBId != null;
+            joined = accepted;
+            emitLater(latency * 4, (accepted ? "EVENT 25 " : "EVENT 24 ") + METER_IPV6);
+            break;
+
+        case "SKREJOIN":
+            if (joined) {
+                emit("OK");
+                emitLater(latency * 4, "EVENT 25 " + METER_IPV6);
+            } else {
+                emit("FAIL ER10");
+            }
+            break;
+
+        case "SKTERM":
+            if (joined) {
+                joined = false;
+                emit("OK");
+                emitLater(latency, "EVENT 27 " + METER_IPV6);
+            } else {
+                emit("FAIL ER10");
+            }
+            break;
+
+        default:
+            emit("FAIL ER04");
+            break;
+        }
+    }
+
+    /**
+     * SKSENDTOの処理
+     *
+     * @param header コマンド行 (データ部を除く)
+     * @param data   Echonet Lite電文
+     */
+    private void onSendTo(String header, byte[] data) {
+        emit(header.trim(), "EVENT 21 " + METER_IPV6 + " 00", "OK");
+        var args = header.split(" ");
+        if (!joined || !args[2].equals(METER_IPV6)) {
+            return;
+        }
+
+        var response = respond(data);
+        if (response == null) {
+            return;
+        }
+        if (random.nextDouble() < lossRate) {
+            log.debug("シミュレーター: 応答を落とします。");
+            return;
+        }
+        emitLater(latency + (jitter > 0 ? (long) (random.nextDouble() * jitter) : 0),
+                String.format("ERXUDP %s %s 0E1A 0E1A %s 1 %04X %s", METER_IPV6, MODULE_IPV6, METER_ADDR,
+                        response.length, Hex.encodeHexString(response, false)));
+    }
+
+    /**
+     * Echonet Lite要求への応答電文を生成
+     *
+     * @param req 要求電文
+     * @return 応答電文 (応答しない場合はnull)
+     */
+    private byte[] respond(byte[] req) {
+        if (req.length < 12 || (req[0] & 0xFF) != 0x10 || (req[1] & 0xFF) != 0x81
+                || uint(req, 7, 3) != EOJ_SMART_METER) {
+            return null;
+        }
+        var esv = req[10] & 0xFF;
+        var opc = req[11] & 0xFF;
+
+        var props = new ByteArrayOutputStream();
+        var ok = true;
+        var pos = 12;
+        for (var i = 0; i < opc; i++) {
+            if (pos + 2 > req.length) {
+                return null;
+            }
+            var epc = req[pos] & 0xFF;
+            var pdc = req[pos + 1] & 0xFF;
+            var edt = Arrays.copyOfRange(req, pos + 2, Math.min(req.length, pos + 2 + pdc));
+            pos += 2 + pdc;
+
+            props.write(epc);
+            if (esv == 0x62) {
+                // Get
+                var value = get(epc);
+                if (value == null) {
+                    ok = false;
+                    props.write(0);
+                } else {
+                    props.write(value.length);
+                    props.write(value, 0, value.length);
+                }
+            } else if (esv == 0x61 || esv == 0x60) {
+                // SetC, SetI
+                if (!set(epc, edt)) {
+                    ok = false;
+                    props.write(pdc);
+                    props.write(edt, 0, edt.length);
+                } else {
+                    props.write(0);
+                }
+            } else {
+                return null;
+            }
+        }
+        if (esv == 0x60 && ok) {
+            return null;
+        }
+
+        var resEsv = esv == 0x62 ? (ok ? 0x72 : 0x52) : (esv == 0x61 ? (ok ? 0x71 : 0x51) : 0x50);
+        var res = new ByteArrayOutputStream();
+        res.write(0x10);
+        res.write(0x81);
+        res.write(req, 2, 2);
+        writeInt(res, EOJ_SMART_METER, 3);
+        writeInt(res, EOJ_CONTROLLER, 3);
+        res.write(resEsv);
+        res.write(opc);
+        var body = props.toByteArray();
+        res.write(body, 0, body.length);
+        return res.toByteArray();
+    }
+
+    /**
+     * プロパティ値読み出し
+     *
+     * @param epc プロパティ
+     * @return プロパティ値 (対応していない場合はnull)
+     */
+    private byte[] get(int epc) {
+        var now = System.currentTimeMillis();
+        var out = new ByteArrayOutputStream();
+        switch (epc) {
+        case 0x80:
+            // 動作状態
+            out.write(0x30);
+            break;
+
+        case 0xD3:
+            // 係数 (未実装の場合は読み出し不可)
+            if (coefficient == 0) {
+                return null;
+            }
+            writeInt(out, coefficient, 4);
+            break;
+
+        case 0xD7:
+            // 積算電力量有効桁数
+            out.write(DIGITS);
+            break;
+
+        case 0xE0:
+            // 積算電力量計測値(正方向)
+            writeInt(out, counter(energy(now)), 4);
+            break;
+
+        case 0xE1:
+            // 積算電力量単位
+            out.write(unit);
+            break;
+
+        case 0xE3:
+            // 積算電力量計測値(逆方向)
+            writeInt(out, 0, 4);
+            break;
+
+        case 0xE5:
+            // 積算履歴収集日１
+            out.write(historyDay);
+            break;
+
+        case 0xE7:
+            // 瞬時電力計測値
+            writeInt(out, power(now), 4);
+            break;
+
+        case 0xE8: {
+            // 瞬時電流計測値 (R相、T相 0.1A単位)
+            var amp = power(now) / 10;
+            var rRatio = 0.4 + random.nextDouble() * 0.2;
+            writeInt(out, Math.round(amp * rRatio), 2);
+            writeInt(out, Math.round(amp * (1 - rRatio)), 2);
+            break;
+        }
+
+        case 0xEA: {
+            // 定時積算電力量計測値(正方向)
+            var slot = now - Math.floorMod(now, SLOT);
+            var time = Instant.ofEpochMilli(slot).atZone(JST);
+            writeInt(out, time.getYear(), 2);
+            out.write(time.getMonthValue());
+            out.write(time.getDayOfMonth());
+            out.write(time.getHour());
+            out.write(time.getMinute());
+            out.write(time.getSecond());
+            writeInt(out, counter(energy(slot)), 4);
+            break;
+        }
+
+        case 0xE2: {
+            // 積算電力量計測値履歴１ (収集日の30分毎の積算電力量)
+            var day = ZonedDateTime.now(JST).truncatedTo(ChronoUnit.DAYS).minusDays(historyDay);
+            writeInt(out, historyDay, 2);
+            for (var i = 0; i < 48; i++) {
+                var time = day.plusMinutes(30 * i).toInstant().toEpochMilli();
+                writeInt(out, time > now ? NO_DATA : counter(energy(time)), 4);
+            }
+            break;
+        }
+
+        case 0xEC: {
+            // 積算電力量計測値履歴２ (収集日時から30分ずつ遡った積算電力量)
+            var slot = history2Time != 0 ? history2Time : now - Math.floorMod(now, SLOT);
+            writeHistory2Time(out, slot);
+            out.write(history2Slots);
+            for (var i = 0; i < history2Slots; i++) {
+                var time = slot - SLOT * i;
+                writeInt(out, time > now ? NO_DATA : counter(energy(time)), 4);
+                writeInt(out, time > now ? NO_DATA : 0, 4);
+            }
+            break;
+        }
+
+        case 0xED:
+            // 積算履歴収集日時及び収集コマ数
+            writeHistory2Time(out, history2Time != 0 ? history2Time : now - Math.floorMod(now, SLOT));
+            out.write(history2Slots);
+            break;
+
+        default:
+            return null;
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * 積算履歴収集日時を書き込む (年月日時分)
+     *
+     * @param out  出力先
+     * @param time 日時(ミリ秒)
+     */
+    private static void writeHistory2Time(ByteArrayOutputStream out, long time) {
+        var dateTime = Instant.ofEpochMilli(time).atZone(JST);
+        writeInt(out, dateTime.getYear(), 2);
+        out.write(dateTime.getMonthValue());
+        out.write(dateTime.getDayOfMonth());
+        out.write(dateTime.getHour());
+        out.write(dateTime.getMinute());
+    }
+
+    /**
+     * プロパティ値書き込み
+     *
+     * @param epc プロパティ
+     * @param edt プロパティ値
+     * @return 書き込めた場合はtrue
+     */
+    private boolean set(int epc, byte[] edt) {
+        if (epc == 0xE5 && edt.length == 1 && (edt[0] & 0xFF) <= 99) {
+            historyDay = edt[0] & 0xFF;
+            return true;
+        }
+        if (epc == 0xED && edt.length == 7) {
+            // 収集日時は30分単位、収集コマ数は1～12
+            var minute = edt[5] & 0xFF;
+            var slots = edt[6] & 0xFF;
+            if ((minute != 0 && minute != 30) || slots < 1 || slots > 12) {
+                return false;
+            }
+            try {
+                var time = ZonedDateTime.of((int) uint(edt, 0, 2), edt[2] & 0xFF, edt[3] & 0xFF, edt[4] & 0xFF, minute, 0,
+                        0, JST).toInstant().toEpochMilli();
+                if (time > System.currentTimeMillis()) {
+                    return false;
+                }
+                history2Time = time;
+                history2Slots = slots;
+                return true;
+            } catch (DateTimeException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 瞬時電力 (1時間周期で平均電力の±50%を変動し、ノイズを加える)
+     *
+     * @param time 時刻(ミリ秒)
+     * @return 瞬時電力(W)
+     */
+    private long power(long time) {
+        var wave = Math.sin(2 * Math.PI * (time % 3_600_000) / 3_600_000.0) * 0.5;
+        var noise = random.nextGaussian() * 0.1;
+        return Math.max(0, Math.round(meanPower * (1 + wave + noise)));
+    }
+
+    /**
+     * 積算電力量
+     *
+     * @param time 時刻(ミリ秒)
+     * @return 積算電力量(Wh)
+     */
+    private double energy(long time) {
+        return initialEnergy + meanPower * (time - startTime) / 3_600_000.0;
+    }
+
+    /**
+     * 積算電力量の計測値 (有効桁数を超えたら0に戻る)
+     *
+     * @param wh 積算電力量(Wh)
+     * @return 計測値
+     */
+    private long counter(double wh) {
+        var scale = new EnergyScale(coefficient == 0 ? 1 : coefficient, unit, DIGITS);
+        return Math.floorMod((long) Math.floor(wh / scale.getWhPerCount()), scale.getModulus());
+    }
+
+    /**
+     * MACアドレスからリンクローカルアドレスを生成
+     *
+     * @param addr MACアドレス
+     * @return IPV6アドレス
+     */
+    private static String linkLocal(String addr) {
+        if (addr.length() != 16) {
+            return "FAIL ER06";
+        }
+        var first = Integer.parseInt(addr.substring(0, 2), 16) ^ 0x02;
+        var iid = String.format("%02X", first) + addr.substring(2).toUpperCase();
+        return String.format("FE80:0000:0000:0000:%s:%s:%s:%s", iid.substring(0, 4), iid.substring(4, 8),
+                iid.substring(8, 12), iid.substring(12, 16));
+    }
+
+    /**
+     * 16進数の値が同じか
+     *
+     * @param a 値
+     * @param b 値
+     * @return 同じ場合はtrue
+     */
+    private static boolean sameHex(String a, String b) {
+        try {
+            return Integer.parseInt(a, 16) == Integer.parseInt(b, 16);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * ビッグエンディアンの符号なし整数を読む
+     *
+     * @param data   データ
+     * @param offset 開始位置
+     * @param size   バイト数
+     * @return 値
+     */
+    private static long uint(byte[] data, int offset, int size) {
+        var value = 0L;
+        for (var i = 0; i < size; i++) {
+            value = (value << 8) | (data[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * ビッグエンディアンの整数を書く
+     *
+     * @param out   出力先
+     * @param value 値
+     * @param size  バイト数
+     */
+    private static void writeInt(ByteArrayOutputStream out, long value, int size) {
+        for (var i = size - 1; i >= 0; i--) {
+            out.write((int) (value >> (i * 8)));
+        }
+    }
+
+    /**
+     * 応答をすぐに送信
+     *
+     * @param lines 応答行
+     */
+    private void emit(String... lines) {
+        for (var line : lines) {
+            if (random.nextDouble() < garbageRate) {
+                toHost.add(garbage());
+            }
+            toHost.add((line + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        }
+    }
+
+    /**
+     * 応答を遅れて送信
+     *
+     * @param delay 遅延(ミリ秒)
+     * @param lines 応答行
+     */
+    private void emitLater(long delay, String... lines) {
+        if (closed) {
+            return;
+        }
+        timer.schedule(() -> emit(lines), delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 壊れた行 (途中で切れたERXUDP、または意味のない文字列)
+     *
+     * @return 壊れた行
+     */
+    private byte[] garbage() {
+        String line;
+        if (random.nextBoolean()) {
+            line = "ERXUDP " + METER_IPV6.substring(0, random.nextInt(METER_IPV6.length()));
+        } else {
+            var chars = new char[1 + random.nextInt(40)];
+            chars[0] = '~';
+            for (var i = 1; i < chars.length; i++) {
+                chars[i] = (char) (0x21 + random.nextInt(0x5E));
+            }
+            line = new String(chars);
+        }
+        return (line + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * ホストからの入力 (コマンド行、またはSKSENDTOのヘッダとバイナリのデータ)
+     */
+    private class HostOutput extends OutputStream {
+        // 受け取ったバイト列
+        private byte[] buffer = new byte[1024];
+        // 受け取ったバイト数
+        private int size;
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("シミュレーターが閉じられました。");
+            }
+            if (size + len > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + len));
+            }
+            System.arraycopy(b, off, buffer, size, len);
+            size += len;
+            process();
+        }
+
+        /**
+         * 受け取ったバイト列からコマンドを切り出して処理
+         */
+        private void process() {
+            while (size > 0) {
+                var text = new String(buffer, 0, size, StandardCharsets.ISO_8859_1);
+                if (text.startsWith("SKSENDTO ")) {
+                    // SKSENDTO <HANDLE> <IPADDR> <PORT> <SEC> <DATALEN> <DATA>
+                    var pos = 0;
+                    for (var i = 0; i < 6 && pos >= 0; i++) {
+                        pos = text.indexOf(' ', pos + 1);
+                    }
+                    if (pos < 0) {
+                        return;
+                    }
+                    var header = text.substring(0, pos + 1);
+                    var args = header.split(" ");
+                    var length = Integer.parseInt(args[5], 16);
+                    if (size < pos + 1 + length) {
+                        return;
+                    }
+                    var data = Arrays.copyOfRange(buffer, pos + 1, pos + 1 + length);
+                    consume(pos + 1 + length);
+                    onSendTo(header, data);
+                } else {
+                    var end = text.indexOf("\r\n");
+                    if (end < 0) {
+                        return;
+                    }
+                    consume(end + 2);
+                    onCommand(text.substring(0, end));
+                }
+            }
+        }
+
+        /**
+         * 処理したバイト列を捨てる
+         *
+         * @param n バイト数
+         */
+        private void consume(int n) {
+            System.arraycopy(buffer, n, buffer, 0, size - n);
+            size -= n;
+        }
+    }
+
+    /**
+     * ホストへの出力
+     */
+    private class HostInput extends InputStream {
+        // 送信中の行
+        private byte[] current;
+        // 送信中の行の位置
+        private int pos;
+
+        @Override
+        public int read() throws IOException {
+            var b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (current == null || pos >= current.length) {
+                if (closed) {
+                    return -1;
+                }
+                try {
+                    current = toHost.poll(1000, TimeUnit.MILLISECONDS);
+                    pos = 0;
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            var n = Math.min(len, current.length - pos);
+            System.arraycopy(current, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return current == null ? 0 : current.length - pos;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
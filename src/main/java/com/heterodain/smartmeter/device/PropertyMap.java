@@ -0,0 +1,142 @@
+package com.heterodain.smartmeter.device;
+
+import java.time.DateTimeException;
+import java.util.Arrays;
+
+import lombok.var;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 応答電文からデコードしたプロパティ値
+ *
+ * 応答のプロパティ数は多くても十数個なので、配列に並べて線形探索する。
+ * 定義の無いプロパティ、EDTが空のプロパティ(Get_SNAで返らなかったもの)、EDTのサイズや内容が形式に合わないプロパティは含まない。
+ */
+@Slf4j
+public class PropertyMap {
+    // プロパティ
+    private EchonetProperty<?>[] keys;
+    // 値
+    private Object[] values;
+    // プロパティ数
+    private int size;
+
+    /**
+     * コンストラクタ
+     *
+     * @param capacity 格納するプロパティ数の見込み
+     */
+    public PropertyMap(int capacity) {
+        keys = new EchonetProperty<?>[Math.max(1, capacity)];
+        values = new Object[keys.length];
+    }
+
+    /**
+     * 応答電文をデコード
+     *
+     * @param frame 応答電文
+     * @return プロパティ値
+     */
+    public static PropertyMap decode(EchonetFrame frame) {
+        var map = new PropertyMap(frame.getOpc());
+        for (var i = 0; i < frame.getOpc(); i++) {
+            var property = EchonetProperty.of(frame.getEpc(i));
+            if (property == null || frame.getPdc(i) == 0) {
+                continue;
+            }
+            if (!property.accepts(frame.getPdc(i))) {
+                log.debug("EDTのサイズが形式に合わないため無視します。{} PDC={}", property, frame.getPdc(i));
+                continue;
+            }
+            try {
+                map.decode(property, frame, i);
+            } catch (DateTimeException e) {
+                log.debug("EDTの日時が不正なため無視します。{}", property, e);
+            }
+        }
+        return map;
+    }
+
+    /**
+     * プロパティをデコードして追加
+     *
+     * @param <T>      値の型
+     * @param property プロパティ
+     * @param frame    応答電文
+     * @param index    プロパティの位置
+     */
+    private <T> void decode(EchonetProperty<T> property, EchonetFrame frame, int index) {
+        put(property, property.getDecoder().decode(frame, index));
+    }
+
+    /**
+     * 値を追加 (同じプロパティがあれば置き換える)
+     *
+     * @param <T>      値の型
+     * @param property プロパティ
+     * @param value    値
+     */
+    public <T> void put(EchonetProperty<T> property, T value) {
+        for (var i = 0; i < size; i++) {
+            if (keys[i] == property) {
+                values[i] = value;
+                return;
+            }
+        }
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        keys[size] = property;
+        values[size] = value;
+        size++;
+    }
+
+    /**
+     * 値を取得
+     *
+     * @param <T>      値の型
+     * @param property プロパティ
+     * @return 値 (無い場合はnull)
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(EchonetProperty<T> property) {
+        for (var i = 0; i < size; i++) {
+            if (keys[i] == property) {
+                return (T) values[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 値があるか
+     *
+     * @param property プロパティ
+     * @return 値がある場合はtrue
+     */
+    public boolean contains(EchonetProperty<?> property) {
+        return get(property) != null;
+    }
+
+    /**
+     * プロパティ数
+     *
+     * @return プロパティ数
+     */
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        var sb = new StringBuilder("{");
+        for (var i = 0; i < size; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(keys[i]).append('=').append(values[i]);
+        }
+        return sb.append('}').toString();
+    }
+}
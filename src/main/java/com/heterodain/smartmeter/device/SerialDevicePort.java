@@ -0,0 +1,54 @@
+package com.heterodain.smartmeter.device;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.fazecast.jSerialComm.SerialPort;
+
+/**
+ * シリアルポート経由のWi-SUNモジュールとの入出力
+ */
+public class SerialDevicePort implements DevicePort {
+    // シリアルポート名
+    private final String name;
+    // シリアルポート
+    private SerialPort serial;
+
+    /**
+     * コンストラクタ
+     *
+     * @param name シリアルポート名
+     */
+    public SerialDevicePort(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public void open() throws IOException {
+        serial = SerialPort.getCommPort(name);
+        serial.setBaudRate(115200);
+        // 読み込みはタイムアウトしても受信スレッドで再試行する
+        serial.setComPortTimeouts(SerialPort.TIMEOUT_READ_SEMI_BLOCKING, 1000, 3000);
+        if (!serial.openPort()) {
+            throw new IOException("シリアルポート[" + name + "]を開けませんでした。");
+        }
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return serial.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return serial.getOutputStream();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (serial != null && serial.isOpen()) {
+            serial.closePort();
+        }
+    }
+}
@@ -0,0 +1,486 @@
+package com.heterodain.smartmeter.device;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import com.heterodain.smartmeter.metrics.MetricRegistry;
+
+import org.apache.commons.codec.binary.Hex;
+
+import lombok.Setter;
+import lombok.var;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * SKSTACKコマンドの非同期送受信
+ *
+ * 1本の受信スレッドがシリアルポートからの行を振り分ける。
+ * <ul>
+ * <li>ERXUDP: トランザクションID(TID)で送信済みのEchonet Lite要求と突き合わせ、{@link CompletableFuture}を完了させる</li>
+ * <li>EVENT: イベントリスナーに通知し、コマンド応答としてもキューに入れる</li>
+ * <li>その他: コマンド応答としてキューに入れる</li>
+ * </ul>
+ * コマンド応答のキューはEchonet Lite要求のSKSENDTOの応答(OK、FAIL)とも共有するため、コマンドを送る前に
+ * {@link #awaitIdle(long)}で要求の完了を待つ。Wi-SUNモジュールがコマンドをエコーする場合は、
+ * 送ったコマンドのエコーより前の行を捨てて応答とする。
+ */
+@Slf4j
+public class SkStackTransport implements Closeable {
+    // コマンド
+    private static final String SKSENDTO_COMMAND = "SKSENDTO 1 %s 0E1A 1 %04x ";
+
+    // 受信バッファサイズ(1行の最大長)
+    private static final int LINE_BUFFER_SIZE = 1024;
+    // コマンド応答キューのサイズ
+    private static final int RESPONSE_QUEUE_SIZE = 256;
+
+    // シリアル入力(行単位)
+    private final LineReader in;
+    // シリアル出力
+    private final OutputStream out;
+
+    // Echonet Lite電文デコーダ (受信スレッド専用)
+    private final EchonetFrameDecoder decoder = new EchonetFrameDecoder();
+    // デコード結果 (受信スレッド専用)
+    private final EchonetFrame frame = new EchonetFrame();
+
+    // コマンド応答
+    private final BlockingQueue<String> responses = new LinkedBlockingQueue<>(RESPONSE_QUEUE_SIZE);
+    // 応答待ちのEchonet Lite要求 (キーはTID)
+    private final Map<Integer, Request<?>> pendings = new ConcurrentHashMap<>();
+    // 送信待ちのEchonet Lite要求
+    private final Deque<Request<?>> sendQueue = new ArrayDeque<>();
+    // 同時に応答待ちにできる要求数
+    private final int window;
+    // 最後に割り当てたTID
+    private final AtomicInteger lastTid = new AtomicInteger();
+    // 応答待ちの要求数
+    private int inFlight;
+    // 最後に送ったコマンド
+    private volatile String lastCommand;
+    // Wi-SUNモジュールがコマンドをエコーするか (エコーを受信したら分かる)
+    private volatile boolean echo;
+
+    // デコードできなかったERXUDPの数
+    private final MetricRegistry.Counter decodeFailures;
+    // 対応する要求のない応答の数
+    private final MetricRegistry.Counter unmatched;
+
+    // 応答タイムアウト監視
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        var t = new Thread(r, "skstack-timer");
+        t.setDaemon(true);
+        return t;
+    });
+    // 受信スレッド
+    private Thread reader;
+    // クローズ済みか
+    private volatile boolean closed;
+
+    // EVENT受信時の通知先
+    @Setter
+    private volatile Consumer<String> eventListener = e -> {
+    };
+
+    /**
+     * コンストラクタ
+     *
+     * @param in     シリアル入力ストリーム
+     * @param out    シリアル出力ストリーム
+     * @param window 同時に応答待ちにできるEchonet Lite要求数
+     */
+    public SkStackTransport(InputStream in, OutputStream out, int window) {
+        this(in, out, window, "default");
+    }
+
+    /**
+     * コンストラクタ
+     *
+     * @param in     シリアル入力ストリーム
+     * @param out    シリアル出力ストリーム
+     * @param window 同時に応答待ちにできるEchonet Lite要求数
+     * @param name   メトリクスのラベルに使う名前
+     */
+    public SkStackTransport(InputStream in, OutputStream out, int window, String name) {
+        this.in = new LineReader(in, LINE_BUFFER_SIZE);
+        this.out = out;
+        this.window = window;
+
+        var metrics = MetricRegistry.getDefault();
+        decodeFailures = metrics.counter("smartmeter_erxudp_decode_failures_total",
+                "Echonet Lite電文としてデコードできなかったERXUDPの数", "meter", name);
+        unmatched = metrics.counter("smartmeter_echonet_unmatched_total", "対応する要求のないEchonet Lite応答の数", "meter",
+                name);
+        metrics.gauge("smartmeter_echonet_inflight", "応答待ちのEchonet Lite要求数", () -> pendings.size(), "meter", name);
+        metrics.gauge("smartmeter_echonet_queued", "送信待ちのEchonet Lite要求数", () -> {
+            synchronized (sendQueue) {
+                return sendQueue.size();
+            }
+        }, "meter", name);
+    }
+
+    /**
+     * 受信スレッド開始
+     */
+    public void start() {
+        reader = new Thread(this::receiveLoop, "skstack-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * コマンド送信
+     *
+     * 以前のコマンドの未処理の応答は破棄する。
+     *
+     * @param command コマンド文字列
+     * @param args    コマンドのパラメータ
+     * @throws IOException
+     */
+    public void writeCommand(String command, Object... args) throws IOException {
+        var data = String.format(command, args);
+        log.trace("Send: {}", data);
+
+        responses.clear();
+        lastCommand = data;
+        write((data + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * 特定の文字列で始まる応答が返るまで待つ
+     *
+     * コマンドのエコーを受信するまでの行は、前に送ったコマンドやSKSENDTOの応答なので捨てる。
+     * エコーは応答に含めない。
+     *
+     * @param timeout 1行あたりの待ち時間(ミリ秒)
+     * @param aborts  特定の文字列
+     * @return 受信した応答
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public List<String> awaitResponse(long timeout, String... aborts) throws IOException, InterruptedException {
+        var results = new ArrayList<String>();
+        var command = lastCommand;
+        var echoed = false;
+        while (true) {
+            var line = responses.poll(timeout, TimeUnit.MILLISECONDS);
+            if (line == null) {
+                throw new IOException("コマンドの応答がありませんでした。" + Arrays.toString(aborts));
+            }
+            if (!echoed && line.equals(command)) {
+                echo = true;
+                echoed = true;
+                results.clear();
+                continue;
+            }
+            if (echo && !echoed) {
+                log.debug("前のコマンドの応答を捨てます。{}", line);
+                continue;
+            }
+            results.add(line);
+            if (Arrays.stream(aborts).anyMatch(a -> line.startsWith(a))) {
+                break;
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Echonet Lite要求を送信
+     *
+     * 要求は送信キューに入れた順に、応答待ちが{@code window}個に達するまで続けて送信する。
+     * 電文のTIDは送信時に割り当てたものに書き換える。
+     *
+     * @param <R>     応答データ型
+     * @param address 送信先のIPV6アドレス
+     * @param data    Echonet Lite電文
+     * @param timeout 応答の待ち時間(ミリ秒)
+     * @param handler 応答電文を変換する関数 (受信スレッドで呼ばれる。不可応答も渡すため、受け付けない応答では例外を投げる)
+     * @return 応答データ
+     */
+    public <R> CompletableFuture<R> request(String address, byte[] data, long timeout,
+            Function<EchonetFrame, R> handler) {
+        var request = new Request<R>(address, data, timeout, handler);
+        if (closed) {
+            request.future.completeExceptionally(new IOException("シリアルポートが閉じられました。"));
+            return request.future;
+        }
+
+        synchronized (sendQueue) {
+            sendQueue.add(request);
+        }
+        dispatch();
+        return request.future;
+    }
+
+    /**
+     * 送信待ち、応答待ちの要求が無くなるまで待つ
+     *
+     * @param timeout 待ち時間(ミリ秒)
+     * @return 要求が無くなった場合はtrue
+     * @throws InterruptedException
+     */
+    public boolean awaitIdle(long timeout) throws InterruptedException {
+        var deadline = System.currentTimeMillis() + timeout;
+        synchronized (sendQueue) {
+            while (inFlight > 0 || !sendQueue.isEmpty()) {
+                var remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                sendQueue.wait(remaining);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 送信待ち、応答待ちの要求を全て失敗させる
+     *
+     * @param cause 失敗の原因
+     */
+    public void failAll(Throwable cause) {
+        List<Request<?>> requests;
+        synchronized (sendQueue) {
+            requests = new ArrayList<>(sendQueue);
+            sendQueue.clear();
+        }
+        requests.addAll(pendings.values());
+        requests.forEach(r -> r.future.completeExceptionally(cause));
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        timer.shutdownNow();
+        failAll(new IOException("シリアルポートが閉じられました。"));
+        in.close();
+        if (reader != null) {
+            reader.interrupt();
+        }
+    }
+
+    /**
+     * 送信可能な要求を送信
+     */
+    private void dispatch() {
+        // 送信順が入れ替わらないよう、キューから取り出して書き込むまでをロックする
+        synchronized (sendQueue) {
+            while (inFlight < window && !sendQueue.isEmpty()) {
+                var request = sendQueue.poll();
+                if (request.future.isDone()) {
+                    // 送信前に取り消された要求は送らない (応答待ちにすると枠が空かなくなる)
+                    continue;
+                }
+                do {
+                    request.tid = allocateTid();
+                } while (pendings.putIfAbsent(request.tid, request) != null);
+                inFlight++;
+                if (request.future.isDone()) {
+                    // TIDを割り当てる間に取り消された場合は、完了時に外せなかったのでここで外す
+                    request.release();
+                    continue;
+                }
+
+                try {
+                    request.send();
+                } catch (Exception e) {
+                    request.future.completeExceptionally(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * TIDを割り当てる (0001～FFFFを順番に使う)
+     *
+     * @return TID
+     */
+    private int allocateTid() {
+        return lastTid.updateAndGet(t -> t >= 0xFFFF ? 1 : t + 1);
+    }
+
+    /**
+     * シリアルポートに書き込む
+     *
+     * @param bytes データ
+     * @throws IOException
+     */
+    private void write(byte[] bytes) throws IOException {
+        synchronized (out) {
+            out.write(bytes);
+            out.flush();
+        }
+    }
+
+    /**
+     * 受信スレッドの処理
+     */
+    private void receiveLoop() {
+        while (!closed) {
+            try {
+                if (!in.readLine()) {
+                    break;
+                }
+                log.trace("Receive: {}", in);
+                if (in.startsWith("ERXUDP ")) {
+                    if (decoder.decode(in.getBuffer(), in.getOffset(), in.getLength(), frame)) {
+                        onFrame();
+                    } else {
+                        decodeFailures.inc();
+                        log.debug("ERXUDPをデコードできませんでした。{}", in);
+                    }
+                    continue;
+                }
+
+                var line = in.toString();
+                if (line.startsWith("EVENT ")) {
+                    eventListener.accept(line);
+                }
+                while (!responses.offer(line)) {
+                    responses.poll();
+                }
+
+            } catch (InterruptedIOException ignore) {
+                // 読み込みタイムアウト
+            } catch (Exception e) {
+                if (!closed) {
+                    log.warn("シリアルポートの読み込みに失敗しました。", e);
+                    try {
+                        Thread.sleep(1000);
+                    } catch (InterruptedException ie) {
+                        break;
+                    }
+                }
+            }
+        }
+        log.debug("受信スレッドを終了します。");
+    }
+
+    /**
+     * Echonet Lite電文受信時の処理
+     */
+    private void onFrame() {
+        var esv = frame.getEsv();
+        if (esv == 0x73 || esv == 0x74) {
+            // プロパティ値通知
+            log.debug("Echonet Lite通知を受信しました。ESV={}", String.format("%02X", esv));
+            return;
+        }
+
+        var request = pendings.get(frame.getTid());
+        if (request == null) {
+            unmatched.inc();
+            log.debug("対応する要求のないEchonet Lite応答を受信しました。TID={}", String.format("%04X", frame.getTid()));
+            return;
+        }
+
+        // 不可応答も応答電文として渡し、受け付けるかは要求ごとの関数で判断する
+        request.complete();
+    }
+
+    /**
+     * Echonet Lite要求
+     *
+     * @param <R> 応答データ型
+     */
+    private class Request<R> {
+        // 送信先のIPV6アドレス
+        private final String address;
+        // Echonet Lite電文
+        private final byte[] data;
+        // トランザクションID (送信時に割り当てる)
+        private int tid;
+        // 応答の待ち時間(ミリ秒)
+        private final long timeout;
+        // 応答電文を変換する関数
+        private final Function<EchonetFrame, R> handler;
+        // 応答データ
+        private final CompletableFuture<R> future = new CompletableFuture<>();
+        // タイムアウト監視
+        private ScheduledFuture<?> timeoutTask;
+
+        Request(String address, byte[] data, long timeout, Function<EchonetFrame, R> handler) {
+            this.address = address;
+            this.data = data.clone();
+            this.timeout = timeout;
+            this.handler = handler;
+            future.whenComplete((r, e) -> release());
+        }
+
+        /**
+         * 送信
+         *
+         * @throws IOException
+         */
+        void send() throws IOException {
+            data[2] = (byte) (tid >> 8);
+            data[3] = (byte) tid;
+
+            var command = String.format(SKSENDTO_COMMAND, address, data.length);
+            if (log.isTraceEnabled()) {
+                log.trace("Send: {}{}", command, Hex.encodeHexString(data, false));
+            }
+
+            var header = command.getBytes(StandardCharsets.ISO_8859_1);
+            var bytes = Arrays.copyOf(header, header.length + data.length);
+            System.arraycopy(data, 0, bytes, header.length, data.length);
+
+            timeoutTask = timer.schedule(() -> future.completeExceptionally(new TimeoutException(
+                    String.format("スマートメーターから応答がありませんでした。TID=%04X", tid))), timeout,
+                    TimeUnit.MILLISECONDS);
+            write(bytes);
+        }
+
+        /**
+         * 受信した電文で完了させる (受信スレッドで呼ばれる)
+         */
+        void complete() {
+            try {
+                future.complete(handler.apply(frame));
+            } catch (RuntimeException e) {
+                future.completeExceptionally(e);
+            }
+        }
+
+        /**
+         * 完了時に応答待ちから外して次の要求を送信
+         */
+        private void release() {
+            if (timeoutTask != null) {
+                timeoutTask.cancel(false);
+            }
+            if (pendings.remove(tid, this)) {
+                synchronized (sendQueue) {
+                    inFlight--;
+                    sendQueue.notifyAll();
+                }
+                if (!closed) {
+                    dispatch();
+                }
+            }
+        }
+    }
+}
@@ -1,33 +1,35 @@
 package com.heterodain.smartmeter.device;
 
-import java.io.BufferedReader;
 import java.io.Closeable;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Function;
-import java.util.stream.Collectors;
 
+import lombok.Getter;
+import lombok.Setter;
 import lombok.var;
 import lombok.extern.slf4j.Slf4j;
 
-import com.fazecast.jSerialComm.SerialPort;
+import com.heterodain.smartmeter.metrics.MetricRegistry;
 import com.heterodain.smartmeter.model.CurrentPower;
+import com.heterodain.smartmeter.model.EnergyReading;
 import com.heterodain.smartmeter.model.HistoryPower;
+import com.heterodain.smartmeter.model.WiSunLink;
 import com.heterodain.smartmeter.model.CurrentPower.Accumu30Power;
 
-import org.apache.commons.codec.DecoderException;
-import org.apache.commons.codec.binary.Hex;
-
 @Slf4j
 public class SmartMeter implements Closeable {
     private static final ZoneId JST = ZoneId.of("Asia/Tokyo");
@@ -35,124 +37,186 @@ public class SmartMeter implements Closeable {
     // コマンド
     private static final String SKSETPWD_COMMAND = "SKSETPWD C %s";
     private static final String SKSETRBID_COMMAND = "SKSETRBID %s";
-    private static final String SKSCAN_COMMAND = "SKSCAN 2 FFFFFFFF %X";
-    private static final String SKLL64_COMMAND = "SKLL64 %s";
-    private static final String SKSREG_COMMAND = "SKSREG %s %s";
-    private static final String SKJOIN_COMMAND = "SKJOIN %s";
-    private static final String SKSENDTO_COMMAND = "SKSENDTO 1 %s 0E1A 1 %04x ";
-
-    // Echonet Lite電文: 瞬時電力、瞬時電流、30分積算電力取得
-    private static final String EL_READ_POWER_FRAME = "1081000105FF010288016203E700E800EA00";
-    // Echonet Lite電文: 積算履歴収集日１設定
-    private static final String EL_WRITE_HISTORY1_DAY_FRAME = "1081000105FF010288016001E501%02x";
-    // Echonet Lite電文: 積算電力量計測値履歴１取得
-    private static final String EL_READ_HISTORY1_FRAME = "1081000105FF010288016201E200";
 
-    // シリアルポート名
-    private String serialPortName;
+    // Echonet Lite電文: 瞬時電力、瞬時電流取得 (毎回)
+    private static final byte[] EL_READ_POWER_FRAME = EchonetRequest.get(EchonetProperty.INSTANT_POWER,
+            EchonetProperty.INSTANT_CURRENT);
+    // Echonet Lite電文: 瞬時電力、瞬時電流、30分積算電力取得 (30分積算値が更新される頃だけ)
+    private static final byte[] EL_READ_POWER_ACCUMU30_FRAME = EchonetRequest.get(EchonetProperty.INSTANT_POWER,
+            EchonetProperty.INSTANT_CURRENT, EchonetProperty.ACCUMU30);
+    // Echonet Lite電文: 積算電力量計測値履歴１取得
+    private static final byte[] EL_READ_HISTORY1_FRAME = EchonetRequest.get(EchonetProperty.HISTORY1);
+    // Echonet Lite電文: 積算電力量計測値履歴２取得
+    private static final byte[] EL_READ_HISTORY2_FRAME = EchonetRequest.get(EchonetProperty.HISTORY2);
+    // Echonet Lite電文: 係数、積算電力量単位、積算電力量有効桁数取得 (接続後に1回だけ)
+    private static final byte[] EL_READ_SCALE_FRAME = EchonetRequest.get(EchonetProperty.COEFFICIENT,
+            EchonetProperty.ENERGY_UNIT, EchonetProperty.EFFECTIVE_DIGITS);
+
+    // Echonet Liteオブジェクト: 低圧スマート電力量メータ
+    private static final int EOJ_SMART_METER = 0x028801;
+    // Echonet Liteサービス: プロパティ値書き込み応答
+    private static final int ESV_SET_RES = 0x71;
+    // Echonet Liteサービス: プロパティ値読み出し応答
+    private static final int ESV_GET_RES = 0x72;
+    // Echonet Liteサービス: プロパティ値読み出し不可応答 (応答できたプロパティだけEDTが入る)
+    private static final int ESV_GET_SNA = 0x52;
+
+    // 30分積算値の間隔(ミリ秒)
+    private static final long ACCUMU30_INTERVAL = 30 * 60 * 1000;
+    /** 積算電力量計測値履歴２の1回で取得できる最大コマ数 */
+    public static final int HISTORY2_MAX_SLOTS = 12;
+
+    // コマンド応答の待ち時間(ミリ秒)
+    private static final long COMMAND_TIMEOUT = 5000;
+    // Echonet Lite応答の待ち時間(ミリ秒)
+    private static final long ECHONET_TIMEOUT = 10000;
+    // 同時に応答待ちにできるEchonet Lite要求数
+    private static final int ECHONET_WINDOW = 4;
+    // 接続状態の確認間隔(秒)
+    private static final long LINK_CHECK_INTERVAL = 10;
+
+    // Wi-SUNモジュールとの入出力
+    private final DevicePort port;
+    // メトリクスのラベルに使う名前 (init()の前に設定する)
+    @Setter
+    private String name = "default";
     // BルートID
     private String brouteId;
     // Bルートパスワード
     private String broutePassword;
 
-    // シリアルポート
-    private SerialPort serial;
-    // シリアル入力ストリーム
-    private BufferedReader in;
+    // SKSTACKコマンド送受信
+    private SkStackTransport transport;
+
+    // Wi-SUN接続の管理
+    @Getter
+    private LinkManager linkManager;
+    // 前回の接続パラメータ
+    private WiSunLink link;
+
+    // 接続状態の確認と再接続用のスレッド
+    private final ScheduledExecutorService linkThread = Executors.newSingleThreadScheduledExecutor(r -> {
+        var t = new Thread(r, "smartmeter-link");
+        t.setDaemon(true);
+        return t;
+    });
+    // 再接続中か
+    private final AtomicBoolean reconnecting = new AtomicBoolean();
+    // 接続済みか
+    private volatile boolean connected;
 
-    // スマートメーター情報
-    private Map<String, String> smartMeterInfo = new HashMap<>();
     // スマートメーターのIPV6アドレス
-    private String address;
+    private volatile String address;
 
-    // 最後に取得した30分積算値の時刻
+    // 最後に取得した30分積算値の時刻 ※受信スレッドからのみ参照
     private ZonedDateTime lastAccumu30Time;
-    // 最後に取得した30分積算値
-    private Long lastAccumu30Power;
+    // 最後に取得した30分積算値の計測値 ※受信スレッドからのみ参照
+    private Long lastAccumu30Count;
+    // 積算電力量計測値の換算 ※未取得の場合はnull
+    private volatile EnergyScale energyScale;
+    // 次に30分積算値を取得する時刻(ミリ秒) ※0の場合は毎回取得する
+    private volatile long nextAccumu30Millis;
 
     /**
      * コンストラクタ
      * 
-     * @param serialPortName シリアルポート名
+     * @param serialPortName シリアルポート名 ("sim"で始まる場合はシミュレーター)
      * @param brouteId       BルートID
      * @param broutePassword Bルートパスワード
      */
     public SmartMeter(String serialPortName, String brouteId, String broutePassword) {
-        this.serialPortName = serialPortName;
+        this(DevicePort.forName(serialPortName), brouteId, broutePassword);
+    }
+
+    /**
+     * コンストラクタ
+     * 
+     * @param port           Wi-SUNモジュールとの入出力
+     * @param brouteId       BルートID
+     * @param broutePassword Bルートパスワード
+     */
+    public SmartMeter(DevicePort port, String brouteId, String broutePassword) {
+        this.port = port;
         this.brouteId = brouteId;
         this.broutePassword = broutePassword;
     }
 
     /**
-     * スマートメーターに接続するための初期パラメータ設定
+     * 前回の接続パラメータを設定 (init()の前に呼ぶと、接続時にスキャンを省略できる)
      * 
-     * @throws IOException
+     * @param link 接続パラメータ
      */
-    public void init() throws IOException {
-        log.info("スマートメーターをスキャンします...");
-
-        serial = SerialPort.getCommPort(serialPortName);
-        serial.setBaudRate(115200);
-        serial.setComPortTimeouts(SerialPort.TIMEOUT_READ_SEMI_BLOCKING, 3000, 3000);
-        if (!serial.openPort()) {
-            throw new IOException("シリアルポート[" + serialPortName + "]を開けませんでした。");
-        }
+    public void setLink(WiSunLink link) {
+        this.link = link;
+    }
 
-        in = new BufferedReader(new InputStreamReader(serial.getInputStream(), StandardCharsets.ISO_8859_1));
+    /**
+     * 接続パラメータ取得
+     * 
+     * @return 接続パラメータ (スキャンしていない場合はnull)
+     */
+    public WiSunLink getLink() {
+        return linkManager != null && linkManager.getLink() != null ? linkManager.getLink() : link;
+    }
 
-        writeCommand(SKSETPWD_COMMAND, broutePassword);
-        if (!awaitResponse("OK", "FAIL").contains("OK")) {
+    /**
+     * スマートメーターに接続するための初期パラメータ設定
+     * 
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void init() throws IOException, InterruptedException {
+        port.open();
+
+        transport = new SkStackTransport(port.getInputStream(), port.getOutputStream(), ECHONET_WINDOW, name);
+        linkManager = new LinkManager(transport, link, () -> {
+            connected = false;
+            reconnect("lost", false);
+        }, name);
+        MetricRegistry.getDefault().gauge("smartmeter_link_up", "スマートメーターに接続済みか (1=接続済み)",
+                () -> connected ? 1 : 0, "meter", name);
+        transport.setEventListener(linkManager::onEvent);
+        transport.start();
+
+        transport.writeCommand(SKSETPWD_COMMAND, broutePassword);
+        if (!transport.awaitResponse(COMMAND_TIMEOUT, "OK", "FAIL").contains("OK")) {
             throw new IOException("SKSETPWDコマンドが失敗しました。");
         }
 
-        writeCommand(SKSETRBID_COMMAND, brouteId);
-        if (!awaitResponse("OK", "FAIL").contains("OK")) {
+        transport.writeCommand(SKSETRBID_COMMAND, brouteId);
+        if (!transport.awaitResponse(COMMAND_TIMEOUT, "OK", "FAIL").contains("OK")) {
             throw new IOException("SKSETRBIDコマンドが失敗しました。");
         }
+
+        linkThread.scheduleWithFixedDelay(this::checkLink, LINK_CHECK_INTERVAL, LINK_CHECK_INTERVAL, TimeUnit.SECONDS);
     }
 
     /**
-     * スマートメーターに接続
+     * スマートメーターに接続 (前回の接続パラメータがあれば、まずスキャンせずに接続する)
      * 
      * @throws IOException
      * @throws InterruptedException
      */
-    public void connect() throws IOException, InterruptedException {
-        serial.setComPortTimeouts(SerialPort.TIMEOUT_READ_BLOCKING, 20000, 20000);
-
-        writeCommand(SKSCAN_COMMAND, 6);
-        smartMeterInfo = awaitResponse("EVENT 22").stream().filter(r -> r.startsWith("  "))
-                .map(r -> r.trim().split(":")).collect(Collectors.toMap(r -> r[0], r -> r[1]));
-        if (!smartMeterInfo.containsKey("Channel")) {
-            throw new IOException("スマートメーターが見つかりませんでした。");
-        }
-
-        log.info("スマートメーターが見つかりました。 {}", smartMeterInfo);
-
-        serial.setComPortTimeouts(SerialPort.TIMEOUT_READ_SEMI_BLOCKING, 5000, 5000);
-
-        writeCommand(SKLL64_COMMAND, smartMeterInfo.get("Addr"));
-        address = awaitResponse("FE80:").stream().reduce((a, b) -> b).get().trim();
+    public synchronized void connect() throws IOException, InterruptedException {
+        connected = false;
+        transport.failAll(new IOException("スマートメーターに再接続します。"));
 
-        writeCommand(SKSREG_COMMAND, "S2", smartMeterInfo.get("Channel"));
-        if (!awaitResponse("OK", "FAIL").contains("OK")) {
-            throw new IOException("SKSREGコマンドが失敗しました。");
-        }
-
-        writeCommand(SKSREG_COMMAND, "S3", smartMeterInfo.get("Pan ID"));
-        if (!awaitResponse("OK", "FAIL").contains("OK")) {
-            throw new IOException("SKSREGコマンドが失敗しました。");
-        }
+        address = linkManager.join();
+        connected = true;
 
-        writeCommand(SKJOIN_COMMAND, address);
-        var responses = awaitResponse("EVENT 24", "EVENT 25", "FAIL");
-        if (!responses.contains("OK")) {
-            throw new IOException("SKJOINコマンドが失敗しました。");
-        } else if (responses.contains("EVENT 24")) {
-            throw new IOException("PANA接続に失敗しました。");
+        if (energyScale == null) {
+            energyScale = readEnergyScale();
         }
+    }
 
-        log.info("スマートメーターに接続しました。");
+    /**
+     * 積算電力量計測値の換算
+     * 
+     * @return 換算 (接続前は{@link EnergyScale#DEFAULT})
+     */
+    public EnergyScale getEnergyScale() {
+        var scale = energyScale;
+        return scale == null ? EnergyScale.DEFAULT : scale;
     }
 
     /**
@@ -161,62 +225,65 @@ public class SmartMeter implements Closeable {
      * @return 電力情報
      * @throws IOException
      * @throws InterruptedException
-     * @throws DecoderException
      */
-    public synchronized CurrentPower getCurrentPower() throws IOException, InterruptedException, DecoderException {
-        writeEchonetLite(EL_READ_POWER_FRAME);
-
-        CurrentPower result = processResponse(data -> {
-            if (data.startsWith("ERXUDP")) {
-                var res = data.trim().split(" ")[8];
-                var seoj = res.substring(8, 8 + 6);
-                var esv = res.substring(20, 20 + 2);
-                if ("028801".contentEquals(seoj) && "72".equals(esv)) {
-                    var power = new CurrentPower();
-
-                    var pos = 24;
-                    while (pos < res.length()) {
-                        var epc = res.substring(pos, pos + 2);
-                        pos += 2;
-                        var epcSize = Integer.parseInt(res.substring(pos, pos + 2), 16);
-                        pos += 2;
-                        var epcData = res.substring(pos, pos + epcSize * 2);
-                        pos += epcSize * 2;
-
-                        if ("E7".equals(epc)) {
-                            power.setInstantPower(epcData.startsWith("FF") ? 0L : Long.parseLong(epcData, 16));
-                            // 稀にマイナス値(FF...)が返ることがある。モーターなどから逆流しているのかも。
-
-                        } else if ("E8".equals(epc)) {
-                            power.setInstantRAmp(Long.parseLong(epcData.substring(0, 4), 16));
-                            power.setInstantTAmp(Long.parseLong(epcData.substring(4), 16));
-                            // 1A単位でしか取得できない
-
-                        } else if ("EA".equals(epc)) {
-                            var year = Integer.parseInt(epcData.substring(0, 4), 16);
-                            var month = Integer.parseInt(epcData.substring(4, 6), 16);
-                            var day = Integer.parseInt(epcData.substring(6, 8), 16);
-                            var hour = Integer.parseInt(epcData.substring(8, 10), 16);
-                            var min = Integer.parseInt(epcData.substring(10, 12), 16);
-                            var sec = Integer.parseInt(epcData.substring(12, 14), 16);
-                            var time = ZonedDateTime.of(year, month, day, hour, min, sec, 0, JST);
-                            var power30 = Long.parseLong(epcData.substring(14), 16) * 100;
-                            if (!time.equals(lastAccumu30Time)) {
-                                if (lastAccumu30Power != null) {
-                                    var accumu30 = new Accumu30Power(time, power30, power30 - lastAccumu30Power);
-                                    power.setAccumu30(accumu30);
-                                }
-                                lastAccumu30Time = time;
-                                lastAccumu30Power = power30;
-                            }
-                        }
-                    }
-                    return power;
+    public CurrentPower getCurrentPower() throws IOException, InterruptedException {
+        return await(getCurrentPowerAsync());
+    }
+
+    /**
+     * 現在の電力量取得(非同期)
+     * 
+     * 瞬時電力と瞬時電流は毎回取得し、30分積算電力は更新される頃(毎時0分と30分)から新しい値が取れるまでの間だけ取得する。
+     * 
+     * @return 電力情報
+     */
+    public CompletableFuture<CurrentPower> getCurrentPowerAsync() {
+        var frame = System.currentTimeMillis() >= nextAccumu30Millis ? EL_READ_POWER_ACCUMU30_FRAME
+                : EL_READ_POWER_FRAME;
+        return requestEchonetLite("current_power", frame, ESV_GET_RES, res -> {
+            var properties = PropertyMap.decode(res);
+            var power = new CurrentPower();
+
+            var instantPower = properties.get(EchonetProperty.INSTANT_POWER);
+            if (instantPower != null) {
+                // 稀にマイナス値(FF...)が返ることがある。モーターなどから逆流しているのかも。
+                power.setInstantPower(Math.max(0L, instantPower));
+            }
+
+            var current = properties.get(EchonetProperty.INSTANT_CURRENT);
+            if (current != null) {
+                power.setInstantRAmp(current.getRAmp());
+                power.setInstantTAmp(current.getTAmp());
+            }
+
+            var accumu30 = properties.get(EchonetProperty.ACCUMU30);
+            if (accumu30 != null && !accumu30.getTime().equals(lastAccumu30Time)) {
+                var time = accumu30.getTime();
+                var count = accumu30.getValue();
+                if (lastAccumu30Count != null) {
+                    var scale = getEnergyScale();
+                    power.setAccumu30(new Accumu30Power(time, scale.toWh(count),
+                            scale.deltaWh(lastAccumu30Count, count)));
                 }
+                lastAccumu30Time = time;
+                lastAccumu30Count = count;
+                // 次の30分積算値が記録されるまでは取得しない
+                nextAccumu30Millis = time.toInstant().toEpochMilli() + ACCUMU30_INTERVAL;
             }
-            return null;
+
+            log.debug("{}", power);
+            return power;
         });
-        return result;
+    }
+
+    /**
+     * プロパティ値の取得(非同期)
+     * 
+     * @param properties 取得するプロパティ
+     * @return プロパティ値 (スマートメーターが返さなかったプロパティは含まない)
+     */
+    public CompletableFuture<PropertyMap> getPropertiesAsync(EchonetProperty<?>... properties) {
+        return requestEchonetLite("properties", EchonetRequest.get(properties), ESV_GET_SNA, PropertyMap::decode);
     }
 
     /**
@@ -226,153 +293,300 @@ public class SmartMeter implements Closeable {
      * @return 電力履歴情報
      * @throws IOException
      * @throws InterruptedException
-     * @throws DecoderException
      */
-    public synchronized HistoryPower getBeforeDayPower(int beforeDays)
-            throws IOException, InterruptedException, DecoderException {
-        writeEchonetLite(String.format(EL_WRITE_HISTORY1_DAY_FRAME, beforeDays));
-        writeEchonetLite(EL_READ_HISTORY1_FRAME);
-
-        HistoryPower result = processResponse(data -> {
-            if (data.startsWith("ERXUDP")) {
-                var res = data.trim().split(" ")[8];
-                var seoj = res.substring(8, 8 + 6);
-                var esv = res.substring(20, 20 + 2);
-                if ("028801".contentEquals(seoj) && "72".equals(esv)) {
-                    var history = new HistoryPower();
+    public HistoryPower getBeforeDayPower(int beforeDays) throws IOException, InterruptedException {
+        return await(getBeforeDayPowerAsync(beforeDays));
+    }
 
-                    var pos = 24;
-                    while (pos < res.length()) {
-                        var epc = res.substring(pos, pos + 2);
-                        pos += 2;
-                        var epcSize = Integer.parseInt(res.substring(pos, pos + 2), 16);
-                        pos += 2;
-                        var epcData = res.substring(pos, pos + epcSize * 2);
-                        pos += epcSize * 2;
-
-                        if ("E2".equals(epc)) {
-                            var time = ZonedDateTime.now(JST).minusDays(beforeDays).truncatedTo(ChronoUnit.DAYS);
-                            history.setTime(time);
-                            for (var epcDataPos = 4; epcDataPos < epcSize * 2; epcDataPos += 8) {
-                                history.getAccumu30Powers()
-                                        .add(Long.parseLong(epcData.substring(epcDataPos, epcDataPos + 8), 16) * 100);
-                            }
+    /**
+     * 以前の電力履歴取得(非同期)
+     * 
+     * 積算履歴収集日の設定と履歴の取得を続けて送信するため、複数日分を続けて呼び出すと応答を待たずに送信される。
+     * 応答の収集日が要求と異なる場合は失敗とする。
+     * 
+     * @param beforeDays 遡る日数
+     * @return 電力履歴情報
+     */
+    public CompletableFuture<HistoryPower> getBeforeDayPowerAsync(int beforeDays) {
+        CompletableFuture<Void> write = requestEchonetLite("history1_day",
+                EchonetRequest.setC(EchonetProperty.HISTORY1_DAY, (byte) beforeDays), ESV_SET_RES, res -> null);
+        CompletableFuture<HistoryPower> read = requestEchonetLite("history1", EL_READ_HISTORY1_FRAME, ESV_GET_RES,
+                res -> {
+                    var history = new HistoryPower();
+                    var history1 = PropertyMap.decode(res).get(EchonetProperty.HISTORY1);
+                    if (history1 != null) {
+                        if (history1.getDay() != beforeDays) {
+                            throw new IllegalStateException(String.format("積算履歴収集日が一致しません。要求=%d 応答=%d",
+                                    beforeDays, history1.getDay()));
+                        }
+                        var time = ZonedDateTime.now(JST).minusDays(beforeDays).truncatedTo(ChronoUnit.DAYS);
+                        history.setTime(time);
+                        // 30分毎の積算電力 (未計測のコマはnull)
+                        var scale = getEnergyScale();
+                        for (var value : history1.getValues()) {
+                            history.getAccumu30Powers()
+                                    .add(value == EchonetProperty.NO_DATA ? null : scale.toWh(value));
                         }
                     }
+                    log.debug("{}", history);
                     return history;
-                }
-            }
-            return null;
-        });
+                });
 
-        return result;
+        return write.thenCombine(read, (w, r) -> r);
     }
 
     /**
-     * シリアルポートを閉じる
+     * 指定時刻から遡った30分毎の積算電力量取得(非同期)
+     * 
+     * 積算履歴収集日時及び収集コマ数(履歴２)の設定と履歴の取得を続けて送信する。応答の収集日時が要求と異なる場合は失敗とする。
+     * 
+     * @param time  最も新しいコマの時刻 (毎時0分または30分)
+     * @param slots コマ数 (1～{@value #HISTORY2_MAX_SLOTS})
+     * @return 時刻の古い順の積算電力量
      */
-    @Override
-    public void close() throws IOException {
-        if (in != null) {
-            in.close();
+    public CompletableFuture<List<EnergyReading>> getHistory2Async(ZonedDateTime time, int slots) {
+        if (slots < 1 || slots > HISTORY2_MAX_SLOTS) {
+            throw new IllegalArgumentException("コマ数が不正です。slots=" + slots);
         }
-        if (serial != null && serial.isOpen()) {
-            serial.closePort();
+        var jst = time.withZoneSameInstant(JST);
+        if (jst.getSecond() != 0 || jst.getNano() != 0 || jst.getMinute() % 30 != 0) {
+            throw new IllegalArgumentException("時刻が30分単位ではありません。time=" + time);
         }
+
+        CompletableFuture<Void> write = requestEchonetLite("history2_setting",
+                EchonetRequest.setC(EchonetProperty.HISTORY2_SETTING, (byte) (jst.getYear() >> 8),
+                        (byte) jst.getYear(), (byte) jst.getMonthValue(), (byte) jst.getDayOfMonth(),
+                        (byte) jst.getHour(), (byte) jst.getMinute(), (byte) slots),
+                ESV_SET_RES, res -> null);
+        CompletableFuture<List<EnergyReading>> read = requestEchonetLite("history2", EL_READ_HISTORY2_FRAME,
+                ESV_GET_RES, res -> {
+                    var history2 = PropertyMap.decode(res).get(EchonetProperty.HISTORY2);
+                    if (history2 == null) {
+                        throw new IllegalStateException("積算電力量計測値履歴２が返りませんでした。");
+                    }
+                    if (!history2.getTime().isEqual(jst)) {
+                        throw new IllegalStateException(String.format("積算履歴収集日時が一致しません。要求=%s 応答=%s", jst,
+                                history2.getTime()));
+                    }
+                    // 応答は新しい順なので、古い順に並べ替える
+                    var scale = getEnergyScale();
+                    var values = history2.getNormal();
+                    var readings = new ArrayList<EnergyReading>(values.length);
+                    for (var i = values.length - 1; i >= 0; i--) {
+                        readings.add(new EnergyReading(jst.minusMinutes(30L * i),
+                                values[i] == EchonetProperty.NO_DATA ? null : scale.toWh(values[i])));
+                    }
+                    log.debug("{}", readings);
+                    return readings;
+                });
+
+        return write.thenCombine(read, (w, r) -> r);
     }
 
     /**
-     * スマートメーターからの応答を処理する
+     * 期間内の30分毎の積算電力量を古い順に読み出す
      * 
-     * @param <R>  データ型
-     * @param func 応答を処理する関数
-     * @return 応答データ
-     * @throws IOException
-     * @throws InterruptedException
+     * 積算電力量計測値履歴２で{@value #HISTORY2_MAX_SLOTS}コマずつ取得し、次のまとまりは読み進める間に先に要求しておく。
+     * 取得に失敗した場合は、読み出し時に{@link java.io.UncheckedIOException}を投げる。
+     * 
+     * @param from 開始時刻 (30分単位に切り上げる)
+     * @param to   終了時刻 (30分単位に切り捨て、最新のコマより後は最新のコマまで)
+     * @return 積算電力量
      */
-    private <R> R processResponse(Function<String, R> func) throws IOException, InterruptedException {
-        R result = null;
-        do {
-            String data;
-            try {
-                data = readLine();
-            } catch (Exception e) {
-                if (result == null) {
-                    // スマートメーターから応答がなかった場合は再接続する
-                    connect();
-                    throw e;
-                }
-                break;
-            }
-            result = func.apply(data);
+    public Iterator<EnergyReading> readHistory(ZonedDateTime from, ZonedDateTime to) {
+        return new HistoryIterator(this, from, to);
+    }
 
-        } while (in.ready() || result == null);
+    /**
+     * Wi-SUNモジュールとの入出力を閉じる
+     */
+    @Override
+    public void close() throws IOException {
+        linkThread.shutdownNow();
+        if (transport != null) {
+            transport.close();
+        }
+        port.close();
+    }
 
-        log.debug("{}", result);
+    /**
+     * スマートメーターにEchonet Lite要求を送信
+     * 
+     * 応答がなかった場合はバックグラウンドで再接続する。
+     * 要求の種類ごとに応答時間と結果をメトリクスに記録する。
+     * 
+     * @param <R>     応答データ型
+     * @param type    要求の種類 (メトリクスのラベル)
+     * @param frame   Echonet Lite電文
+     * @param esv     期待する応答のサービス
+     * @param handler 応答電文を変換する関数
+     * @return 応答データ
+     */
+    private <R> CompletableFuture<R> requestEchonetLite(String type, byte[] frame, int esv,
+            Function<EchonetFrame, R> handler) {
+        var metrics = MetricRegistry.getDefault();
+        if (!connected) {
+            requestCounter(type, "disconnected").inc();
+            var future = new CompletableFuture<R>();
+            future.completeExceptionally(new IOException("スマートメーターに接続されていません。"));
+            return future;
+        }
 
-        return result;
+        var start = System.nanoTime();
+        CompletableFuture<R> future = transport.request(address, frame, ECHONET_TIMEOUT, res -> {
+            // 読み出し不可応答を期待する場合は、全てのプロパティを返した応答も受け付ける
+            var accepted = res.getEsv() == esv || (esv == ESV_GET_SNA && res.getEsv() == ESV_GET_RES);
+            if (res.getSeoj() == EOJ_SMART_METER && !accepted && (res.getEsv() & 0xF0) == 0x50) {
+                throw new IllegalStateException(
+                        String.format("スマートメーターが要求を受け付けませんでした。ESV=%02X", res.getEsv()));
+            }
+            if (res.getSeoj() != EOJ_SMART_METER || !accepted) {
+                throw new IllegalStateException(
+                        String.format("想定外の応答を受信しました。SEOJ=%06X ESV=%02X", res.getSeoj(), res.getEsv()));
+            }
+            return handler.apply(res);
+        });
+        future.whenComplete((r, e) -> {
+            if (e == null) {
+                metrics.histogram("smartmeter_echonet_request_seconds", "Echonet Lite要求の応答時間(秒)",
+                        MetricRegistry.LATENCY_BUCKETS, "meter", name, "type", type).observeSince(start);
+                requestCounter(type, "ok").inc();
+            } else if (e instanceof TimeoutException) {
+                requestCounter(type, "timeout").inc();
+                reconnect("timeout", false);
+            } else {
+                requestCounter(type, "error").inc();
+            }
+        });
+        return future;
     }
 
     /**
-     * シリアルポートから1行読み込む
+     * 係数、積算電力量単位、積算電力量有効桁数を取得して換算を作る
      * 
-     * @return 読み込んだ文字列
-     * @throws IOException
+     * 係数は未実装のメーターもあるため、返らなければ1とする。取得できなかった場合は既定の換算を使い、次の接続時に取り直す。
+     * 
+     * @return 換算 (取得できなかった場合はnull)
+     * @throws InterruptedException
      */
-    private String readLine() throws IOException {
-        var line = in.readLine();
-        log.trace("Receive: {}", line);
-        return line;
+    private EnergyScale readEnergyScale() throws InterruptedException {
+        try {
+            var properties = await(requestEchonetLite("scale", EL_READ_SCALE_FRAME, ESV_GET_SNA, PropertyMap::decode));
+            var coefficient = properties.get(EchonetProperty.COEFFICIENT);
+            var unit = properties.get(EchonetProperty.ENERGY_UNIT);
+            var digits = properties.get(EchonetProperty.EFFECTIVE_DIGITS);
+            if (unit == null || digits == null) {
+                throw new IOException("積算電力量単位または有効桁数が返りませんでした。" + properties);
+            }
+            var scale = new EnergyScale(coefficient == null ? 1 : coefficient, unit.intValue(), digits.intValue());
+            log.info("積算電力量の換算: {}", scale);
+            return scale;
+        } catch (IOException | IllegalArgumentException e) {
+            log.warn("積算電力量の単位を取得できませんでした。既定の換算({})を使います。", EnergyScale.DEFAULT, e);
+            return null;
+        }
     }
 
     /**
-     * シリアルポートにコマンド送信
+     * Echonet Lite要求数のカウンター取得
      * 
-     * @param command コマンド文字列
-     * @param args    コマンドのパラメータ
-     * @throws IOException
+     * @param type   要求の種類
+     * @param result 結果
+     * @return カウンター
      */
-    private void writeCommand(String command, Object... args) throws IOException {
-        var data = String.format(command, args);
-        log.trace("Send: {}", data);
+    private MetricRegistry.Counter requestCounter(String type, String result) {
+        return MetricRegistry.getDefault().counter("smartmeter_echonet_requests_total", "Echonet Lite要求数", "meter",
+                name, "type", type, "result", result);
+    }
 
-        var bytes = (data + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
-        serial.writeBytes(bytes, bytes.length);
+    /**
+     * 接続状態の確認
+     * 
+     * 接続が切れたままなら再接続し、PANAセッションの有効期限が近ければ再認証する。
+     */
+    private void checkLink() {
+        if (linkManager.getJoinCount() == 0) {
+            // 最初の接続は呼び出し元が行う
+            return;
+        }
+        if (!connected && linkManager.getState() == LinkManager.State.DOWN) {
+            reconnect("down", false);
+        } else if (linkManager.isRejoinDue()) {
+            log.info("PANAセッションの有効期限が近いため再認証します。");
+            reconnect("session_expiry", true);
+        }
     }
 
     /**
-     * シリアルポートから特定の文字列が返るまで待つ
+     * バックグラウンドで再接続(再接続中なら何もしない)
      * 
-     * @param aborts 特定の文字列
-     * @return シリアルポートから読み込んだ文字列
-     * @throws IOException
+     * @param reason 再接続の理由 (メトリクスのラベル)
+     * @param rejoin 先にPANA再認証を試みるか
      */
-    private List<String> awaitResponse(String... aborts) throws IOException {
-        var results = new ArrayList<String>();
-        while (true) {
-            var line = readLine();
-            results.add(line);
-            if (Arrays.stream(aborts).anyMatch(a -> line.startsWith(a))) {
-                break;
+    private void reconnect(String reason, boolean rejoin) {
+        if (!reconnecting.compareAndSet(false, true)) {
+            return;
+        }
+        MetricRegistry.getDefault().counter("smartmeter_reconnects_total", "バックグラウンドで再接続した回数", "meter", name,
+                "reason", reason).inc();
+        linkThread.execute(() -> {
+            try {
+                if (rejoin && tryRejoin()) {
+                    return;
+                }
+                // スマートメーターから応答がなかった場合は再接続する
+                connect();
+            } catch (InterruptedException ignore) {
+                // NOP
+            } catch (Exception e) {
+                log.warn("スマートメーターへの再接続に失敗しました。", e);
+            } finally {
+                reconnecting.set(false);
             }
+        });
+    }
+
+    /**
+     * PANA再認証
+     * 
+     * 再認証の間はEchonet Lite要求を受け付けず、送信済みの要求が終わってから再認証のコマンドを送る。
+     * 
+     * @return 再認証できた場合はtrue
+     * @throws InterruptedException
+     */
+    private synchronized boolean tryRejoin() throws InterruptedException {
+        connected = false;
+        if (!transport.awaitIdle(ECHONET_TIMEOUT)) {
+            transport.failAll(new IOException("PANA再認証のため要求を取り消しました。"));
+        }
+        try {
+            linkManager.rejoin();
+            connected = true;
+            return true;
+        } catch (IOException e) {
+            log.warn("PANA再認証に失敗しました。再接続します。", e);
+            return false;
         }
-        return results;
     }
 
     /**
-     * シリアルポートにEchonet Lite電文を送信
+     * 非同期処理の完了を待つ
      * 
-     * @param frame Echonet Lite電文
+     * @param <R>    データ型
+     * @param future 非同期処理
+     * @return 処理結果
      * @throws IOException
-     * @throws DecoderException
+     * @throws InterruptedException
      */
-    private void writeEchonetLite(String frame) throws IOException, DecoderException {
-        var frameBytes = Hex.decodeHex(frame);
-        var data = String.format(SKSENDTO_COMMAND, address, frameBytes.length);
-        log.trace("Send: {}{}", data, frame);
-
-        var bytes = data.getBytes(StandardCharsets.ISO_8859_1);
-        bytes = ByteBuffer.allocate(bytes.length + frameBytes.length).put(bytes).put(frameBytes).array();
-        serial.writeBytes(bytes, bytes.length);
+    private static <R> R await(CompletableFuture<R> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            var cause = e.getCause() instanceof CompletionException ? e.getCause().getCause() : e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause.getMessage(), cause);
+        }
     }
 }
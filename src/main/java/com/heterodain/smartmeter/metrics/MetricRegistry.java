@@ -0,0 +1,327 @@
+package com.heterodain.smartmeter.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+import lombok.var;
+
+/**
+ * メトリクスの登録先
+ *
+ * カウンター、ゲージ、ヒストグラムを名前とラベルごとに保持し、Prometheusのテキスト形式で書き出す。
+ * 同じ名前とラベルで登録した場合は登録済みのものを返す (ゲージは後から登録した値の取得元に置き換える)。
+ * 値の更新はロックせずに行うため、受信スレッドなどから呼んでも待たされない。
+ */
+public class MetricRegistry {
+    // 既定の登録先
+    private static final MetricRegistry DEFAULT = new MetricRegistry();
+
+    // 通信の待ち時間用のバケット(秒)
+    public static final double[] LATENCY_BUCKETS = { 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 20 };
+    // 接続時間用のバケット(秒)
+    public static final double[] CONNECT_BUCKETS = { 0.5, 1, 2.5, 5, 10, 20, 30, 60, 120 };
+
+    // メトリクス (キーは名前、名前順に書き出す)
+    private final Map<String, Family> families = new TreeMap<>();
+
+    /**
+     * 既定の登録先
+     *
+     * @return 登録先
+     */
+    public static MetricRegistry getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * カウンター取得 (無ければ登録)
+     *
+     * @param name   名前
+     * @param help   説明
+     * @param labels ラベル (名前と値を交互に指定)
+     * @return カウンター
+     */
+    public Counter counter(String name, String help, String... labels) {
+        return (Counter) family(name, help, "counter").metrics.computeIfAbsent(labels(labels), k -> new Counter());
+    }
+
+    /**
+     * ヒストグラム取得 (無ければ登録)
+     *
+     * @param name    名前
+     * @param help    説明
+     * @param buckets バケットの上限 (昇順)
+     * @param labels  ラベル (名前と値を交互に指定)
+     * @return ヒストグラム
+     */
+    public Histogram histogram(String name, String help, double[] buckets, String... labels) {
+        return (Histogram) family(name, help, "histogram").metrics.computeIfAbsent(labels(labels),
+                k -> new Histogram(buckets));
+    }
+
+    /**
+     * ゲージ登録 (登録済みの場合は値の取得元を置き換える)
+     *
+     * @param name     名前
+     * @param help     説明
+     * @param supplier 値の取得元
+     * @param labels   ラベル (名前と値を交互に指定)
+     */
+    public void gauge(String name, String help, DoubleSupplier supplier, String... labels) {
+        family(name, help, "gauge").metrics.put(labels(labels), new Gauge(supplier));
+    }
+
+    /**
+     * Prometheusのテキスト形式で書き出す
+     *
+     * @param out 書き込み先
+     * @throws IOException
+     */
+    public void write(Writer out) throws IOException {
+        Family[] snapshot;
+        synchronized (families) {
+            snapshot = families.values().toArray(new Family[0]);
+        }
+        for (var family : snapshot) {
+            out.write("# HELP " + family.name + " " + family.help + "\n");
+            out.write("# TYPE " + family.name + " " + family.type + "\n");
+            for (var entry : new TreeMap<>(family.metrics).entrySet()) {
+                entry.getValue().write(out, family.name, entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * 名前ごとのメトリクス取得 (無ければ登録)
+     *
+     * @param name 名前
+     * @param help 説明
+     * @param type 種類
+     * @return 名前ごとのメトリクス
+     */
+    private Family family(String name, String help, String type) {
+        synchronized (families) {
+            var family = families.computeIfAbsent(name, n -> new Family(n, help, type));
+            if (!family.type.equals(type)) {
+                throw new IllegalArgumentException("メトリクス[" + name + "]は" + family.type + "として登録済みです。");
+            }
+            return family;
+        }
+    }
+
+    /**
+     * ラベルを書き出し用の文字列に変換
+     *
+     * @param labels ラベル (名前と値を交互に指定)
+     * @return "name="value",..." (ラベルが無い場合は空文字)
+     */
+    private static String labels(String... labels) {
+        if ((labels.length & 1) != 0) {
+            throw new IllegalArgumentException("ラベルは名前と値を交互に指定してください。");
+        }
+        var sb = new StringBuilder();
+        for (var i = 0; i < labels.length; i += 2) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(labels[i]).append("=\"");
+            var value = labels[i + 1] == null ? "" : labels[i + 1];
+            for (var j = 0; j < value.length(); j++) {
+                var c = value.charAt(j);
+                if (c == '\\' || c == '"') {
+                    sb.append('\\').append(c);
+                } else if (c == '\n') {
+                    sb.append("\\n");
+                } else {
+                    sb.append(c);
+                }
+            }
+            sb.append('"');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 数値を書き出し用の文字列に変換
+     *
+     * @param value 数値
+     * @return 文字列
+     */
+    private static String format(double value) {
+        if (Double.isNaN(value)) {
+            return "NaN";
+        } else if (Double.isInfinite(value)) {
+            return value > 0 ? "+Inf" : "-Inf";
+        } else if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+
+    /**
+     * 名前ごとのメトリクス
+     */
+    private static class Family {
+        // 名前
+        private final String name;
+        // 説明
+        private final String help;
+        // 種類
+        private final String type;
+        // ラベルごとのメトリクス
+        private final Map<String, Metric> metrics = new ConcurrentHashMap<>();
+
+        Family(String name, String help, String type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    /**
+     * メトリクス
+     */
+    private interface Metric {
+        /**
+         * 書き出す
+         *
+         * @param out    書き込み先
+         * @param name   名前
+         * @param labels ラベル
+         * @throws IOException
+         */
+        void write(Writer out, String name, String labels) throws IOException;
+    }
+
+    /**
+     * カウンター
+     */
+    public static class Counter implements Metric {
+        // 値
+        private final LongAdder value = new LongAdder();
+
+        /**
+         * 1増やす
+         */
+        public void inc() {
+            value.increment();
+        }
+
+        /**
+         * 増やす
+         *
+         * @param n 増分
+         */
+        public void inc(long n) {
+            value.add(n);
+        }
+
+        /**
+         * 値
+         *
+         * @return 値
+         */
+        public long get() {
+            return value.sum();
+        }
+
+        @Override
+        public void write(Writer out, String name, String labels) throws IOException {
+            out.write(name + (labels.isEmpty() ? "" : "{" + labels + "}") + " " + get() + "\n");
+        }
+    }
+
+    /**
+     * ゲージ
+     */
+    private static class Gauge implements Metric {
+        // 値の取得元
+        private final DoubleSupplier supplier;
+
+        Gauge(DoubleSupplier supplier) {
+            this.supplier = supplier;
+        }
+
+        @Override
+        public void write(Writer out, String name, String labels) throws IOException {
+            out.write(name + (labels.isEmpty() ? "" : "{" + labels + "}") + " " + format(supplier.getAsDouble())
+                    + "\n");
+        }
+    }
+
+    /**
+     * ヒストグラム
+     */
+    public static class Histogram implements Metric {
+        // バケットの上限
+        private final double[] buckets;
+        // バケットごとの件数 (最後は上限なし)
+        private final LongAdder[] counts;
+        // 合計
+        private final DoubleAdder sum = new DoubleAdder();
+
+        Histogram(double[] buckets) {
+            this.buckets = buckets.clone();
+            counts = new LongAdder[buckets.length + 1];
+            for (var i = 0; i < counts.length; i++) {
+                counts[i] = new LongAdder();
+            }
+        }
+
+        /**
+         * 値を記録
+         *
+         * @param value 値
+         */
+        public void observe(double value) {
+            var i = 0;
+            while (i < buckets.length && value > buckets[i]) {
+                i++;
+            }
+            counts[i].increment();
+            sum.add(value);
+        }
+
+        /**
+         * 開始時刻からの経過時間を秒で記録
+         *
+         * @param startNanos 開始時刻 ({@link System#nanoTime()})
+         */
+        public void observeSince(long startNanos) {
+            observe((System.nanoTime() - startNanos) / 1e9);
+        }
+
+        /**
+         * 件数
+         *
+         * @return 件数
+         */
+        public long getCount() {
+            var count = 0L;
+            for (var c : counts) {
+                count += c.sum();
+            }
+            return count;
+        }
+
+        @Override
+        public void write(Writer out, String name, String labels) throws IOException {
+            var prefix = labels.isEmpty() ? "{" : "{" + labels + ",";
+            var cumulative = 0L;
+            for (var i = 0; i <= buckets.length; i++) {
+                cumulative += counts[i].sum();
+                var le = i < buckets.length ? format(buckets[i]) : "+Inf";
+                out.write(name + "_bucket" + prefix + "le=\"" + le + "\"} " + cumulative + "\n");
+            }
+            var suffix = labels.isEmpty() ? "" : "{" + labels + "}";
+            out.write(name + "_sum" + suffix + " " + format(sum.sum()) + "\n");
+            out.write(name + "_count" + suffix + " " + cumulative + "\n");
+        }
+    }
+}
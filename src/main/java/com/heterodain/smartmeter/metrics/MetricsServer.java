@@ -0,0 +1,98 @@
+package com.heterodain.smartmeter.metrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import lombok.var;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * メトリクスの公開 (Prometheusのスクレイプ先)
+ *
+ * JDK組み込みのHTTPサーバーで、GET /metrics にPrometheusのテキスト形式で応答する。
+ */
+@Slf4j
+public class MetricsServer implements Closeable {
+    // 応答のContent-Type
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    // 公開するメトリクス
+    private final MetricRegistry registry;
+    // HTTPサーバー
+    private final HttpServer server;
+    // HTTPサーバーのスレッド
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        var t = new Thread(r, "metrics-server");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * コンストラクタ (HTTPサーバーを開始する)
+     *
+     * @param registry 公開するメトリクス
+     * @param port     ポート番号
+     * @throws IOException
+     */
+    public MetricsServer(MetricRegistry registry, int port) throws IOException {
+        this.registry = registry;
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/metrics", this::handle);
+        server.setExecutor(executor);
+        server.start();
+        log.info("メトリクスを公開します。http://localhost:{}/metrics", server.getAddress().getPort());
+    }
+
+    /**
+     * 待ち受けているポート番号
+     *
+     * @return ポート番号
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * リクエストの処理
+     *
+     * @param exchange リクエストと応答
+     * @throws IOException
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            var body = new ByteArrayOutputStream(8192);
+            try (var out = new OutputStreamWriter(body, StandardCharsets.UTF_8)) {
+                registry.write(out);
+            }
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.size());
+            try (var os = exchange.getResponseBody()) {
+                body.writeTo(os);
+            }
+        } catch (IOException | RuntimeException e) {
+            log.warn("メトリクスの応答に失敗しました。", e);
+            throw e;
+        } finally {
+            exchange.close();
+        }
+    }
+}
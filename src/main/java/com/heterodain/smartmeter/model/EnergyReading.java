@@ -0,0 +1,18 @@
+package com.heterodain.smartmeter.model;
+
+import java.time.ZonedDateTime;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * 時刻ごとの積算電力量
+ */
+@AllArgsConstructor
+@Data
+public class EnergyReading {
+    // 時刻 (30分毎のコマ)
+    private ZonedDateTime time;
+    // 積算電力量(Wh) ※未計測のコマはnull
+    private Long energy;
+}
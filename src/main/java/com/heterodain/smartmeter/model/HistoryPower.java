@@ -13,6 +13,6 @@ import lombok.Data;
 public class HistoryPower {
     // 日時
     private ZonedDateTime time;
-    // 30分積算電力(Wh)
+    // 30分積算電力(Wh) ※未計測のコマはnull
     private List<Long> accumu30Powers = new ArrayList<>();
 }
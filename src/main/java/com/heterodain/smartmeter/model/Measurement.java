@@ -0,0 +1,60 @@
+package com.heterodain.smartmeter.model;
+
+import java.time.ZonedDateTime;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.Getter;
+
+/**
+ * 送信先に届ける計測値
+ */
+@Data
+@AllArgsConstructor
+public class Measurement {
+    // スマートメーターの名前 (1台だけの場合はnull)
+    private String meter;
+    // 種類
+    private Kind kind;
+    // 時刻
+    private ZonedDateTime time;
+    // 値 (並びは種類ごとの項目名の順、無い値はnull)
+    private Double[] values;
+
+    /**
+     * 計測値の種類
+     */
+    public enum Kind {
+        // 1分値: R相、T相の平均電力(W)、30分積算電力量(Wh) ※30分積算は毎時0分と30分のみ
+        MINUTE("rWatt", "tWatt", "accumu30"),
+        // 日計値: 1日の電力量(Wh)
+        DAY("energy");
+
+        // 項目名 (CSVの列名とJSONのフィールド名に使う)
+        @Getter
+        private final String[] fields;
+
+        Kind(String... fields) {
+            this.fields = fields;
+        }
+
+        /**
+         * 設定ファイル用の名前
+         *
+         * @return 名前 ("minute"、"day")
+         */
+        public String label() {
+            return name().toLowerCase();
+        }
+
+        /**
+         * 設定ファイル用の名前から変換
+         *
+         * @param label 名前 (大文字小文字は区別しない)
+         * @return 種類
+         */
+        public static Kind of(String label) {
+            return valueOf(label.toUpperCase());
+        }
+    }
+}
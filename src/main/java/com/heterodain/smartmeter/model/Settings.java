@@ -1,6 +1,14 @@
 package com.heterodain.smartmeter.model;
 
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+import lombok.AllArgsConstructor;
 import lombok.Getter;
+import lombok.NoArgsConstructor;
 import lombok.ToString;
 
 /**
@@ -17,6 +25,49 @@ public class Settings {
     private Ambient ambient2;
     // LineNotifyの設定
     private LineNotify lineNotify;
+    // 仮想スレッドで動かすか (Java 21以降)
+    private boolean virtualThreads;
+    // メトリクスを公開するポート番号 (0の場合は公開しない)
+    private int metricsPort;
+    // 電力情報を保存しておく日数 (0の場合は削除しない)
+    private int retentionDays = 400;
+    // 複数のスマートメーターの設定 (指定した場合はsmartMeter、ambient1、ambient2より優先)
+    private List<Meter> meters;
+    // 追加の送信先 (ambient1、ambient2とは別に送る)
+    private List<Sink> sinks;
+
+    /**
+     * 監視するスマートメーターの一覧
+     *
+     * metersが無い場合はsmartMeter、ambient1、ambient2を1台分として返す。
+     *
+     * @return スマートメーターごとの設定
+     */
+    @JsonIgnore
+    public List<Meter> getMeterList() {
+        if (meters != null && !meters.isEmpty()) {
+            return meters;
+        }
+        return Collections.singletonList(new Meter(null, smartMeter, ambient1, ambient2));
+    }
+
+    /**
+     * スマートメーターごとの設定情報
+     */
+    @Getter
+    @ToString
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Meter {
+        // 名前 (データの保存先とLINE通知に使う)
+        private String name;
+        // スマートメーターの設定
+        private SmartMeter smartMeter;
+        // Ambientの設定(1分値)
+        private Ambient ambient1;
+        // Ambientの設定(日計値)
+        private Ambient ambient2;
+    }
 
     /**
      * スマートメーターの設定情報
@@ -46,6 +97,40 @@ public class Settings {
         private String writeKey;
     }
 
+    /**
+     * 送信先の設定情報
+     */
+    @Getter
+    @ToString
+    public static class Sink {
+        // 種類 ("csv"、"http"、"ambient")
+        private String type;
+        // 名前 (送信待ちデータの保存先に使う、省略時は種類から決める)
+        private String name;
+        // 送るスマートメーターの名前 (省略時は全て)
+        private String meter;
+        // 送る計測値の種類 ("minute"、"day" 省略時は全て)
+        private List<String> kinds;
+        // 1回に送信する最大件数
+        private int batchSize = 10;
+        // 送信を待たせる最大時間(秒)
+        private int maxDelay = 60;
+        // 溜めておける最大件数
+        private int capacity = 7 * 1440;
+        // 出力先ディレクトリ (csv)
+        private String directory;
+        // 送信先のURL (http、ambient)
+        private String url;
+        // リクエストヘッダ (http)
+        private Map<String, String> headers;
+        // チャネルID (ambient)
+        private Integer channelId;
+        // リードキー (ambient)
+        private String readKey;
+        // ライトキー (ambient)
+        private String writeKey;
+    }
+
     /**
      * LINE Notifyの設定情報
      */
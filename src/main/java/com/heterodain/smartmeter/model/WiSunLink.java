@@ -0,0 +1,22 @@
+package com.heterodain.smartmeter.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * スマートメーターとのWi-SUN接続パラメータ (スキャン結果)
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class WiSunLink {
+    // チャネル (16進数)
+    private String channel;
+    // PAN ID (16進数)
+    private String panId;
+    // MACアドレス (16進数)
+    private String addr;
+    // IPV6アドレス
+    private String address;
+}
@@ -1,39 +1,54 @@
 package com.heterodain.smartmeter.service;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.time.LocalDate;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
 
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.heterodain.smartmeter.metrics.MetricRegistry;
 
+import lombok.AllArgsConstructor;
 import lombok.Data;
+import lombok.Getter;
 import lombok.var;
 import lombok.extern.slf4j.Slf4j;
 
 @Slf4j
 public class Ambient {
     private static final ZoneId UTC = ZoneId.of("UTC");
+    // APIのURL
+    public static final String DEFAULT_BASE_URL = "http://54.65.206.59";
 
     private static ObjectMapper om = new ObjectMapper();
 
+    // HTTPクライアント
+    private HttpClient http;
+    // APIのURL
+    private String baseUrl;
     // チャネルID
+    @Getter
     private int channelId;
     // READキー
     private String readKey;
     // WRITEキー
     private String writeKey;
 
+    // 送信のロック (仮想スレッドで送信間隔を待つ間にキャリアスレッドを占有しないよう、synchronizedは使わない)
+    private final ReentrantLock sendLock = new ReentrantLock();
     // 前回送信した時刻
     private Long beforeSend;
+    // 送信するJSONのバッファ
+    private final SendBuffer sendBuffer = new SendBuffer();
 
     /**
      * コンストラクタ
@@ -43,6 +58,33 @@ public class Ambient {
      * @param writeKey  WRITEキー
      */
     public Ambient(int channelId, String readKey, String writeKey) {
+        this(HttpClient.getDefault(), DEFAULT_BASE_URL, channelId, readKey, writeKey);
+    }
+
+    /**
+     * コンストラクタ
+     * 
+     * @param baseUrl   APIのURL (テスト用のサーバーに向ける場合に指定)
+     * @param channelId チャンネルID
+     * @param readKey   READキー
+     * @param writeKey  WRITEキー
+     */
+    public Ambient(String baseUrl, int channelId, String readKey, String writeKey) {
+        this(HttpClient.getDefault(), baseUrl, channelId, readKey, writeKey);
+    }
+
+    /**
+     * コンストラクタ
+     * 
+     * @param http      HTTPクライアント
+     * @param baseUrl   APIのURL (テスト用のサーバーに向ける場合に指定)
+     * @param channelId チャンネルID
+     * @param readKey   READキー
+     * @param writeKey  WRITEキー
+     */
+    public Ambient(HttpClient http, String baseUrl, int channelId, String readKey, String writeKey) {
+        this.http = http;
+        this.baseUrl = baseUrl;
         this.channelId = channelId;
         this.readKey = readKey;
         this.writeKey = writeKey;
@@ -56,53 +98,64 @@ public class Ambient {
      * @throws IOException
      * @throws InterruptedException
      */
-    public synchronized void send(ZonedDateTime ts, Double... datas) throws IOException, InterruptedException {
-        // 送信間隔が5秒以上になるように調整
-        if (beforeSend != null) {
-            long diff = System.currentTimeMillis() - beforeSend;
-            if (diff < 5000) {
-                Thread.sleep(5000 - diff);
+    public void send(ZonedDateTime ts, Double... datas) throws IOException, InterruptedException {
+        send(Collections.singletonList(new SendData(ts, datas)));
+    }
+
+    /**
+     * チャネルに複数時刻のデータをまとめて送信
+     * 
+     * @param sendDatas 送信データ
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void send(List<SendData> sendDatas) throws IOException, InterruptedException {
+        sendLock.lock();
+        try {
+            // 送信間隔が5秒以上になるように調整
+            if (beforeSend != null) {
+                long diff = System.currentTimeMillis() - beforeSend;
+                if (diff < 5000) {
+                    Thread.sleep(5000 - diff);
+                }
             }
-        }
 
-        // 送信するJSONを構築
-        var rootNode = om.createObjectNode();
-        rootNode.put("writeKey", this.writeKey);
-
-        var dataArrayNode = om.createArrayNode();
-        var dataNode = om.createObjectNode();
-        var utcTs = ts.withZoneSameInstant(UTC).toLocalDateTime();
-        dataNode.put("created", utcTs.format(DateTimeFormatter.ISO_LOCAL_DATE_TIME));
-        for (int i = 1; i <= datas.length; i++) {
-            if (datas[i - 1] != null) {
-                dataNode.put("d" + i, datas[i - 1]);
+            // 送信するJSONを構築 (バッファは使い回す)
+            sendBuffer.reset();
+            try (var gen = om.getFactory().createGenerator(sendBuffer)) {
+                AmbientJson.writeSendDatas(gen, writeKey, sendDatas);
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("body > " + sendBuffer.toString("UTF-8"));
             }
-        }
-        dataArrayNode.add(dataNode);
-        rootNode.set("data", dataArrayNode);
-
-        var jsonString = om.writeValueAsString(rootNode);
-
-        // HTTP POST
-        var url = "http://54.65.206.59/api/v2/channels/" + channelId + "/dataarray";
-        log.debug("request > " + url);
-        log.debug("body > " + jsonString);
-
-        var conn = (HttpURLConnection) new URL(url).openConnection();
-        conn.setRequestMethod("POST");
-        conn.setRequestProperty("Content-Type", "application/json");
-        conn.setConnectTimeout(10000);
-        conn.setReadTimeout(10000);
-        conn.setDoOutput(true);
-        try (var os = conn.getOutputStream()) {
-            os.write(jsonString.getBytes(StandardCharsets.UTF_8));
-        }
-        int resCode = conn.getResponseCode();
-        if (resCode != 200) {
-            throw new IOException("Ambient Response Code " + resCode);
-        }
 
-        beforeSend = System.currentTimeMillis();
+            // HTTP POST (応答時間と応答コードをメトリクスに記録)
+            var metrics = MetricRegistry.getDefault();
+            var channel = String.valueOf(channelId);
+            var url = baseUrl + "/api/v2/channels/" + channelId + "/dataarray";
+            var start = System.nanoTime();
+            int resCode;
+            try {
+                resCode = http.post(url, Collections.emptyMap(), "application/json", sendBuffer.array(),
+                        sendBuffer.size(), (code, body) -> code);
+            } catch (IOException e) {
+                metrics.counter("smartmeter_ambient_responses_total", "Ambientへの送信の応答数", "channel", channel,
+                        "code", "error").inc();
+                throw e;
+            } finally {
+                metrics.histogram("smartmeter_ambient_post_seconds", "Ambientへの送信にかかった時間(秒)",
+                        MetricRegistry.LATENCY_BUCKETS, "channel", channel).observeSince(start);
+            }
+            metrics.counter("smartmeter_ambient_responses_total", "Ambientへの送信の応答数", "channel", channel, "code",
+                    String.valueOf(resCode)).inc();
+            if (resCode != 200) {
+                throw new IOException("Ambient Response Code " + resCode);
+            }
+
+            beforeSend = System.currentTimeMillis();
+        } finally {
+            sendLock.unlock();
+        }
     }
 
     /**
@@ -114,23 +167,7 @@ public class Ambient {
      */
     public List<ReadData> read(LocalDate date) throws IOException {
         // HTTP GET
-        var url = "http://54.65.206.59/api/v2/channels/" + channelId + "/data?readKey=" + readKey + "&date="
-                + date.format(DateTimeFormatter.ISO_DATE);
-        log.debug("request > " + url);
-
-        var conn = (HttpURLConnection) new URL(url).openConnection();
-        conn.setRequestMethod("GET");
-        conn.setConnectTimeout(10000);
-        conn.setReadTimeout(20000);
-        var resCode = conn.getResponseCode();
-        if (resCode != 200) {
-            throw new IOException("Ambient Response Code " + resCode);
-        }
-
-        try (var is = conn.getInputStream()) {
-            return om.readValue(is, new TypeReference<List<ReadData>>() {
-            });
-        }
+        return readDatas(dataUrl(date));
     }
 
     /**
@@ -142,28 +179,8 @@ public class Ambient {
      * @throws IOException
      */
     public List<ReadData> read(ZonedDateTime start, ZonedDateTime end) throws IOException {
-        var utcStart = start.withZoneSameInstant(UTC).toLocalDateTime();
-        var utcEnd = end.withZoneSameInstant(UTC).toLocalDateTime();
-
         // HTTP GET
-        var url = "http://54.65.206.59/api/v2/channels/" + channelId + "/data?readKey=" + readKey;
-        url += "&start=" + URLEncoder.encode(utcStart.format(DateTimeFormatter.ISO_DATE_TIME), "UTF-8");
-        url += "&end=" + URLEncoder.encode(utcEnd.format(DateTimeFormatter.ISO_DATE_TIME), "UTF-8");
-        log.debug("request > " + url);
-
-        var conn = (HttpURLConnection) new URL(url).openConnection();
-        conn.setRequestMethod("GET");
-        conn.setConnectTimeout(10000);
-        conn.setReadTimeout(20000);
-        var resCode = conn.getResponseCode();
-        if (resCode != 200) {
-            throw new IOException("Ambient Response Code " + resCode);
-        }
-
-        try (var is = conn.getInputStream()) {
-            return om.readValue(is, new TypeReference<List<ReadData>>() {
-            });
-        }
+        return readDatas(dataUrl(start, end));
     }
 
     /**
@@ -175,21 +192,145 @@ public class Ambient {
      */
     public List<ReadData> read(int n) throws IOException {
         // HTTP GET
-        var url = "http://54.65.206.59/api/v2/channels/" + channelId + "/data?readKey=" + readKey + "&n=" + n;
-        log.debug("request > " + url);
-
-        var conn = (HttpURLConnection) new URL(url).openConnection();
-        conn.setRequestMethod("GET");
-        conn.setConnectTimeout(10000);
-        conn.setReadTimeout(20000);
-        var resCode = conn.getResponseCode();
-        if (resCode != 200) {
-            throw new IOException("Ambient Response Code " + resCode);
-        }
+        return readDatas(dataUrl(n));
+    }
+
+    /**
+     * 1日分のデータを列形式で取得
+     * 
+     * @param date 日付
+     * @return 1日分のデータ
+     * @throws IOException
+     */
+    public AmbientSeries readSeries(LocalDate date) throws IOException {
+        return readSeries(dataUrl(date));
+    }
+
+    /**
+     * 指定期間のデータを列形式で取得
+     * 
+     * @param start 開始日時
+     * @param end   終了日時
+     * @return 指定期間のデータ
+     * @throws IOException
+     */
+    public AmbientSeries readSeries(ZonedDateTime start, ZonedDateTime end) throws IOException {
+        return readSeries(dataUrl(start, end));
+    }
+
+    /**
+     * 直近n個のデータを列形式で取得
+     * 
+     * @param n 取得個数
+     * @return 直近n個のデータ
+     * @throws IOException
+     */
+    public AmbientSeries readSeries(int n) throws IOException {
+        return readSeries(dataUrl(n));
+    }
 
-        try (var is = conn.getInputStream()) {
-            return om.readValue(is, new TypeReference<List<ReadData>>() {
+    /**
+     * 1日分のデータ取得のURL
+     * 
+     * @param date 日付
+     * @return URL
+     */
+    private String dataUrl(LocalDate date) {
+        return dataUrl("&date=" + date.format(DateTimeFormatter.ISO_DATE));
+    }
+
+    /**
+     * 指定期間のデータ取得のURL
+     * 
+     * @param start 開始日時
+     * @param end   終了日時
+     * @return URL
+     * @throws IOException
+     */
+    private String dataUrl(ZonedDateTime start, ZonedDateTime end) throws IOException {
+        var utcStart = start.withZoneSameInstant(UTC).toLocalDateTime();
+        var utcEnd = end.withZoneSameInstant(UTC).toLocalDateTime();
+        return dataUrl("&start=" + URLEncoder.encode(utcStart.format(DateTimeFormatter.ISO_DATE_TIME), "UTF-8")
+                + "&end=" + URLEncoder.encode(utcEnd.format(DateTimeFormatter.ISO_DATE_TIME), "UTF-8"));
+    }
+
+    /**
+     * 直近n個のデータ取得のURL
+     * 
+     * @param n 取得個数
+     * @return URL
+     */
+    private String dataUrl(int n) {
+        return dataUrl("&n=" + n);
+    }
+
+    /**
+     * データ取得のURL
+     * 
+     * @param query readKeyに続けるクエリ文字列 (先頭は&)
+     * @return URL
+     */
+    private String dataUrl(String query) {
+        return baseUrl + "/api/v2/channels/" + channelId + "/data?readKey=" + readKey + query;
+    }
+
+    /**
+     * データを列形式で取得 (レスポンスを逐次解析する)
+     * 
+     * @param url URL
+     * @return 取得したデータ
+     * @throws IOException
+     */
+    private AmbientSeries readSeries(String url) throws IOException {
+        return http.get(url, (resCode, body) -> {
+            if (resCode != 200) {
+                throw new IOException("Ambient Response Code " + resCode);
+            }
+            try (var parser = om.getFactory().createParser(body)) {
+                return AmbientJson.readSeries(parser);
+            }
+        });
+    }
+
+    /**
+     * データ取得
+     * 
+     * @param url URL
+     * @return 取得したデータ
+     * @throws IOException
+     */
+    private List<ReadData> readDatas(String url) throws IOException {
+        return http.get(url, (resCode, body) -> {
+            if (resCode != 200) {
+                throw new IOException("Ambient Response Code " + resCode);
+            }
+            return om.readValue(body, new TypeReference<List<ReadData>>() {
             });
+        });
+    }
+
+    /**
+     * 送信データ
+     */
+    @AllArgsConstructor
+    @Getter
+    public static class SendData {
+        // タイムスタンプ
+        private ZonedDateTime time;
+        // 送信データ(最大8個)
+        private Double[] datas;
+    }
+
+    /**
+     * 送信するJSONのバッファ (内部配列をコピーせずに参照する)
+     */
+    private static class SendBuffer extends ByteArrayOutputStream {
+        SendBuffer() {
+            super(1024);
+        }
+
+        byte[] array() {
+            return buf;
         }
     }
 
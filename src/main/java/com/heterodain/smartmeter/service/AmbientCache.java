@@ -0,0 +1,253 @@
+package com.heterodain.smartmeter.service;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.var;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Ambientの取得データのキャッシュ
+ *
+ * 期間指定の取得はチャネルごと・1日ごとのセグメントに分けて保持し、重なる期間の問い合わせは保持済みのセグメントで答え、
+ * 足りない日だけをまとめて取得する。確定した過去の日は再取得せず、当日など確定していない日は有効期限が切れたら取り直す。
+ * 保持する行数が上限を超えたら、最後に使われてから最も時間が経ったセグメントから捨てる。
+ */
+@Slf4j
+public class AmbientCache {
+    // 日の区切りのタイムゾーン
+    private final ZoneId zone;
+    // 確定していないデータの有効期限(ミリ秒)
+    private final long ttl;
+    // 日が終わってから確定とみなすまでの時間(ミリ秒) ※送信の遅れを考慮
+    private final long settle;
+    // 保持する最大行数
+    private final int maxRows;
+
+    // 保持しているセグメント (最後に使われた順)
+    private final LinkedHashMap<Key, Segment> segments = new LinkedHashMap<>(16, 0.75f, true);
+    // 保持している行数
+    private int rows;
+
+    /**
+     * セグメントのキー
+     */
+    @AllArgsConstructor
+    @EqualsAndHashCode
+    private static class Key {
+        // チャネルID
+        private final int channelId;
+        // 日付 (直近n個の場合はnull)
+        private final LocalDate date;
+        // 直近の個数 (日付の場合は0)
+        private final int n;
+    }
+
+    /**
+     * セグメント
+     */
+    @AllArgsConstructor
+    private static class Segment {
+        // データ
+        private final AmbientSeries series;
+        // 取得した時刻(ミリ秒)
+        private final long fetchedAt;
+        // 確定しているか
+        private final boolean immutable;
+    }
+
+    /**
+     * コンストラクタ
+     *
+     * @param zone    日の区切りのタイムゾーン
+     * @param ttl     確定していないデータの有効期限(ミリ秒)
+     * @param settle  日が終わってから確定とみなすまでの時間(ミリ秒)
+     * @param maxRows 保持する最大行数
+     */
+    public AmbientCache(ZoneId zone, long ttl, long settle, int maxRows) {
+        this.zone = zone;
+        this.ttl = ttl;
+        this.settle = settle;
+        this.maxRows = maxRows;
+    }
+
+    /**
+     * 1日分のデータ取得
+     *
+     * @param ambient 取得元
+     * @param date    日付
+     * @return 1日分のデータ (新しい順)
+     * @throws IOException
+     */
+    public AmbientSeries read(Ambient ambient, LocalDate date) throws IOException {
+        return read(ambient, date.atStartOfDay(zone), date.plusDays(1).atStartOfDay(zone));
+    }
+
+    /**
+     * 指定期間のデータ取得
+     *
+     * @param ambient 取得元
+     * @param start   開始日時 (この時刻を含む)
+     * @param end     終了日時 (この時刻を含まない)
+     * @return 指定期間のデータ (新しい順)
+     * @throws IOException
+     */
+    public synchronized AmbientSeries read(Ambient ambient, ZonedDateTime start, ZonedDateTime end)
+            throws IOException {
+        var from = start.toInstant().toEpochMilli();
+        var to = end.toInstant().toEpochMilli();
+        var result = new AmbientSeries(64);
+        if (from >= to) {
+            return result;
+        }
+
+        var channelId = ambient.getChannelId();
+        var first = start.withZoneSameInstant(zone).toLocalDate();
+        var last = Instant.ofEpochMilli(to - 1).atZone(zone).toLocalDate();
+        var now = System.currentTimeMillis();
+
+        // 足りない日を連続した期間ごとにまとめて取得
+        LocalDate gapStart = null;
+        for (var date = first; !date.isAfter(last); date = date.plusDays(1)) {
+            var segment = segments.get(new Key(channelId, date, 0));
+            var valid = segment != null && (segment.immutable || now - segment.fetchedAt < ttl);
+            if (!valid && gapStart == null) {
+                gapStart = date;
+            }
+            if (valid && gapStart != null) {
+                fetch(ambient, gapStart, date.minusDays(1), now);
+                gapStart = null;
+            }
+        }
+        if (gapStart != null) {
+            fetch(ambient, gapStart, last, now);
+        }
+
+        // 新しい日から順に指定期間の行を集める
+        for (var date = last; !date.isBefore(first); date = date.minusDays(1)) {
+            var series = segments.get(new Key(channelId, date, 0)).series;
+            for (var row = 0; row < series.size(); row++) {
+                var time = series.getTime(row);
+                if (from <= time && time < to) {
+                    result.addRow(series, row);
+                }
+            }
+        }
+
+        evict();
+        return result;
+    }
+
+    /**
+     * 直近n個のデータ取得
+     *
+     * @param ambient 取得元
+     * @param n       取得個数
+     * @return 直近n個のデータ (新しい順)
+     * @throws IOException
+     */
+    public synchronized AmbientSeries read(Ambient ambient, int n) throws IOException {
+        var key = new Key(ambient.getChannelId(), null, n);
+        var now = System.currentTimeMillis();
+        var segment = segments.get(key);
+        if (segment == null || now - segment.fetchedAt >= ttl) {
+            put(key, new Segment(ambient.readSeries(n), now, false));
+        }
+        var series = segments.get(key).series;
+        evict();
+        return series;
+    }
+
+    /**
+     * 保持している行数
+     *
+     * @return 行数
+     */
+    public synchronized int size() {
+        return rows;
+    }
+
+    /**
+     * 全て破棄
+     */
+    public synchronized void clear() {
+        segments.clear();
+        rows = 0;
+    }
+
+    /**
+     * 日付の範囲のデータを取得して1日ごとのセグメントに分ける
+     *
+     * @param ambient 取得元
+     * @param first   最初の日付
+     * @param last    最後の日付
+     * @param now     現在時刻(ミリ秒)
+     * @throws IOException
+     */
+    private void fetch(Ambient ambient, LocalDate first, LocalDate last, long now) throws IOException {
+        log.debug("Ambientから取得します。channelId={} {}～{}", ambient.getChannelId(), first, last);
+        var fetched = ambient.readSeries(first.atStartOfDay(zone), last.plusDays(1).atStartOfDay(zone));
+
+        var byDate = new HashMap<LocalDate, AmbientSeries>();
+        for (var row = 0; row < fetched.size(); row++) {
+            var date = Instant.ofEpochMilli(fetched.getTime(row)).atZone(zone).toLocalDate();
+            if (date.isBefore(first) || date.isAfter(last)) {
+                continue;
+            }
+            byDate.computeIfAbsent(date, d -> new AmbientSeries(16)).addRow(fetched, row);
+        }
+
+        for (var date = first; !date.isAfter(last); date = date.plusDays(1)) {
+            var series = byDate.getOrDefault(date, new AmbientSeries(0));
+            var dayEnd = date.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli();
+            put(new Key(ambient.getChannelId(), date, 0), new Segment(series, now, dayEnd + settle <= now));
+        }
+    }
+
+    /**
+     * セグメントを保持
+     *
+     * @param key     キー
+     * @param segment セグメント
+     */
+    private void put(Key key, Segment segment) {
+        var old = segments.put(key, segment);
+        if (old != null) {
+            rows -= weight(old);
+        }
+        rows += weight(segment);
+    }
+
+    /**
+     * セグメントの行数 (データが無い日も上限に数えるため最低1行とする)
+     *
+     * @param segment セグメント
+     * @return 行数
+     */
+    private static int weight(Segment segment) {
+        return Math.max(1, segment.series.size());
+    }
+
+    /**
+     * 保持する行数が上限を超えていれば、最後に使われてから最も時間が経ったセグメントから捨てる
+     */
+    private void evict() {
+        var it = segments.values().iterator();
+        var evicted = 0;
+        while (rows > maxRows && it.hasNext()) {
+            rows -= weight(it.next());
+            it.remove();
+            evicted++;
+        }
+        if (evicted > 0) {
+            log.debug("キャッシュから{}セグメントを破棄しました。", evicted);
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package com.heterodain.smartmeter.service;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.heterodain.smartmeter.service.Ambient.SendData;
+
+import lombok.var;
+
+/**
+ * AmbientのJSONの読み書き
+ *
+ * ツリーモデルやBeanを経由せず、JsonGenerator/JsonParserで直接読み書きする。
+ * 時刻はUTCの"yyyy-MM-ddTHH:mm:ss.SSS"形式で、文字列を作らずに文字配列で変換する。
+ */
+public final class AmbientJson {
+    // 時刻の文字数
+    private static final int TIME_LENGTH = 23;
+    // 1日のミリ秒
+    private static final long MILLIS_PER_DAY = 86400000L;
+
+    private static final SerializedString WRITE_KEY = new SerializedString("writeKey");
+    private static final SerializedString DATA = new SerializedString("data");
+    private static final SerializedString CREATED = new SerializedString("created");
+    private static final SerializedString[] FIELD_NAMES = new SerializedString[AmbientSeries.FIELDS];
+    static {
+        for (var i = 0; i < FIELD_NAMES.length; i++) {
+            FIELD_NAMES[i] = new SerializedString("d" + (i + 1));
+        }
+    }
+
+    private AmbientJson() {
+    }
+
+    /**
+     * 送信データを書き込む
+     *
+     * <pre>
+     * {"writeKey":"...","data":[{"created":"2020-01-01T00:00:00.000","d1":1.0,...},...]}
+     * </pre>
+     *
+     * @param gen       書き込み先
+     * @param writeKey  WRITEキー
+     * @param sendDatas 送信データ
+     * @throws IOException
+     */
+    public static void writeSendDatas(JsonGenerator gen, String writeKey, List<SendData> sendDatas)
+            throws IOException {
+        var time = new char[TIME_LENGTH];
+
+        gen.writeStartObject();
+        gen.writeFieldName(WRITE_KEY);
+        gen.writeString(writeKey);
+        gen.writeFieldName(DATA);
+        gen.writeStartArray();
+        for (var sendData : sendDatas) {
+            gen.writeStartObject();
+            gen.writeFieldName(CREATED);
+            formatUtc(sendData.getTime().toInstant().toEpochMilli(), time);
+            gen.writeString(time, 0, TIME_LENGTH);
+            var datas = sendData.getDatas();
+            for (var i = 0; i < datas.length && i < FIELD_NAMES.length; i++) {
+                if (datas[i] != null) {
+                    gen.writeFieldName(FIELD_NAMES[i]);
+                    gen.writeNumber(datas[i]);
+                }
+            }
+            gen.writeEndObject();
+        }
+        gen.writeEndArray();
+        gen.writeEndObject();
+        gen.flush();
+    }
+
+    /**
+     * 取得データを列形式で読み込む
+     *
+     * <pre>
+     * [{"d1":1.0,...,"created":"2020-01-01T00:00:00.000Z"},...]
+     * </pre>
+     *
+     * @param parser 読み込み元
+     * @return 取得データ
+     * @throws IOException
+     */
+    public static AmbientSeries readSeries(JsonParser parser) throws IOException {
+        if (parser.nextToken() != JsonToken.START_ARRAY) {
+            throw new IOException("Ambientのデータが配列ではありません。" + parser.getCurrentLocation());
+        }
+
+        var series = new AmbientSeries(64);
+        JsonToken token;
+        while ((token = parser.nextToken()) == JsonToken.START_OBJECT) {
+            var row = series.addRow();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                // フィールド名はパーサーが共有する文字列なので比較しても新たに作られない
+                var name = parser.getCurrentName();
+                var valueToken = parser.nextToken();
+
+                if (valueToken == JsonToken.VALUE_STRING && "created".equals(name)) {
+                    series.setTime(row, parseUtc(parser.getTextCharacters(), parser.getTextOffset(),
+                            parser.getTextLength()));
+                } else if (valueToken.isNumeric() && name.length() == 2 && name.charAt(0) == 'd') {
+                    var field = name.charAt(1) - '0';
+                    if (field >= 1 && field <= AmbientSeries.FIELDS) {
+                        series.set(field, row, parser.getDoubleValue());
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        if (token != JsonToken.END_ARRAY) {
+            throw new IOException("Ambientのデータの形式が不正です。" + parser.getCurrentLocation());
+        }
+        return series;
+    }
+
+    /**
+     * エポックミリ秒をUTCの"yyyy-MM-ddTHH:mm:ss.SSS"形式の文字に変換
+     *
+     * @param epochMilli エポックミリ秒
+     * @param buf        書き込み先 (23文字以上)
+     */
+    static void formatUtc(long epochMilli, char[] buf) {
+        var date = LocalDate.ofEpochDay(Math.floorDiv(epochMilli, MILLIS_PER_DAY));
+        var millisOfDay = (int) Math.floorMod(epochMilli, MILLIS_PER_DAY);
+
+        digits(buf, 0, date.getYear(), 4);
+        buf[4] = '-';
+        digits(buf, 5, date.getMonthValue(), 2);
+        buf[7] = '-';
+        digits(buf, 8, date.getDayOfMonth(), 2);
+        buf[10] = 'T';
+        digits(buf, 11, millisOfDay / 3600000, 2);
+        buf[13] = ':';
+        digits(buf, 14, millisOfDay / 60000 % 60, 2);
+        buf[16] = ':';
+        digits(buf, 17, millisOfDay / 1000 % 60, 2);
+        buf[19] = '.';
+        digits(buf, 20, millisOfDay % 1000, 3);
+    }
+
+    /**
+     * "yyyy-MM-ddTHH:mm:ss[.SSS][Z]"形式の文字をエポックミリ秒に変換
+     *
+     * @param buf 文字
+     * @param off 開始位置
+     * @param len 文字数
+     * @return エポックミリ秒
+     */
+    static long parseUtc(char[] buf, int off, int len) {
+        var end = off + len;
+        if (len > 0 && buf[end - 1] == 'Z') {
+            end--;
+        }
+        if (isSimpleUtc(buf, off, end)) {
+            var millis = 0;
+            // 小数部はミリ秒までを使う
+            var scale = 100;
+            for (var i = off + 20; i < end && scale > 0; i++, scale /= 10) {
+                millis += (buf[i] - '0') * scale;
+            }
+            var days = LocalDate.of(number(buf, off, 4), number(buf, off + 5, 2), number(buf, off + 8, 2))
+                    .toEpochDay();
+            var seconds = number(buf, off + 11, 2) * 3600 + number(buf, off + 14, 2) * 60 + number(buf, off + 17, 2);
+            return days * MILLIS_PER_DAY + seconds * 1000L + millis;
+        }
+
+        // 時差付きなど想定外の形式はjava.timeで解析する (時差が無い場合はUTCとみなす)
+        var parsed = DateTimeFormatter.ISO_DATE_TIME.parseBest(new String(buf, off, len), OffsetDateTime::from,
+                LocalDateTime::from);
+        if (parsed instanceof OffsetDateTime) {
+            return ((OffsetDateTime) parsed).toInstant().toEpochMilli();
+        }
+        return ((LocalDateTime) parsed).toInstant(ZoneOffset.UTC).toEpochMilli();
+    }
+
+    /**
+     * "yyyy-MM-ddTHH:mm:ss[.S...]"形式か
+     *
+     * @param buf 文字
+     * @param off 開始位置
+     * @param end 終了位置 (末尾のZを除く)
+     * @return この形式の場合はtrue
+     */
+    private static boolean isSimpleUtc(char[] buf, int off, int end) {
+        if (end - off < 19 || buf[off + 4] != '-' || buf[off + 7] != '-' || buf[off + 10] != 'T'
+                || buf[off + 13] != ':' || buf[off + 16] != ':') {
+            return false;
+        }
+        if (end - off == 19) {
+            return true;
+        }
+        if (buf[off + 19] != '.' || end - off == 20) {
+            return false;
+        }
+        for (var i = off + 20; i < end; i++) {
+            if (buf[i] < '0' || buf[i] > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 数値を固定桁の文字で書き込む
+     *
+     * @param buf   書き込み先
+     * @param off   書き込み位置
+     * @param value 数値
+     * @param width 桁数
+     */
+    private static void digits(char[] buf, int off, int value, int width) {
+        for (var i = off + width - 1; i >= off; i--) {
+            buf[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    /**
+     * 固定桁の数字を数値に変換
+     *
+     * @param buf   文字
+     * @param off   開始位置
+     * @param width 桁数
+     * @return 数値
+     */
+    private static int number(char[] buf, int off, int width) {
+        var value = 0;
+        for (var i = off; i < off + width; i++) {
+            var c = buf[i] - '0';
+            if (c < 0 || c > 9) {
+                throw new NumberFormatException("数字ではありません。" + new String(buf, off, width));
+            }
+            value = value * 10 + c;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,167 @@
+package com.heterodain.smartmeter.service;
+
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+
+import lombok.var;
+
+/**
+ * Ambientから取得したデータ (列形式)
+ *
+ * 時刻とd1～d8を項目ごとのプリミティブ配列で保持する。値が無い項目はビットマップで管理する。
+ * 行の順序はAmbientが返した順序のまま (新しい順)。
+ */
+public class AmbientSeries {
+    // データの項目数 (d1～d8)
+    public static final int FIELDS = 8;
+
+    // 行数
+    private int size;
+    // 時刻(エポックミリ秒)
+    private long[] times;
+    // d1～d8の値
+    private final double[][] values = new double[FIELDS][];
+    // d1～d8の値があるかのビットマップ
+    private final long[][] presents = new long[FIELDS][];
+
+    /**
+     * コンストラクタ
+     *
+     * @param capacity 初期の行数
+     */
+    public AmbientSeries(int capacity) {
+        capacity = Math.max(capacity, 16);
+        times = new long[capacity];
+        for (var d = 0; d < FIELDS; d++) {
+            values[d] = new double[capacity];
+            presents[d] = new long[(capacity + 63) >>> 6];
+        }
+    }
+
+    /**
+     * 行数
+     *
+     * @return 行数
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 時刻取得
+     *
+     * @param row 行
+     * @return 時刻(エポックミリ秒)
+     */
+    public long getTime(int row) {
+        checkRow(row);
+        return times[row];
+    }
+
+    /**
+     * 時刻取得
+     *
+     * @param row  行
+     * @param zone タイムゾーン
+     * @return 時刻
+     */
+    public ZonedDateTime getTime(int row, ZoneId zone) {
+        return Instant.ofEpochMilli(getTime(row)).atZone(zone);
+    }
+
+    /**
+     * 値があるか
+     *
+     * @param field 項目番号 (d1は1)
+     * @param row   行
+     * @return 値がある場合はtrue
+     */
+    public boolean has(int field, int row) {
+        checkRow(row);
+        return (presents[field - 1][row >>> 6] & (1L << row)) != 0;
+    }
+
+    /**
+     * 値取得
+     *
+     * @param field 項目番号 (d1は1)
+     * @param row   行
+     * @return 値 (値が無い場合はNaN)
+     */
+    public double get(int field, int row) {
+        return has(field, row) ? values[field - 1][row] : Double.NaN;
+    }
+
+    /**
+     * 行を追加 (時刻は0、値は全て無し)
+     *
+     * @return 追加した行
+     */
+    int addRow() {
+        if (size == times.length) {
+            var capacity = size * 2;
+            times = Arrays.copyOf(times, capacity);
+            for (var d = 0; d < FIELDS; d++) {
+                values[d] = Arrays.copyOf(values[d], capacity);
+                presents[d] = Arrays.copyOf(presents[d], (capacity + 63) >>> 6);
+            }
+        }
+        var row = size++;
+        times[row] = 0;
+        for (var d = 0; d < FIELDS; d++) {
+            presents[d][row >>> 6] &= ~(1L << row);
+        }
+        return row;
+    }
+
+    /**
+     * 時刻設定
+     *
+     * @param row  行
+     * @param time 時刻(エポックミリ秒)
+     */
+    void setTime(int row, long time) {
+        times[row] = time;
+    }
+
+    /**
+     * 値設定
+     *
+     * @param field 項目番号 (d1は1)
+     * @param row   行
+     * @param value 値
+     */
+    void set(int field, int row, double value) {
+        values[field - 1][row] = value;
+        presents[field - 1][row >>> 6] |= 1L << row;
+    }
+
+    /**
+     * 他のデータの行をコピーして追加
+     *
+     * @param src コピー元
+     * @param row コピー元の行
+     */
+    void addRow(AmbientSeries src, int row) {
+        var dst = addRow();
+        times[dst] = src.times[row];
+        for (var field = 1; field <= FIELDS; field++) {
+            if (src.has(field, row)) {
+                set(field, dst, src.values[field - 1][row]);
+            }
+        }
+    }
+
+    /**
+     * 行の範囲チェック
+     *
+     * @param row 行
+     */
+    private void checkRow(int row) {
+        if (row < 0 || row >= size) {
+            throw new IndexOutOfBoundsException("row=" + row + " size=" + size);
+        }
+    }
+}
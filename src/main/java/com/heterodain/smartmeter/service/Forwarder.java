@@ -0,0 +1,253 @@
+package com.heterodain.smartmeter.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.heterodain.smartmeter.metrics.MetricRegistry;
+import com.heterodain.smartmeter.store.Outbox;
+
+import lombok.var;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 送信待ちデータの転送
+ *
+ * 送信データを一旦{@link Outbox}に保存し、専用のスレッドで件数が揃うか一定時間経ったらまとめて送信する。
+ * 送信に失敗した場合はデータを残したまま、失敗が続くほど間隔を広げて再送する。
+ * 再送は1回あたりの最大件数ずつ、送信の間隔を空けて行うため、復旧直後に送信先へ一度に送りつけることはない。
+ * 仮想スレッドで待っている間にキャリアスレッドを占有しないよう、synchronizedではなくロックで待つ。
+ */
+@Slf4j
+public class Forwarder implements Closeable {
+    // 再送間隔の初期値(ミリ秒)
+    private static final long MIN_BACKOFF = 5000;
+    // 再送間隔の上限(ミリ秒)
+    private static final long MAX_BACKOFF = 10 * 60 * 1000;
+    // 送信の最短間隔(ミリ秒) ※溜まったデータを続けて送る時の間隔
+    private static final long MIN_INTERVAL = 1000;
+
+    // 名前 (ログ用)
+    private final String name;
+    // 送信データの保存先
+    private final Outbox outbox;
+    // 1回に送信する最大件数
+    private final int batchSize;
+    // 送信を待たせる最大時間(ミリ秒)
+    private final long maxDelay;
+    // 溜めておける最大件数
+    private final int capacity;
+    // 送信処理
+    private final Delivery delivery;
+
+    // 上限を超えて破棄した件数
+    private final MetricRegistry.Counter dropped;
+    // 送信できた件数
+    private final MetricRegistry.Counter delivered;
+    // 送信に失敗した回数
+    private final MetricRegistry.Counter deliveryFailures;
+    // 1回の送信にかかった時間
+    private final MetricRegistry.Histogram deliverySeconds;
+
+    // 状態を守るロック
+    private final ReentrantLock lock = new ReentrantLock();
+    // 送信データの追加と終了の通知
+    private final Condition changed = lock.newCondition();
+    // 送信スレッド
+    private final Thread worker;
+    // クローズ済みか
+    private volatile boolean closed;
+
+    // 送信待ちになった時刻(ミリ秒)
+    private long since;
+    // 連続して失敗した回数
+    private int failures;
+    // 次に送信できる時刻(ミリ秒)
+    private long nextSendAt;
+
+    /**
+     * 送信処理
+     */
+    @FunctionalInterface
+    public interface Delivery {
+        /**
+         * @param entries 送信データ (古い順)
+         * @throws Exception 送信に失敗した場合 (データは残して後で再送する)
+         */
+        void deliver(List<byte[]> entries) throws Exception;
+    }
+
+    /**
+     * コンストラクタ
+     *
+     * @param name      名前 (ログ用)
+     * @param outbox    送信データの保存先
+     * @param batchSize 1回に送信する最大件数
+     * @param maxDelay  送信を待たせる最大時間(ミリ秒)
+     * @param capacity  溜めておける最大件数 (超えた場合は古いものから捨てる)
+     * @param delivery  送信処理
+     */
+    public Forwarder(String name, Outbox outbox, int batchSize, long maxDelay, int capacity, Delivery delivery) {
+        this.name = name;
+        this.outbox = outbox;
+        this.batchSize = batchSize;
+        this.maxDelay = maxDelay;
+        this.capacity = capacity;
+        this.delivery = delivery;
+
+        var metrics = MetricRegistry.getDefault();
+        metrics.gauge("smartmeter_outbox_pending", "送信待ちの件数", () -> outbox.getSize(), "queue", name);
+        dropped = metrics.counter("smartmeter_outbox_dropped_total", "送信待ちが上限に達して破棄した件数", "queue", name);
+        delivered = metrics.counter("smartmeter_outbox_delivered_total", "送信できた件数", "queue", name);
+        deliveryFailures = metrics.counter("smartmeter_outbox_delivery_failures_total", "送信に失敗した回数", "queue",
+                name);
+        deliverySeconds = metrics.histogram("smartmeter_outbox_delivery_seconds", "1回の送信にかかった時間(秒)",
+                MetricRegistry.LATENCY_BUCKETS, "queue", name);
+
+        worker = Threads.start("forwarder-" + name, this::sendLoop);
+    }
+
+    /**
+     * 送信データを追加
+     *
+     * 上限に達している場合は古いものから捨てる。送信中のデータは捨てないため、送信中は一時的に上限を超えることがある。
+     *
+     * @param data 送信データ
+     * @throws IOException
+     */
+    public void offer(byte[] data) throws IOException {
+        lock.lock();
+        try {
+            if (outbox.getSize() >= capacity) {
+                var discarded = outbox.discard(outbox.getSize() - capacity + 1);
+                if (discarded > 0) {
+                    dropped.inc(discarded);
+                    log.warn("[{}] 送信待ちが上限に達したため古いデータを{}件破棄しました。", name, discarded);
+                }
+            }
+            if (outbox.getSize() == 0) {
+                since = System.currentTimeMillis();
+            }
+            outbox.append(data);
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 送信待ちの件数
+     *
+     * @return 件数
+     */
+    public int pending() {
+        return outbox.getSize();
+    }
+
+    /**
+     * 送信できる分を送信して終了 (送信できなかった分は保存先に残る)
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            closed = true;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        outbox.close();
+    }
+
+    /**
+     * 送信スレッドの処理
+     */
+    private void sendLoop() {
+        while (true) {
+            lock.lock();
+            try {
+                try {
+                    var wait = nextWait();
+                    while (!closed && wait != 0) {
+                        if (wait < 0) {
+                            changed.await();
+                        } else {
+                            changed.await(wait, TimeUnit.MILLISECONDS);
+                        }
+                        wait = nextWait();
+                    }
+                } catch (InterruptedException e) {
+                    closed = true;
+                }
+                if (closed && (failures > 0 || outbox.getSize() == 0)) {
+                    // 終了時は失敗するまで送信し、残りは次回の起動時に送信する
+                    break;
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            var start = System.nanoTime();
+            Outbox.Batch batch = null;
+            try {
+                batch = outbox.peek(batchSize);
+                delivery.deliver(batch.getEntries());
+                deliverySeconds.observeSince(start);
+                outbox.ack(batch);
+                delivered.inc(batch.getEntries().size());
+                if (failures > 0) {
+                    log.info("[{}] 送信が回復しました。残り{}件", name, outbox.getSize());
+                }
+                lock.lock();
+                try {
+                    failures = 0;
+                    since = System.currentTimeMillis();
+                    // 溜まっている分も続けて送らず、間隔を空ける
+                    nextSendAt = since + MIN_INTERVAL;
+                } finally {
+                    lock.unlock();
+                }
+
+            } catch (Exception e) {
+                if (batch != null) {
+                    outbox.release(batch);
+                }
+                deliveryFailures.inc();
+                lock.lock();
+                try {
+                    var backoff = Math.min(MAX_BACKOFF, MIN_BACKOFF << Math.min(failures, 16));
+                    failures++;
+                    nextSendAt = System.currentTimeMillis() + backoff;
+                    log.warn("[{}] 送信に失敗しました。{}秒後に再送します。残り{}件", name, backoff / 1000, outbox.getSize(), e);
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * 次の送信までの待ち時間
+     *
+     * @return 待ち時間(ミリ秒) ※すぐに送信できる場合は0、送信するデータが無い場合は-1
+     */
+    private long nextWait() {
+        var size = outbox.getSize();
+        if (size == 0) {
+            return -1;
+        }
+        var now = System.currentTimeMillis();
+        var due = size >= batchSize ? now : since + maxDelay;
+        return Math.max(0, Math.max(due, nextSendAt) - now);
+    }
+}
@@ -0,0 +1,262 @@
+package com.heterodain.smartmeter.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.heterodain.smartmeter.device.SmartMeter;
+import com.heterodain.smartmeter.model.HistoryPower;
+
+import lombok.AllArgsConstructor;
+import lombok.var;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 過去の30分積算電力の一括取得
+ *
+ * <ul>
+ * <li>1日48コマ全てを取得し、日毎にチェックポイントファイルへ保存する。中断しても取得済みの日は再取得しない。
+ * 未計測のコマがある日(今日など)は保存せず、次回も取得する。</li>
+ * <li>同時に要求する日数は応答があれば増やし、失敗したら半分に減らす。失敗後の再要求は応答時間に応じて待つ。</li>
+ * <li>結果は時刻順の30分毎の時系列(CSV)として出力する。</li>
+ * </ul>
+ */
+@Slf4j
+public class HistoryBackfill {
+    private static final ZoneId JST = ZoneId.of("Asia/Tokyo");
+
+    // 1日のコマ数
+    private static final int SLOTS_PER_DAY = 48;
+    // 同時に要求する日数の上限
+    private static final int MAX_CONCURRENCY = 4;
+    // 1日あたりの再試行回数
+    private static final int MAX_RETRY = 5;
+    // 失敗後の待ち時間の上限(ミリ秒)
+    private static final long MAX_BACKOFF = 60000;
+
+    private static ObjectMapper om = new ObjectMapper();
+
+    // スマートメーター
+    private final SmartMeter smartMeter;
+    // チェックポイントファイル
+    private final File checkpointFile;
+
+    // 取得済みの30分積算電力 (キーは日付)
+    private final Map<LocalDate, List<Long>> days = new TreeMap<>();
+
+    // 応答時間の移動平均(ミリ秒)
+    private double latency = 3000;
+
+    /**
+     * コンストラクタ
+     *
+     * @param smartMeter     スマートメーター
+     * @param checkpointFile チェックポイントファイル
+     * @throws IOException
+     */
+    public HistoryBackfill(SmartMeter smartMeter, File checkpointFile) throws IOException {
+        this.smartMeter = smartMeter;
+        this.checkpointFile = checkpointFile;
+
+        if (checkpointFile.exists()) {
+            Map<String, List<Long>> saved = om.readValue(checkpointFile,
+                    new TypeReference<Map<String, List<Long>>>() {
+                    });
+            saved.forEach((date, powers) -> days.put(LocalDate.parse(date), powers));
+            log.info("チェックポイントを読み込みました。取得済み={}日", days.size());
+        }
+    }
+
+    /**
+     * 過去の電力履歴を取得
+     *
+     * @param numberOfDays 遡る日数(今日を含む)
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public synchronized void run(int numberOfDays) throws IOException, InterruptedException {
+        var today = LocalDate.now(JST);
+
+        // 未取得の日と、未計測のコマが残っている日
+        var waits = new ArrayDeque<Integer>();
+        for (var beforeDays = 0; beforeDays < numberOfDays; beforeDays++) {
+            if (!isComplete(days.get(today.minusDays(beforeDays)))) {
+                waits.add(beforeDays);
+            }
+        }
+        log.info("電力履歴を取得します。対象={}日", waits.size());
+
+        var results = new LinkedBlockingQueue<Result>();
+        var retries = new HashMap<Integer, Integer>();
+        var concurrency = 1;
+        var running = 0;
+        var nextSend = 0L;
+
+        while (!waits.isEmpty() || running > 0) {
+            // 要求送信
+            while (running < concurrency && !waits.isEmpty() && System.currentTimeMillis() >= nextSend) {
+                var beforeDays = waits.poll();
+                var start = System.currentTimeMillis();
+                running++;
+                try {
+                    smartMeter.getBeforeDayPowerAsync(beforeDays).whenComplete((history, e) -> results
+                            .add(new Result(beforeDays, history, e, System.currentTimeMillis() - start)));
+                } catch (Exception e) {
+                    results.add(new Result(beforeDays, null, e, 0));
+                }
+            }
+
+            // 応答待ち (送信待ちの要求があれば次の送信時刻まで)
+            var timeout = running < concurrency && !waits.isEmpty()
+                    ? Math.max(1, nextSend - System.currentTimeMillis())
+                    : Long.MAX_VALUE;
+            if (running == 0) {
+                Thread.sleep(timeout);
+                continue;
+            }
+            var result = results.poll(timeout, TimeUnit.MILLISECONDS);
+            if (result == null) {
+                continue;
+            }
+            running--;
+
+            var error = result.error;
+            if (error == null && (result.history.getTime() == null
+                    || result.history.getAccumu30Powers().size() != SLOTS_PER_DAY)) {
+                // 積算電力量計測値履歴１が返らなかった、またはコマが足りない
+                error = new IOException("電力履歴のコマが揃っていません。" + result.history);
+            }
+            if (error == null) {
+                latency = latency * 0.7 + result.elapsed * 0.3;
+                concurrency = Math.min(MAX_CONCURRENCY, concurrency + 1);
+
+                // 日付はスマートメーターが応答した時点の日付で決まるため、実行中に日付が変わっても応答の日付で保存する
+                var date = result.history.getTime().toLocalDate();
+                days.put(date, result.history.getAccumu30Powers());
+                saveCheckpoint();
+                log.info("{}: {}", date, result.history.getAccumu30Powers());
+
+            } else {
+                var retry = retries.merge(result.beforeDays, 1, Integer::sum);
+                concurrency = Math.max(1, concurrency / 2);
+                if (retry > MAX_RETRY) {
+                    log.warn("電力履歴の取得を中止しました。beforeDays={}", result.beforeDays, error);
+                    continue;
+                }
+
+                // 再接続の時間を考慮し、失敗が続くほど長く待つ
+                var backoff = Math.min(MAX_BACKOFF, (long) (latency * (1L << retry)));
+                nextSend = System.currentTimeMillis() + backoff;
+                waits.addFirst(result.beforeDays);
+                log.debug("電力履歴の取得に失敗しました。{}ms後に再試行します。beforeDays={}", backoff, result.beforeDays,
+                        error);
+            }
+        }
+    }
+
+    /**
+     * 取得済みの電力履歴を30分毎の時系列(CSV)で出力
+     *
+     * 列は 時刻, 積算電力量(Wh), 前のコマからの電力量(Wh)。未計測のコマは空欄。
+     *
+     * @param file 出力ファイル
+     * @throws IOException
+     */
+    public synchronized void writeCsv(File file) throws IOException {
+        try (var out = new PrintWriter(Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8))) {
+            out.println("time,total,power");
+
+            var scale = smartMeter.getEnergyScale();
+            Long before = null;
+            LocalDate beforeDate = null;
+            for (var entry : days.entrySet()) {
+                if (beforeDate != null && !beforeDate.plusDays(1).equals(entry.getKey())) {
+                    // 日が連続していない場合は差分を出さない
+                    before = null;
+                }
+                var powers = entry.getValue();
+                var start = entry.getKey().atStartOfDay(JST);
+                for (var slot = 0; slot < SLOTS_PER_DAY && slot < powers.size(); slot++) {
+                    var total = powers.get(slot);
+                    var time = start.plusMinutes(30L * slot).format(DateTimeFormatter.ISO_OFFSET_DATE_TIME);
+                    var power = total != null && before != null ? scale.differenceWh(before, total) : null;
+                    out.println(time + "," + (total == null ? "" : total) + "," + (power == null ? "" : power));
+                    before = total;
+                }
+                beforeDate = entry.getKey();
+            }
+        }
+    }
+
+    /**
+     * 取得済みの日数
+     *
+     * @return 日数
+     */
+    public synchronized int size() {
+        return days.size();
+    }
+
+    /**
+     * 1日分の全てのコマが計測済みか
+     *
+     * @param powers 30分積算電力 (nullの場合は未取得)
+     * @return 全て計測済みの場合はtrue
+     */
+    private static boolean isComplete(List<Long> powers) {
+        return powers != null && powers.size() >= SLOTS_PER_DAY
+                && !powers.subList(0, SLOTS_PER_DAY).contains(null);
+    }
+
+    /**
+     * チェックポイントファイルに保存 (書き込み途中で中断しても壊れないよう一時ファイルから置き換える)
+     *
+     * 未計測のコマがある日は次回も取得するため保存しない。
+     *
+     * @throws IOException
+     */
+    private void saveCheckpoint() throws IOException {
+        var saved = new TreeMap<String, List<Long>>();
+        days.forEach((date, powers) -> {
+            if (isComplete(powers)) {
+                saved.put(date.toString(), new ArrayList<>(powers));
+            }
+        });
+
+        var tmp = new File(checkpointFile.getPath() + ".tmp");
+        om.writeValue(tmp, saved);
+        Files.move(tmp.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * 1日分の取得結果
+     */
+    @AllArgsConstructor
+    private static class Result {
+        // 遡った日数
+        private int beforeDays;
+        // 電力履歴
+        private HistoryPower history;
+        // エラー
+        private Throwable error;
+        // 応答時間(ミリ秒)
+        private long elapsed;
+    }
+}
@@ -0,0 +1,205 @@
+package com.heterodain.smartmeter.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import lombok.var;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * HTTPクライアント
+ *
+ * JDKのHttpURLConnectionが持つホスト単位のKeep-Aliveキャッシュを使い、同じホストへのTCP接続を使い回す。
+ * 接続がキャッシュに戻るのはレスポンスを最後まで読んで閉じた場合だけなので、ステータスによらず必ず読み切ってから閉じる。
+ * レスポンスはgzip圧縮を受け付け、呼び出し元には展開したストリームを渡す。
+ */
+@Slf4j
+public class HttpClient {
+    // ホストごとにキャッシュする接続数
+    private static final int MAX_CONNECTIONS_PER_HOST = 4;
+    // レスポンスを読み捨てる時のバッファサイズ
+    private static final int DRAIN_BUFFER_SIZE = 4096;
+
+    // 既定のクライアント
+    private static final HttpClient DEFAULT = new HttpClient(10000, 20000);
+
+    static {
+        // Keep-Aliveキャッシュの設定は最初の接続時に読まれるため、それより前に設定する (起動オプションの指定を優先)
+        if (System.getProperty("http.keepAlive") == null) {
+            System.setProperty("http.keepAlive", "true");
+        }
+        if (System.getProperty("http.maxConnections") == null) {
+            System.setProperty("http.maxConnections", String.valueOf(MAX_CONNECTIONS_PER_HOST));
+        }
+    }
+
+    // 接続タイムアウト(ミリ秒)
+    private final int connectTimeout;
+    // 読み込みタイムアウト(ミリ秒)
+    private final int readTimeout;
+
+    /**
+     * レスポンスの処理
+     *
+     * @param <T> 処理結果の型
+     */
+    @FunctionalInterface
+    public interface ResponseHandler<T> {
+        /**
+         * @param status ステータスコード
+         * @param body   レスポンスボディ (gzipは展開済み、閉じる必要はない)
+         * @return 処理結果
+         * @throws IOException
+         */
+        T handle(int status, InputStream body) throws IOException;
+    }
+
+    /**
+     * コンストラクタ
+     *
+     * @param connectTimeout 接続タイムアウト(ミリ秒)
+     * @param readTimeout    読み込みタイムアウト(ミリ秒)
+     */
+    public HttpClient(int connectTimeout, int readTimeout) {
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * 既定のクライアントを取得
+     *
+     * @return 既定のクライアント
+     */
+    public static HttpClient getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * GETリクエスト
+     *
+     * @param <T>     処理結果の型
+     * @param url     URL
+     * @param handler レスポンスの処理
+     * @return 処理結果
+     * @throws IOException
+     */
+    public <T> T get(String url, ResponseHandler<T> handler) throws IOException {
+        return execute("GET", url, Collections.emptyMap(), null, null, 0, handler);
+    }
+
+    /**
+     * POSTリクエスト
+     *
+     * @param <T>         処理結果の型
+     * @param url         URL
+     * @param headers     リクエストヘッダ
+     * @param contentType Content-Type
+     * @param body        リクエストボディ
+     * @param handler     レスポンスの処理
+     * @return 処理結果
+     * @throws IOException
+     */
+    public <T> T post(String url, Map<String, String> headers, String contentType, byte[] body,
+            ResponseHandler<T> handler) throws IOException {
+        return execute("POST", url, headers, contentType, body, body.length, handler);
+    }
+
+    /**
+     * POSTリクエスト
+     *
+     * @param <T>         処理結果の型
+     * @param url         URL
+     * @param headers     リクエストヘッダ
+     * @param contentType Content-Type
+     * @param body        リクエストボディ (先頭からlengthバイトを送信)
+     * @param length      リクエストボディのバイト数
+     * @param handler     レスポンスの処理
+     * @return 処理結果
+     * @throws IOException
+     */
+    public <T> T post(String url, Map<String, String> headers, String contentType, byte[] body, int length,
+            ResponseHandler<T> handler) throws IOException {
+        return execute("POST", url, headers, contentType, body, length, handler);
+    }
+
+    /**
+     * リクエスト実行
+     *
+     * @param <T>         処理結果の型
+     * @param method      メソッド
+     * @param url         URL
+     * @param headers     リクエストヘッダ
+     * @param contentType Content-Type (ボディが無い場合はnull)
+     * @param body        リクエストボディ (無い場合はnull)
+     * @param length      リクエストボディのバイト数
+     * @param handler     レスポンスの処理
+     * @return 処理結果
+     * @throws IOException
+     */
+    private <T> T execute(String method, String url, Map<String, String> headers, String contentType, byte[] body,
+            int length, ResponseHandler<T> handler) throws IOException {
+        log.debug("request > {} {}", method, url);
+
+        var conn = (HttpURLConnection) new URL(url).openConnection();
+        conn.setRequestMethod(method);
+        conn.setConnectTimeout(connectTimeout);
+        conn.setReadTimeout(readTimeout);
+        conn.setRequestProperty("Accept-Encoding", "gzip");
+        headers.forEach(conn::setRequestProperty);
+
+        try {
+            if (body != null) {
+                conn.setRequestProperty("Content-Type", contentType);
+                conn.setDoOutput(true);
+                conn.setFixedLengthStreamingMode(length);
+                try (var os = conn.getOutputStream()) {
+                    os.write(body, 0, length);
+                }
+            }
+
+            var status = conn.getResponseCode();
+            var raw = status >= 400 ? conn.getErrorStream() : conn.getInputStream();
+            if (raw == null) {
+                return handler.handle(status, new ByteArrayInputStream(new byte[0]));
+            }
+            try (var is = raw) {
+                var decoded = "gzip".equalsIgnoreCase(conn.getContentEncoding()) ? new GZIPInputStream(is) : is;
+                // 処理側で閉じられると読み捨てられないため、閉じても何もしないストリームを渡す
+                var result = handler.handle(status, new FilterInputStream(decoded) {
+                    @Override
+                    public void close() {
+                        // NOP
+                    }
+                });
+                // 読み残しがあると接続が再利用されないため読み捨てる
+                drain(decoded);
+                return result;
+            }
+
+        } catch (IOException e) {
+            // 失敗した接続は再利用しない
+            conn.disconnect();
+            throw e;
+        }
+    }
+
+    /**
+     * ストリームを最後まで読み捨てる
+     *
+     * @param is ストリーム
+     * @throws IOException
+     */
+    private static void drain(InputStream is) throws IOException {
+        var buf = new byte[DRAIN_BUFFER_SIZE];
+        while (is.read(buf) >= 0) {
+            // NOP
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.heterodain.smartmeter.service;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+import lombok.var;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * LINE通知
+ */
+@Slf4j
+public class LineNotifier {
+    // HTTPクライアント
+    private final HttpClient http;
+    // 通知APIのURL
+    private final String url;
+    // トークン
+    private final String token;
+
+    /**
+     * コンストラクタ
+     *
+     * @param http  HTTPクライアント
+     * @param url   通知APIのURL
+     * @param token トークン
+     */
+    public LineNotifier(HttpClient http, String url, String token) {
+        this.http = http;
+        this.url = url;
+        this.token = token;
+    }
+
+    /**
+     * メッセージ通知
+     *
+     * @param message メッセージ
+     * @throws IOException
+     */
+    public void send(String message) throws IOException {
+        var body = "message=" + URLEncoder.encode(message, "UTF-8");
+        log.debug("body > " + body);
+
+        http.post(url, Collections.singletonMap("Authorization", "Bearer " + token),
+                "application/x-www-form-urlencoded", body.getBytes(StandardCharsets.UTF_8), (resCode, res) -> {
+                    if (resCode != 200) {
+                        throw new IOException("LINE Notify Response Code " + resCode);
+                    }
+                    return null;
+                });
+    }
+}
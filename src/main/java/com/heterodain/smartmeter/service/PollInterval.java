@@ -0,0 +1,137 @@
+package com.heterodain.smartmeter.service;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import lombok.var;
+
+/**
+ * スマートメーターの読込間隔の調整
+ *
+ * 読込の結果から次の読込までの待ち時間を決める。
+ * <ul>
+ * <li>瞬時電力が大きく変わったら、しばらく最短間隔で読み込む。最短間隔は応答時間の4倍を下回らない</li>
+ * <li>瞬時電力が安定している間は、間隔を少しずつ広げる</li>
+ * <li>応答が遅い間(リンク品質の低下)や送信時間制限中は、間隔を広げる</li>
+ * <li>失敗が続いた場合は、揺らぎを付けて間隔を倍々に広げる</li>
+ * </ul>
+ * 1分値の平均が取れるように、成功している間の間隔は30秒を超えない。
+ */
+public class PollInterval {
+    // 最短間隔(ミリ秒)
+    private static final long MIN_INTERVAL = 3000;
+    // 初期間隔(ミリ秒)
+    private static final long BASE_INTERVAL = 10000;
+    // 成功している間の最長間隔(ミリ秒)
+    private static final long MAX_INTERVAL = 30000;
+    // 失敗が続いた時の最長間隔(ミリ秒)
+    private static final long MAX_FAILURE_INTERVAL = 120000;
+    // 応答時間に対する最短間隔の倍率 (応答待ちの時間を1/4以下に抑える)
+    private static final int RTT_FACTOR = 4;
+    // 応答が遅いとみなす応答時間(ミリ秒)
+    private static final long DEGRADED_RTT = 2000;
+    // 大きな変化とみなす瞬時電力の変化量(W)
+    private static final long SHARP_CHANGE_WATT = 200;
+    // 大きな変化とみなす瞬時電力の変化率
+    private static final double SHARP_CHANGE_RATIO = 0.2;
+    // 大きな変化の後、最短間隔で読み込む回数
+    private static final int FAST_POLLS = 6;
+    // 安定している時に間隔を広げる倍率
+    private static final double BACKOFF_FACTOR = 1.25;
+    // 応答時間の平滑化係数
+    private static final double RTT_ALPHA = 0.2;
+
+    // 現在の間隔(ミリ秒)
+    private long interval = BASE_INTERVAL;
+    // 応答時間の移動平均(ミリ秒) ※未計測の場合は0
+    private double rtt;
+    // 前回の瞬時電力(W) ※未取得の場合はnull
+    private Long lastPower;
+    // 最短間隔で読み込む残り回数
+    private int fastPolls;
+    // 連続して失敗した回数
+    private int failures;
+
+    /**
+     * 読込に成功した時の次の待ち時間
+     *
+     * @param rttMillis  応答時間(ミリ秒)
+     * @param power      瞬時電力(W) ※取得できなかった場合はnull
+     * @param restricted 送信時間制限中か
+     * @return 待ち時間(ミリ秒)
+     */
+    public synchronized long onSuccess(long rttMillis, Long power, boolean restricted) {
+        rtt = rtt == 0 ? rttMillis : rtt + RTT_ALPHA * (rttMillis - rtt);
+        if (failures > 0) {
+            // 回復したら初期間隔からやり直す
+            interval = BASE_INTERVAL;
+            failures = 0;
+        }
+
+        if (power != null && lastPower != null) {
+            var change = Math.abs(power - lastPower);
+            if (change >= Math.max(SHARP_CHANGE_WATT, lastPower * SHARP_CHANGE_RATIO)) {
+                fastPolls = FAST_POLLS;
+            }
+        }
+        if (power != null) {
+            lastPower = power;
+        }
+
+        if (restricted || rtt > DEGRADED_RTT) {
+            // 送信時間制限中や応答が遅い間は、変化があっても速くしない
+            fastPolls = 0;
+            interval = Math.max(interval, BASE_INTERVAL);
+            interval = (long) (interval * BACKOFF_FACTOR);
+        } else if (fastPolls > 0) {
+            fastPolls--;
+            interval = MIN_INTERVAL;
+        } else {
+            interval = (long) (interval * BACKOFF_FACTOR);
+        }
+        interval = Math.min(MAX_INTERVAL, Math.max(minInterval(), interval));
+        return interval;
+    }
+
+    /**
+     * 読込に失敗した時の次の待ち時間
+     *
+     * 同時に再試行が集中しないように、待ち時間に±25%の揺らぎを付ける。
+     *
+     * @return 待ち時間(ミリ秒)
+     */
+    public synchronized long onFailure() {
+        failures++;
+        fastPolls = 0;
+        var backoff = Math.min(MAX_FAILURE_INTERVAL, BASE_INTERVAL << Math.min(failures - 1, 8));
+        var jitter = 0.75 + ThreadLocalRandom.current().nextDouble() * 0.5;
+        interval = (long) (backoff * jitter);
+        return interval;
+    }
+
+    /**
+     * 現在の間隔
+     *
+     * @return 間隔(ミリ秒)
+     */
+    public synchronized long getInterval() {
+        return interval;
+    }
+
+    /**
+     * 応答時間の移動平均
+     *
+     * @return 応答時間(ミリ秒) ※未計測の場合は0
+     */
+    public synchronized long getRtt() {
+        return Math.round(rtt);
+    }
+
+    /**
+     * 応答時間から決まる最短間隔
+     *
+     * @return 最短間隔(ミリ秒)
+     */
+    private long minInterval() {
+        return Math.max(MIN_INTERVAL, Math.round(rtt * RTT_FACTOR));
+    }
+}
@@ -0,0 +1,154 @@
+package com.heterodain.smartmeter.service;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lombok.var;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * ブロックする処理を動かすスレッドの生成
+ *
+ * 通常はデーモンのプラットフォームスレッドを使う。仮想スレッドモードを有効にすると、Java 21以降では仮想スレッドを使う。
+ * Java 8でもビルドできるよう、仮想スレッドのAPIはリフレクションで呼び出す。
+ */
+@Slf4j
+public final class Threads {
+    // Thread.ofVirtual()
+    private static final Method OF_VIRTUAL;
+    // Thread.Builder.name(String, long)
+    private static final Method BUILDER_NAME;
+    // Thread.Builder.factory()
+    private static final Method BUILDER_FACTORY;
+    // Executors.newThreadPerTaskExecutor(ThreadFactory)
+    private static final Method THREAD_PER_TASK;
+
+    static {
+        Method ofVirtual = null;
+        Method builderName = null;
+        Method builderFactory = null;
+        Method threadPerTask = null;
+        try {
+            var builder = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            builderName = builder.getMethod("name", String.class, long.class);
+            builderFactory = builder.getMethod("factory");
+            threadPerTask = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+        } catch (ReflectiveOperationException e) {
+            // 仮想スレッドが使えないJava
+        }
+        OF_VIRTUAL = ofVirtual;
+        BUILDER_NAME = builderName;
+        BUILDER_FACTORY = builderFactory;
+        THREAD_PER_TASK = threadPerTask;
+    }
+
+    // 仮想スレッドモードか
+    private static volatile boolean virtual;
+
+    private Threads() {
+    }
+
+    /**
+     * 仮想スレッドが使えるか
+     *
+     * @return 使える場合はtrue
+     */
+    public static boolean isVirtualSupported() {
+        return OF_VIRTUAL != null && THREAD_PER_TASK != null;
+    }
+
+    /**
+     * 仮想スレッドモードを有効にする (以降に生成するスレッドから有効)
+     *
+     * @return 有効にできた場合はtrue (仮想スレッドが使えない場合はプラットフォームスレッドのまま)
+     */
+    public static boolean enableVirtual() {
+        if (!isVirtualSupported()) {
+            log.warn("このJava({})では仮想スレッドが使えないため、プラットフォームスレッドで動かします。",
+                    System.getProperty("java.version"));
+            return false;
+        }
+        virtual = true;
+        log.info("仮想スレッドモードで動かします。");
+        return true;
+    }
+
+    /**
+     * 仮想スレッドモードか
+     *
+     * @return 仮想スレッドモードの場合はtrue
+     */
+    public static boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * スレッド生成
+     *
+     * @param name スレッド名の接頭辞 (連番を付ける)
+     * @return スレッドの生成元
+     */
+    public static ThreadFactory factory(String name) {
+        if (virtual) {
+            try {
+                var builder = BUILDER_NAME.invoke(OF_VIRTUAL.invoke(null), name + "-", 0L);
+                return (ThreadFactory) BUILDER_FACTORY.invoke(builder);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("仮想スレッドを生成できませんでした。", e);
+            }
+        }
+        return platformFactory(name);
+    }
+
+    /**
+     * プラットフォームスレッド生成 (スケジューラなど、ブロックしない処理用)
+     *
+     * @param name スレッド名の接頭辞 (連番を付ける)
+     * @return スレッドの生成元
+     */
+    public static ThreadFactory platformFactory(String name) {
+        var counter = new AtomicInteger();
+        return r -> {
+            var thread = new Thread(r, name + "-" + counter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * スレッドを生成して開始
+     *
+     * @param name スレッド名の接頭辞
+     * @param task 処理
+     * @return 開始したスレッド
+     */
+    public static Thread start(String name, Runnable task) {
+        var thread = factory(name).newThread(task);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * ブロックする処理を動かすスレッドプール生成
+     *
+     * 仮想スレッドモードでは処理ごとに仮想スレッドを生成し、そうでなければ必要に応じてプラットフォームスレッドを増やす。
+     * shutdownNow()で動いている全ての処理に割り込みをかけられる。
+     *
+     * @param name スレッド名の接頭辞
+     * @return スレッドプール
+     */
+    public static ExecutorService newWorkers(String name) {
+        if (virtual) {
+            try {
+                return (ExecutorService) THREAD_PER_TASK.invoke(null, factory(name));
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("仮想スレッドのスレッドプールを生成できませんでした。", e);
+            }
+        }
+        return Executors.newCachedThreadPool(platformFactory(name));
+    }
+}
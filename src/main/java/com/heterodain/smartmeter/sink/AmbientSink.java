@@ -0,0 +1,78 @@
+package com.heterodain.smartmeter.sink;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.heterodain.smartmeter.model.Measurement;
+import com.heterodain.smartmeter.service.Ambient;
+import com.heterodain.smartmeter.service.Ambient.SendData;
+
+import lombok.Getter;
+import lombok.var;
+
+/**
+ * Ambientへの送信
+ *
+ * 計測値の値を順にd1、d2…に割り当て、複数時刻分を1回のリクエストでまとめて送信する。
+ * 同じ時刻の計測値は1件にまとめる。
+ */
+public class AmbientSink implements Sink {
+    // 名前
+    @Getter
+    private final String name;
+    // 送信先
+    private final Ambient ambient;
+
+    /**
+     * コンストラクタ
+     *
+     * @param name    名前 (nullの場合は"ambient-チャネルID")
+     * @param ambient 送信先
+     */
+    public AmbientSink(String name, Ambient ambient) {
+        this.name = name == null ? "ambient-" + ambient.getChannelId() : name;
+        this.ambient = ambient;
+    }
+
+    @Override
+    public void write(List<Measurement> measurements) throws Exception {
+        ambient.send(toSendDatas(measurements));
+    }
+
+    /**
+     * 計測値を送信データに変換 (同じ時刻が続く場合は1件にまとめる)
+     *
+     * @param measurements 計測値
+     * @return 送信データ
+     */
+    private static List<SendData> toSendDatas(List<Measurement> measurements) {
+        var result = new ArrayList<SendData>(measurements.size());
+        for (var measurement : measurements) {
+            var ts = measurement.getTime();
+            var datas = measurement.getValues();
+            var last = result.isEmpty() ? null : result.get(result.size() - 1);
+            if (last != null && last.getTime().isEqual(ts)) {
+                result.set(result.size() - 1, new SendData(ts, merge(last.getDatas(), datas)));
+            } else {
+                result.add(new SendData(ts, datas));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 同じ時刻の送信データをまとめる (後から追加した値を優先)
+     *
+     * @param before 先に追加した値
+     * @param after  後から追加した値
+     * @return まとめた値
+     */
+    private static Double[] merge(Double[] before, Double[] after) {
+        var result = new Double[Math.max(before.length, after.length)];
+        for (var i = 0; i < result.length; i++) {
+            var a = i < after.length ? after[i] : null;
+            result[i] = a != null ? a : (i < before.length ? before[i] : null);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,120 @@
+package com.heterodain.smartmeter.sink;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import com.heterodain.smartmeter.model.Measurement;
+
+import lombok.Getter;
+import lombok.var;
+
+/**
+ * CSVファイルへの出力
+ *
+ * 計測値の種類と日付ごとのファイル (minute-20201017.csv など) に追記する。
+ * 1回の書き込み分はファイルごとにまとめて1回で追記し、再試行で同じ内容が届いた場合は書かない。
+ * 新しいファイルには先頭にヘッダ行を書く。
+ *
+ * <pre>
+ * time,meter,rWatt,tWatt,accumu30
+ * 2020-10-17T12:00:00+09:00,house,412.5,388.25,
+ * </pre>
+ */
+public class CsvFileSink implements Sink {
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyyMMdd");
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+
+    // 名前
+    @Getter
+    private final String name;
+    // 出力先ディレクトリ
+    private final File directory;
+
+    /**
+     * コンストラクタ
+     *
+     * @param name      名前
+     * @param directory 出力先ディレクトリ
+     */
+    public CsvFileSink(String name, File directory) {
+        this.name = name;
+        this.directory = directory;
+    }
+
+    @Override
+    public void write(List<Measurement> measurements) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("ディレクトリ[" + directory + "]を作成できませんでした。");
+        }
+
+        // ファイルごとに行をまとめる
+        var chunks = new LinkedHashMap<File, StringBuilder>();
+        var headers = new HashMap<File, String>();
+        for (var measurement : measurements) {
+            var kind = measurement.getKind();
+            var file = new File(directory, kind.label() + "-" + DATE_FORMATTER.format(measurement.getTime()) + ".csv");
+            var chunk = chunks.computeIfAbsent(file, f -> new StringBuilder());
+            headers.putIfAbsent(file, "time,meter," + String.join(",", kind.getFields()) + LINE_SEPARATOR);
+
+            chunk.append(DateTimeFormatter.ISO_OFFSET_DATE_TIME.format(measurement.getTime()));
+            chunk.append(',');
+            chunk.append(measurement.getMeter() == null ? "" : measurement.getMeter());
+            var values = measurement.getValues();
+            for (var i = 0; i < kind.getFields().length; i++) {
+                chunk.append(',');
+                if (i < values.length && values[i] != null) {
+                    chunk.append(values[i]);
+                }
+            }
+            chunk.append(LINE_SEPARATOR);
+        }
+
+        for (var entry : chunks.entrySet()) {
+            append(entry.getKey(), headers.get(entry.getKey()),
+                    entry.getValue().toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * ファイルに1回で追記する
+     *
+     * 送信の再試行で同じ行をもう一度書かないよう、ファイルの末尾が書き込む内容と同じ場合は書かない。
+     * 新しいファイルには先頭にヘッダ行を書く。
+     *
+     * @param file   ファイル
+     * @param header ヘッダ行
+     * @param rows   追記する行
+     * @throws IOException
+     */
+    private static void append(File file, String header, byte[] rows) throws IOException {
+        try (var channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            var size = channel.size();
+            if (size >= rows.length) {
+                var tail = ByteBuffer.allocate(rows.length);
+                while (tail.hasRemaining() && channel.read(tail, size - rows.length + tail.position()) >= 0) {
+                    // NOP
+                }
+                if (Arrays.equals(tail.array(), rows)) {
+                    return;
+                }
+            }
+
+            var head = size == 0 ? header.getBytes(StandardCharsets.UTF_8) : new byte[0];
+            var buf = ByteBuffer.allocate(head.length + rows.length);
+            buf.put(head).put(rows).flip();
+            while (buf.hasRemaining()) {
+                channel.write(buf, size + buf.position());
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.heterodain.smartmeter.sink;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.heterodain.smartmeter.model.Measurement;
+import com.heterodain.smartmeter.service.HttpClient;
+
+import lombok.Getter;
+import lombok.var;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * HTTPでJSONを送信
+ *
+ * 計測値をJSONの配列にしてPOSTする。2xx以外の応答は失敗として再送する。
+ * MQTTブローカーのHTTP APIや、自前の受信サーバーなどに向けて使う。
+ *
+ * <pre>
+ * [{"time":"2020-10-17T12:00:00+09:00","meter":"house","kind":"minute","rWatt":412.5,"tWatt":388.25}, ...]
+ * </pre>
+ */
+@Slf4j
+public class HttpJsonSink implements Sink {
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    // 名前
+    @Getter
+    private final String name;
+    // HTTPクライアント
+    private final HttpClient http;
+    // 送信先のURL
+    private final String url;
+    // リクエストヘッダ (認証など)
+    private final Map<String, String> headers;
+
+    // 送信するJSONのバッファ (送信スレッド専用)
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(4096);
+
+    /**
+     * コンストラクタ
+     *
+     * @param name    名前
+     * @param http    HTTPクライアント
+     * @param url     送信先のURL
+     * @param headers リクエストヘッダ
+     */
+    public HttpJsonSink(String name, HttpClient http, String url, Map<String, String> headers) {
+        this.name = name;
+        this.http = http;
+        this.url = url;
+        this.headers = headers;
+    }
+
+    @Override
+    public void write(List<Measurement> measurements) throws IOException {
+        buffer.reset();
+        try (var gen = JSON_FACTORY.createGenerator(buffer)) {
+            gen.writeStartArray();
+            for (var measurement : measurements) {
+                var kind = measurement.getKind();
+                gen.writeStartObject();
+                gen.writeStringField("time", DateTimeFormatter.ISO_OFFSET_DATE_TIME.format(measurement.getTime()));
+                if (measurement.getMeter() != null) {
+                    gen.writeStringField("meter", measurement.getMeter());
+                }
+                gen.writeStringField("kind", kind.label());
+                var values = measurement.getValues();
+                for (var i = 0; i < values.length && i < kind.getFields().length; i++) {
+                    if (values[i] != null) {
+                        gen.writeNumberField(kind.getFields()[i], values[i]);
+                    }
+                }
+                gen.writeEndObject();
+            }
+            gen.writeEndArray();
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("[{}] body > {}", name, buffer.toString("UTF-8"));
+        }
+
+        var bytes = buffer.toByteArray();
+        http.post(url, headers, "application/json", bytes, (resCode, body) -> {
+            if (resCode / 100 != 2) {
+                throw new IOException("[" + name + "] Response Code " + resCode);
+            }
+            return null;
+        });
+    }
+}
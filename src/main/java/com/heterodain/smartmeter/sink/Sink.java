@@ -0,0 +1,68 @@
+package com.heterodain.smartmeter.sink;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import com.heterodain.smartmeter.model.Measurement;
+import com.heterodain.smartmeter.model.Settings;
+import com.heterodain.smartmeter.service.Ambient;
+import com.heterodain.smartmeter.service.HttpClient;
+
+import lombok.var;
+
+/**
+ * 計測値の送信先
+ *
+ * {@link SinkPipeline}が送信先ごとの専用スレッドからまとめて呼び出すため、実装はスレッドセーフでなくてよい。
+ */
+public interface Sink extends Closeable {
+    /**
+     * 名前 (送信待ちデータの保存先とログ、メトリクスに使う)
+     *
+     * @return 名前
+     */
+    String getName();
+
+    /**
+     * 計測値を送信
+     *
+     * @param measurements 計測値 (古い順)
+     * @throws Exception 送信に失敗した場合 (データは残して後で再送する)
+     */
+    void write(List<Measurement> measurements) throws Exception;
+
+    @Override
+    default void close() throws IOException {
+        // NOP
+    }
+
+    /**
+     * 設定から送信先を生成
+     *
+     * @param settings 送信先の設定
+     * @param http     HTTPクライアント
+     * @return 送信先
+     */
+    static Sink of(Settings.Sink settings, HttpClient http) {
+        switch (settings.getType()) {
+        case "csv":
+            return new CsvFileSink(settings.getName() == null ? "csv" : settings.getName(),
+                    new File(settings.getDirectory()));
+
+        case "http":
+            return new HttpJsonSink(settings.getName() == null ? "http" : settings.getName(), http, settings.getUrl(),
+                    settings.getHeaders() == null ? Collections.emptyMap() : settings.getHeaders());
+
+        case "ambient":
+            var ambient = new Ambient(http, settings.getUrl() == null ? Ambient.DEFAULT_BASE_URL : settings.getUrl(),
+                    settings.getChannelId(), settings.getReadKey(), settings.getWriteKey());
+            return new AmbientSink(settings.getName(), ambient);
+
+        default:
+            throw new IllegalArgumentException("送信先の種類[" + settings.getType() + "]は未対応です。");
+        }
+    }
+}
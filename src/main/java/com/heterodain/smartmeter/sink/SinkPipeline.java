@@ -0,0 +1,220 @@
+package com.heterodain.smartmeter.sink;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import com.heterodain.smartmeter.model.Measurement;
+import com.heterodain.smartmeter.model.Measurement.Kind;
+import com.heterodain.smartmeter.service.Forwarder;
+import com.heterodain.smartmeter.store.Outbox;
+
+import lombok.var;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 計測値を複数の送信先に配る
+ *
+ * 送信先ごとに{@link Forwarder}を持ち、計測値をそれぞれの送信待ちデータの保存先に書き込むだけで戻る。
+ * 送信は送信先ごとの専用スレッドが件数と待ち時間に応じてまとめて行うため、遅い送信先や止まっている送信先があっても、
+ * 呼び出し元や他の送信先は待たされない。送信待ちが上限に達した送信先は古いものから捨てる。
+ *
+ * <pre>
+ * 保存形式: 時刻(8) 値の数(1) [値あり(1) 値(8)]×値の数 種類(1) スマートメーター名あり(1) スマートメーター名(UTF)
+ * </pre>
+ *
+ * 種類以降が無いレコード(以前のAmbient送信キューの形式)は、値が1個なら日計値、それ以外は1分値として読む。
+ */
+@Slf4j
+public class SinkPipeline implements Closeable {
+    // 送信待ちデータの保存先ディレクトリ
+    private final File directory;
+    // 送信先
+    private final List<Route> routes = new ArrayList<>();
+
+    /**
+     * 送信先と、送る計測値の条件
+     */
+    private static class Route {
+        // 送信先
+        private Sink sink;
+        // 送るスマートメーターの名前 (nullの場合は全て)
+        private String meter;
+        // 送る種類 (nullの場合は全て)
+        private Set<Kind> kinds;
+        // 転送
+        private Forwarder forwarder;
+
+        boolean accepts(Measurement measurement) {
+            return (meter == null || meter.equals(measurement.getMeter()))
+                    && (kinds == null || kinds.contains(measurement.getKind()));
+        }
+    }
+
+    /**
+     * コンストラクタ
+     *
+     * @param directory 送信待ちデータの保存先ディレクトリ (送信先ごとにサブディレクトリを作る)
+     */
+    public SinkPipeline(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * 送信先を追加 (前回の起動時に送信できなかったデータがあれば再送を始める)
+     *
+     * @param sink      送信先
+     * @param meter     送るスマートメーターの名前 (nullの場合は全て)
+     * @param kinds     送る種類 (nullの場合は全て)
+     * @param batchSize 1回に送信する最大件数
+     * @param maxDelay  送信を待たせる最大時間(ミリ秒)
+     * @param capacity  溜めておける最大件数 (超えた場合は古いものから捨てる)
+     * @throws IOException
+     */
+    public synchronized void add(Sink sink, String meter, Set<Kind> kinds, int batchSize, long maxDelay,
+            int capacity) throws IOException {
+        for (var route : routes) {
+            if (route.sink.getName().equals(sink.getName())) {
+                throw new IllegalArgumentException("送信先[" + sink.getName() + "]は登録済みです。");
+            }
+        }
+        var route = new Route();
+        route.sink = sink;
+        route.meter = meter;
+        route.kinds = kinds;
+        route.forwarder = new Forwarder(sink.getName(), new Outbox(new File(directory, sink.getName())), batchSize,
+                maxDelay, capacity, entries -> sink.write(decode(entries)));
+        routes.add(route);
+        log.info("送信先[{}]を追加しました。", sink.getName());
+    }
+
+    /**
+     * 計測値を条件に合う全ての送信先に送る (送信待ちに入れるだけで、送信は待たない)
+     *
+     * 送信待ちに入れられなかった送信先があっても、他の送信先には送る。
+     *
+     * @param measurement 計測値
+     */
+    public void publish(Measurement measurement) {
+        byte[] data;
+        try {
+            data = encode(measurement);
+        } catch (IOException e) {
+            log.warn("計測値を変換できませんでした。{}", measurement, e);
+            return;
+        }
+
+        List<Route> targets;
+        synchronized (this) {
+            targets = new ArrayList<>(routes);
+        }
+        for (var route : targets) {
+            if (!route.accepts(measurement)) {
+                continue;
+            }
+            try {
+                route.forwarder.offer(data);
+            } catch (IOException e) {
+                log.warn("[{}] 送信待ちに入れられませんでした。", route.sink.getName(), e);
+            }
+        }
+    }
+
+    /**
+     * 送信先の数
+     *
+     * @return 送信先の数
+     */
+    public synchronized int size() {
+        return routes.size();
+    }
+
+    /**
+     * 送信できる分を送信して終了
+     *
+     * @throws IOException
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        for (var route : routes) {
+            try {
+                route.forwarder.close();
+            } finally {
+                route.sink.close();
+            }
+        }
+        routes.clear();
+    }
+
+    /**
+     * 計測値を保存用のバイト列に変換
+     *
+     * @param measurement 計測値
+     * @return バイト列
+     * @throws IOException
+     */
+    private static byte[] encode(Measurement measurement) throws IOException {
+        var values = measurement.getValues();
+        var bytes = new ByteArrayOutputStream(32 + values.length * 9);
+        try (var out = new DataOutputStream(bytes)) {
+            out.writeLong(measurement.getTime().toInstant().toEpochMilli());
+            out.writeByte(values.length);
+            for (var value : values) {
+                out.writeBoolean(value != null);
+                out.writeDouble(value == null ? 0 : value);
+            }
+            out.writeByte(measurement.getKind().ordinal());
+            out.writeBoolean(measurement.getMeter() != null);
+            if (measurement.getMeter() != null) {
+                out.writeUTF(measurement.getMeter());
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * 保存用のバイト列を計測値に戻す
+     *
+     * @param entries バイト列
+     * @return 計測値
+     * @throws IOException
+     */
+    private static List<Measurement> decode(List<byte[]> entries) throws IOException {
+        var result = new ArrayList<Measurement>(entries.size());
+        for (var entry : entries) {
+            try (var in = new DataInputStream(new ByteArrayInputStream(entry))) {
+                var ts = ZonedDateTime.ofInstant(Instant.ofEpochMilli(in.readLong()), ZoneId.systemDefault());
+                var values = new Double[in.readUnsignedByte()];
+                for (var i = 0; i < values.length; i++) {
+                    var present = in.readBoolean();
+                    var value = in.readDouble();
+                    values[i] = present ? value : null;
+                }
+
+                Kind kind;
+                String meter = null;
+                if (in.available() > 0) {
+                    kind = Kind.values()[in.readUnsignedByte()];
+                    if (in.readBoolean()) {
+                        meter = in.readUTF();
+                    }
+                } else {
+                    // 以前のAmbient送信キューの形式
+                    kind = values.length == 1 ? Kind.DAY : Kind.MINUTE;
+                }
+                result.add(new Measurement(meter, kind, ts, values));
+            }
+        }
+        return result;
+    }
+}
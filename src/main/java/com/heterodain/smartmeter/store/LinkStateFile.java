@@ -0,0 +1,133 @@
+package com.heterodain.smartmeter.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.heterodain.smartmeter.model.WiSunLink;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.var;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * スマートメーターとの接続パラメータの保存先
+ *
+ * スキャンで見つけた接続パラメータをスマートメーターごとにJSONファイルに保存し、次回の起動時にスキャンを省略できるようにする。
+ * BルートIDが変わっていたり、値の形式が正しくない場合は保存されていないものとして扱う。
+ * ファイルは一時ファイルに書いてから置き換えるため、書き込み中に止まっても壊れない。
+ */
+@Slf4j
+public class LinkStateFile {
+    // 16進数の値
+    private static final Pattern HEX = Pattern.compile("[0-9A-Fa-f]{1,16}");
+    // IPV6アドレス
+    private static final Pattern IPV6 = Pattern.compile("[0-9A-Fa-f]{1,4}(:[0-9A-Fa-f]{0,4}){2,7}");
+
+    // JSONマッパー
+    private static final ObjectMapper om = new ObjectMapper();
+
+    // 保存先ファイル
+    private final File file;
+    // スマートメーターごとの接続パラメータ (キーは名前)
+    private final Map<String, Entry> entries;
+
+    /**
+     * 保存内容
+     */
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Entry {
+        // BルートID
+        private String brouteId;
+        // 接続パラメータ
+        private WiSunLink link;
+    }
+
+    /**
+     * コンストラクタ (ファイルが読めない場合は空の状態から始める)
+     *
+     * @param file 保存先ファイル
+     */
+    public LinkStateFile(File file) {
+        this.file = file;
+        Map<String, Entry> loaded = null;
+        if (file.isFile()) {
+            try {
+                loaded = om.readValue(file, new TypeReference<TreeMap<String, Entry>>() {
+                });
+            } catch (IOException e) {
+                log.warn("接続パラメータ[{}]を読み込めませんでした。スキャンから始めます。", file, e);
+            }
+        }
+        entries = loaded != null ? loaded : new TreeMap<>();
+    }
+
+    /**
+     * 保存されている接続パラメータ取得
+     *
+     * @param name     スマートメーターの名前
+     * @param brouteId BルートID
+     * @return 接続パラメータ (保存されていないか、使えない場合はnull)
+     */
+    public synchronized WiSunLink get(String name, String brouteId) {
+        var entry = entries.get(name);
+        if (entry == null || entry.getLink() == null) {
+            return null;
+        }
+        if (!Objects.equals(entry.getBrouteId(), brouteId)) {
+            log.info("BルートIDが変わったため、保存されている接続パラメータは使いません。");
+            return null;
+        }
+        var link = entry.getLink();
+        if (!matches(HEX, link.getChannel()) || !matches(HEX, link.getPanId()) || !matches(HEX, link.getAddr())
+                || !matches(IPV6, link.getAddress())) {
+            log.warn("保存されている接続パラメータが正しくないため使いません。{}", link);
+            return null;
+        }
+        return link;
+    }
+
+    /**
+     * 接続パラメータを保存 (変わっていない場合は何もしない)
+     *
+     * @param name     スマートメーターの名前
+     * @param brouteId BルートID
+     * @param link     接続パラメータ
+     * @throws IOException
+     */
+    public synchronized void put(String name, String brouteId, WiSunLink link) throws IOException {
+        var entry = new Entry(brouteId, link);
+        if (entry.equals(entries.get(name))) {
+            return;
+        }
+        entries.put(name, entry);
+
+        var temp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+        om.writerWithDefaultPrettyPrinter().writeValue(temp, entries);
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        log.debug("接続パラメータを保存しました。{} {}", name, link);
+    }
+
+    /**
+     * 値が形式に合っているか
+     *
+     * @param pattern 形式
+     * @param value   値
+     * @return 合っている場合はtrue
+     */
+    private static boolean matches(Pattern pattern, String value) {
+        return value != null && pattern.matcher(value).matches();
+    }
+}
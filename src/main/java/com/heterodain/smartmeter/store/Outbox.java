@@ -0,0 +1,287 @@
+package com.heterodain.smartmeter.store;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import lombok.Getter;
+import lombok.var;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 送信待ちデータのローカル保存先
+ *
+ * 送信データを追記専用のログファイルに書き込み、送信が完了した位置を別ファイルに記録する。
+ * 再起動しても送信済みの位置から読み直せるため、送信先に繋がらない間のデータを失わない。
+ * 全て送信済みになったらログファイルを切り詰める。
+ * 読み出したレコードは送信済みにするか送信をやめるまで送信中とし、その間は古いレコードを捨てない。
+ *
+ * <pre>
+ * log : レコード(長さ(4) CRC32(4) データ(長さ分)) の繰り返し
+ * ack : 送信済みの位置(8)
+ * </pre>
+ */
+@Slf4j
+public class Outbox implements Closeable {
+    // レコードヘッダサイズ
+    private static final int RECORD_HEADER_SIZE = 8;
+    // 1レコードの最大サイズ
+    private static final int MAX_RECORD_SIZE = 1024 * 1024;
+
+    // ログファイル
+    private final FileChannel logChannel;
+    // 送信済み位置のファイル
+    private final FileChannel ackChannel;
+
+    // 送信済みの位置
+    private long acked;
+    // 書き込み位置
+    private long end;
+    // 未送信のレコード数
+    @Getter
+    private int size;
+    // 読み出したレコードを送信中か
+    private boolean inFlight;
+
+    /**
+     * 読み出したレコード
+     */
+    @Getter
+    public static class Batch {
+        // レコードのデータ (古い順)
+        private final List<byte[]> entries = new ArrayList<>();
+        // 最後のレコードの次の位置
+        private long next;
+    }
+
+    /**
+     * コンストラクタ
+     *
+     * @param directory 保存先ディレクトリ
+     * @throws IOException
+     */
+    public Outbox(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("ディレクトリ[" + directory + "]を作成できませんでした。");
+        }
+        logChannel = FileChannel.open(new File(directory, "log").toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ackChannel = FileChannel.open(new File(directory, "ack").toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        var buf = ByteBuffer.allocate(8);
+        if (ackChannel.read(buf, 0) == 8) {
+            acked = buf.getLong(0);
+        }
+        acked = Math.max(0, Math.min(acked, logChannel.size()));
+
+        // 未送信のレコードを数える (書き込み途中で止まったレコードは切り捨てる)
+        var pos = acked;
+        while (true) {
+            var next = next(pos);
+            if (next < 0) {
+                break;
+            }
+            pos = next;
+            size++;
+        }
+        end = pos;
+        if (end < logChannel.size()) {
+            log.warn("不完全なレコードを切り捨てます。{} {} bytes", directory, logChannel.size() - end);
+            logChannel.truncate(end);
+        }
+        if (size > 0) {
+            log.info("未送信のデータが{}件あります。{}", size, directory);
+        }
+        compact();
+    }
+
+    /**
+     * レコードを追記
+     *
+     * @param data データ
+     * @throws IOException
+     */
+    public synchronized void append(byte[] data) throws IOException {
+        if (data.length > MAX_RECORD_SIZE) {
+            throw new IOException("レコードが大きすぎます。" + data.length + " bytes");
+        }
+        var crc = new CRC32();
+        crc.update(data);
+
+        var buf = ByteBuffer.allocate(RECORD_HEADER_SIZE + data.length);
+        buf.putInt(data.length);
+        buf.putInt((int) crc.getValue());
+        buf.put(data);
+        buf.flip();
+        while (buf.hasRemaining()) {
+            logChannel.write(buf, end + buf.position());
+        }
+        logChannel.force(false);
+
+        end += RECORD_HEADER_SIZE + data.length;
+        size++;
+    }
+
+    /**
+     * 未送信のレコードを古い順に読み出す (送信済みにはせず、{@link #ack(Batch)}か{@link #release(Batch)}まで送信中とする)
+     *
+     * @param max 最大件数
+     * @return 読み出したレコード
+     * @throws IOException
+     */
+    public synchronized Batch peek(int max) throws IOException {
+        var batch = new Batch();
+        var pos = acked;
+        while (batch.entries.size() < max && pos < end) {
+            var header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            readFully(header, pos);
+            var data = ByteBuffer.allocate(header.getInt(0));
+            readFully(data, pos + RECORD_HEADER_SIZE);
+            batch.entries.add(data.array());
+            pos += RECORD_HEADER_SIZE + data.capacity();
+        }
+        batch.next = pos;
+        inFlight = true;
+        return batch;
+    }
+
+    /**
+     * 読み出したレコードを送信済みにする
+     *
+     * @param batch 読み出したレコード
+     * @throws IOException
+     */
+    public synchronized void ack(Batch batch) throws IOException {
+        inFlight = false;
+        if (batch.next <= acked) {
+            return;
+        }
+        acked = batch.next;
+        size = Math.max(0, size - batch.entries.size());
+        writeAcked();
+        compact();
+    }
+
+    /**
+     * 読み出したレコードの送信をやめる (送信済みにはせず、次の読み出しで再び読み出す)
+     *
+     * @param batch 読み出したレコード
+     */
+    public synchronized void release(Batch batch) {
+        inFlight = false;
+    }
+
+    /**
+     * 古いレコードを送信せずに捨てる
+     *
+     * 送信中のレコードは捨てないため、送信中は何も捨てない。
+     *
+     * @param n 件数
+     * @return 捨てた件数
+     * @throws IOException
+     */
+    public synchronized int discard(int n) throws IOException {
+        if (inFlight) {
+            return 0;
+        }
+        var discarded = 0;
+        while (discarded < n && acked < end) {
+            acked = next(acked);
+            discarded++;
+        }
+        size -= discarded;
+        writeAcked();
+        compact();
+        return discarded;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            logChannel.close();
+        } finally {
+            ackChannel.close();
+        }
+    }
+
+    /**
+     * 全て送信済みならログファイルを切り詰める
+     *
+     * @throws IOException
+     */
+    private void compact() throws IOException {
+        if (acked == end && end > 0) {
+            // 先に送信済み位置を戻すと、切り詰める前に止まった場合に再送してしまうため、ログを先に切り詰める
+            logChannel.truncate(0);
+            logChannel.force(true);
+            acked = 0;
+            end = 0;
+            size = 0;
+            writeAcked();
+        }
+    }
+
+    /**
+     * 送信済みの位置を書き込む
+     *
+     * @throws IOException
+     */
+    private void writeAcked() throws IOException {
+        var buf = ByteBuffer.allocate(8);
+        buf.putLong(0, acked);
+        while (buf.hasRemaining()) {
+            ackChannel.write(buf, buf.position());
+        }
+        ackChannel.force(false);
+    }
+
+    /**
+     * 次のレコードの位置を取得
+     *
+     * @param pos レコードの位置
+     * @return 次のレコードの位置 (完全なレコードが無い場合は-1)
+     * @throws IOException
+     */
+    private long next(long pos) throws IOException {
+        var fileSize = logChannel.size();
+        if (pos + RECORD_HEADER_SIZE > fileSize) {
+            return -1;
+        }
+        var header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        readFully(header, pos);
+        var length = header.getInt(0);
+        if (length < 0 || length > MAX_RECORD_SIZE || pos + RECORD_HEADER_SIZE + length > fileSize) {
+            return -1;
+        }
+        var data = ByteBuffer.allocate(length);
+        readFully(data, pos + RECORD_HEADER_SIZE);
+        var crc = new CRC32();
+        crc.update(data.array());
+        if ((int) crc.getValue() != header.getInt(4)) {
+            return -1;
+        }
+        return pos + RECORD_HEADER_SIZE + length;
+    }
+
+    /**
+     * バッファが一杯になるまで読み込む
+     *
+     * @param buf 読み込み先
+     * @param pos 読み込み位置
+     * @throws IOException
+     */
+    private void readFully(ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            if (logChannel.read(buf, pos + buf.position()) < 0) {
+                throw new IOException("ログファイルが途中で終わっています。");
+            }
+        }
+    }
+}
@@ -0,0 +1,320 @@
+package com.heterodain.smartmeter.store;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.heterodain.smartmeter.model.CurrentPower;
+
+import lombok.var;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 電力情報のローカル保存先
+ *
+ * 固定長レコードを追記専用のセグメントファイルに書き込み、メモリマップで読み書きする。
+ * セグメントファイル名は先頭レコードの時刻(エポック秒)で、時刻範囲の検索はセグメント単位で絞り込んだ後に二分探索する。
+ *
+ * <pre>
+ * ヘッダ(16バイト): マジック(4) バージョン(4) レコード数(8)
+ * レコード(32バイト): 時刻(8) 瞬時電力W(4) R相電流0.1A(4) T相電流0.1A(4) 予備(4) 30分積算電力量Wh(8, 無い場合は-1)
+ * </pre>
+ */
+@Slf4j
+public class PowerStore implements Closeable {
+    // セグメントファイルの識別子
+    private static final int MAGIC = 0x50575231; // "PWR1"
+    // フォーマットのバージョン
+    private static final int VERSION = 1;
+    // ヘッダサイズ
+    private static final int HEADER_SIZE = 16;
+    // レコードサイズ
+    private static final int RECORD_SIZE = 32;
+    // セグメントあたりのレコード数
+    private static final int SEGMENT_RECORDS = 65536;
+    // セグメントファイルの拡張子
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    // 保存先ディレクトリ
+    private final File directory;
+    // セグメントファイル (キーは先頭レコードの時刻)
+    private final TreeMap<Long, File> segments = new TreeMap<>();
+
+    // 書き込み中のセグメント
+    private MappedByteBuffer active;
+    // 書き込み中のセグメントのレコード数
+    private int activeCount;
+    // 最後に書き込んだ時刻
+    private long lastTime = Long.MIN_VALUE;
+    // クローズ済みか
+    private boolean closed;
+
+    /**
+     * レコードを受け取る関数
+     */
+    @FunctionalInterface
+    public interface RecordVisitor {
+        /**
+         * @param epochSecond 時刻(エポック秒)
+         * @param watt        瞬時電力(W)
+         * @param rAmp        R相電流(0.1A)
+         * @param tAmp        T相電流(0.1A)
+         * @param total30     30分積算電力量(Wh) ※無い場合は-1
+         */
+        void visit(long epochSecond, long watt, long rAmp, long tAmp, long total30);
+    }
+
+    /**
+     * コンストラクタ
+     *
+     * @param directory 保存先ディレクトリ
+     * @throws IOException
+     */
+    public PowerStore(File directory) throws IOException {
+        this.directory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("ディレクトリ[" + directory + "]を作成できませんでした。");
+        }
+
+        var files = directory.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+        for (var file : files) {
+            var name = file.getName();
+            try {
+                segments.put(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())), file);
+            } catch (NumberFormatException e) {
+                log.warn("不明なファイルを無視します。{}", file);
+            }
+        }
+
+        // 最後のセグメントに追記を続ける
+        if (!segments.isEmpty()) {
+            active = map(segments.lastEntry().getValue(), FileChannel.MapMode.READ_WRITE);
+            activeCount = count(active);
+            if (activeCount > 0) {
+                lastTime = active.getLong(HEADER_SIZE + (activeCount - 1) * RECORD_SIZE);
+            }
+        }
+    }
+
+    /**
+     * 電力情報を追記
+     *
+     * @param epochSecond 時刻(エポック秒)
+     * @param power       電力情報
+     * @throws IOException
+     */
+    public void append(long epochSecond, CurrentPower power) throws IOException {
+        var accumu30 = power.getAccumu30();
+        append(epochSecond, power.getInstantPower(), power.getInstantRAmp(), power.getInstantTAmp(),
+                accumu30 == null ? -1 : accumu30.getTotalPower());
+    }
+
+    /**
+     * 電力情報を追記
+     *
+     * @param epochSecond 時刻(エポック秒)
+     * @param watt        瞬時電力(W)
+     * @param rAmp        R相電流(0.1A)
+     * @param tAmp        T相電流(0.1A)
+     * @param total30     30分積算電力量(Wh) ※無い場合は-1
+     * @throws IOException
+     */
+    public synchronized void append(long epochSecond, long watt, long rAmp, long tAmp, long total30)
+            throws IOException {
+        ensureOpen();
+        if (epochSecond < lastTime) {
+            log.warn("時刻が戻ったレコードは保存しません。{} < {}", epochSecond, lastTime);
+            return;
+        }
+        if (active == null || activeCount >= SEGMENT_RECORDS) {
+            newSegment(epochSecond);
+        }
+
+        var pos = HEADER_SIZE + activeCount * RECORD_SIZE;
+        active.putLong(pos, epochSecond);
+        active.putInt(pos + 8, (int) watt);
+        active.putInt(pos + 12, (int) rAmp);
+        active.putInt(pos + 16, (int) tAmp);
+        active.putLong(pos + 24, total30);
+
+        // レコードを書いてから件数を更新する
+        activeCount++;
+        active.putLong(8, activeCount);
+        lastTime = epochSecond;
+    }
+
+    /**
+     * 時刻範囲のレコードを時刻順に読み込む
+     *
+     * @param from    開始時刻(エポック秒、この時刻を含む)
+     * @param to      終了時刻(エポック秒、この時刻を含まない)
+     * @param visitor レコードを受け取る関数
+     * @return 読み込んだレコード数
+     * @throws IOException
+     */
+    public synchronized long scan(long from, long to, RecordVisitor visitor) throws IOException {
+        ensureOpen();
+        if (from >= to || segments.isEmpty()) {
+            return 0;
+        }
+
+        var floor = segments.floorKey(from);
+        var targets = segments.subMap(floor == null ? from : floor, true, to, false);
+
+        var total = 0L;
+        for (Map.Entry<Long, File> entry : targets.entrySet()) {
+            var buf = entry.getKey().equals(segments.lastKey()) ? active
+                    : map(entry.getValue(), FileChannel.MapMode.READ_ONLY);
+            var count = buf == active ? activeCount : count(buf);
+
+            for (var i = lowerBound(buf, count, from); i < count; i++) {
+                var pos = HEADER_SIZE + i * RECORD_SIZE;
+                var time = buf.getLong(pos);
+                if (time >= to) {
+                    break;
+                }
+                visitor.visit(time, buf.getInt(pos + 8), buf.getInt(pos + 12), buf.getInt(pos + 16),
+                        buf.getLong(pos + 24));
+                total++;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * 指定時刻より前のレコードしかないセグメントを削除
+     *
+     * @param epochSecond 時刻(エポック秒)
+     * @return 削除したセグメント数
+     */
+    public synchronized int deleteBefore(long epochSecond) {
+        if (closed) {
+            return 0;
+        }
+        var deleted = 0;
+        while (segments.size() > 1) {
+            var first = segments.firstEntry();
+            var next = segments.higherKey(first.getKey());
+            if (next > epochSecond) {
+                break;
+            }
+            if (!first.getValue().delete()) {
+                log.warn("セグメントを削除できませんでした。{}", first.getValue());
+                break;
+            }
+            segments.remove(first.getKey());
+            deleted++;
+        }
+        return deleted;
+    }
+
+    /**
+     * ディスクに書き出す
+     */
+    public synchronized void flush() {
+        if (active != null) {
+            active.force();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        flush();
+        active = null;
+        closed = true;
+    }
+
+    /**
+     * クローズ済みでないことを確認
+     *
+     * @throws IOException クローズ済みの場合
+     */
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("電力情報の保存先[" + directory + "]は閉じられています。");
+        }
+    }
+
+    /**
+     * 新しいセグメントを作成して書き込み先にする
+     *
+     * @param epochSecond 先頭レコードの時刻
+     * @throws IOException
+     */
+    private void newSegment(long epochSecond) throws IOException {
+        if (active != null) {
+            active.force();
+        }
+
+        var file = new File(directory, String.format("%019d%s", epochSecond, SEGMENT_SUFFIX));
+        active = map(file, FileChannel.MapMode.READ_WRITE);
+        active.putInt(0, MAGIC);
+        active.putInt(4, VERSION);
+        active.putLong(8, 0);
+        activeCount = 0;
+        segments.put(epochSecond, file);
+        log.debug("セグメントを作成しました。{}", file);
+    }
+
+    /**
+     * セグメントファイルをメモリにマップ
+     *
+     * @param file セグメントファイル
+     * @param mode マップモード
+     * @return マップしたバッファ
+     * @throws IOException
+     */
+    private static MappedByteBuffer map(File file, FileChannel.MapMode mode) throws IOException {
+        var size = HEADER_SIZE + (long) SEGMENT_RECORDS * RECORD_SIZE;
+        try (var raf = new RandomAccessFile(file, mode == FileChannel.MapMode.READ_ONLY ? "r" : "rw");
+                var channel = raf.getChannel()) {
+            var buf = channel.map(mode, 0, mode == FileChannel.MapMode.READ_ONLY ? channel.size() : size);
+            if (buf.capacity() >= HEADER_SIZE && buf.getLong(8) > 0 && buf.getInt(0) != MAGIC) {
+                throw new IOException("セグメントファイル[" + file + "]の形式が不正です。");
+            }
+            return buf;
+        }
+    }
+
+    /**
+     * セグメントのレコード数取得
+     *
+     * @param buf セグメント
+     * @return レコード数
+     */
+    private static int count(ByteBuffer buf) {
+        if (buf.capacity() < HEADER_SIZE) {
+            return 0;
+        }
+        var count = (int) buf.getLong(8);
+        return Math.min(count, (buf.capacity() - HEADER_SIZE) / RECORD_SIZE);
+    }
+
+    /**
+     * 指定時刻以降の最初のレコード位置を二分探索
+     *
+     * @param buf         セグメント
+     * @param count       レコード数
+     * @param epochSecond 時刻
+     * @return レコード位置
+     */
+    private static int lowerBound(ByteBuffer buf, int count, long epochSecond) {
+        var low = 0;
+        var high = count;
+        while (low < high) {
+            var mid = (low + high) >>> 1;
+            if (buf.getLong(HEADER_SIZE + mid * RECORD_SIZE) < epochSecond) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
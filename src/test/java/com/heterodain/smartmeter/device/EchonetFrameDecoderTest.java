@@ -0,0 +1,134 @@
+package com.heterodain.smartmeter.device;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import lombok.var;
+
+/**
+ * ERXUDPイベントからのEchonet Lite電文のデコードのテスト
+ *
+ * 文字列とバイト列の両方の入口で同じ結果になることを確認する。
+ */
+public class EchonetFrameDecoderTest {
+    // ERXUDPイベントの電文データより前の項目
+    private static final String HEADER = "ERXUDP FE80:0000:0000:0000:021C:6400:030C:12A4 "
+            + "FE80:0000:0000:0000:021D:1290:1234:5678 0E1A 0E1A 001C6400030C12A4 1 ";
+
+    private final EchonetFrameDecoder decoder = new EchonetFrameDecoder();
+
+    /**
+     * Get_Resのヘッダとプロパティ
+     */
+    @Test
+    public void decodesGetResponse() {
+        // 瞬時電力 500W、瞬時電流 R相12.3A T相-0.5A
+        var line = HEADER + "0018 1081000102880105FF017202E704000001F4E804007BFFFB";
+        for (var frame : decodeBoth(line, true)) {
+            assertEquals(0x1081, frame.getEhd());
+            assertEquals(0x0001, frame.getTid());
+            assertEquals(0x028801, frame.getSeoj());
+            assertEquals(0x05FF01, frame.getDeoj());
+            assertEquals(0x72, frame.getEsv());
+            assertEquals(2, frame.getOpc());
+            assertEquals(24, frame.getLength());
+
+            var power = frame.indexOf(0xE7);
+            assertEquals(0, power);
+            assertEquals(4, frame.getPdc(power));
+            assertEquals(500, frame.getSigned(power, 0, 4));
+
+            var amps = frame.indexOf(0xE8);
+            assertEquals(1, amps);
+            assertEquals(123, frame.getSigned(amps, 0, 2));
+            assertEquals(-5, frame.getSigned(amps, 2, 2));
+            assertEquals(0xFFFB, frame.getUnsigned(amps, 2, 2));
+            assertEquals(-1, frame.indexOf(0xE0));
+        }
+    }
+
+    /**
+     * 小文字の16進数と、電文データの後ろに続く項目
+     */
+    @Test
+    public void acceptsLowercaseAndTrailingFields() {
+        var line = HEADER + "0012 1081abcd02880105ff017301e00400bc614e extra";
+        for (var frame : decodeBoth(line, true)) {
+            assertEquals(0xABCD, frame.getTid());
+            assertEquals(0x73, frame.getEsv());
+            assertEquals(12345678, frame.getUnsigned(frame.indexOf(0xE0)));
+        }
+    }
+
+    /**
+     * ERXUDPイベントでない行や、電文として不正なデータ
+     */
+    @Test
+    public void rejectsInvalidLines() {
+        decodeBoth("OK", false);
+        decodeBoth("EVENT 21 FE80:0000:0000:0000:021C:6400:030C:12A4 0 00", false);
+        decodeBoth("ERXUDP", false);
+        // 電文データが無い
+        decodeBoth(HEADER.trim(), false);
+        decodeBoth(HEADER + "0000 ", false);
+        // 16進数の桁数が奇数
+        decodeBoth(HEADER + "000C 1081000102880105FF01720", false);
+        // ヘッダが足りない
+        decodeBoth(HEADER + "000B 1081000102880105FF0172", false);
+        // EHDがEchonet Lite電文でない
+        decodeBoth(HEADER + "000C 1082000102880105FF017200", false);
+        // PDCが電文の長さを超える
+        decodeBoth(HEADER + "0010 1081000102880105FF017201E7040000", false);
+    }
+
+    /**
+     * 同じ結果の格納先を使い回し、長い電文ではバッファを広げる
+     */
+    @Test
+    public void reusesFrame() {
+        var longData = new StringBuilder("1081000102880105FF017201E2FF");
+        for (var i = 0; i < 255; i++) {
+            longData.append(String.format("%02X", i));
+        }
+        var longLine = HEADER + String.format("%04X ", 269) + longData;
+        var shortLine = HEADER + "000E 1081000202880105FF017201E70400000064";
+
+        var frame = new EchonetFrame();
+        assertTrue(decoder.decode(longLine, frame));
+        assertEquals(269, frame.getLength());
+        assertEquals(0xFE, frame.getUnsigned(0, 254, 1));
+
+        var bytes = shortLine.getBytes(StandardCharsets.US_ASCII);
+        assertTrue(decoder.decode(bytes, 0, bytes.length, frame));
+        assertEquals(18, frame.getLength());
+        assertEquals(2, frame.getTid());
+        assertEquals(1, frame.getOpc());
+        assertEquals(100, frame.getUnsigned(frame.indexOf(0xE7)));
+
+        // 不正な電文の後はプロパティを返さない
+        assertFalse(decoder.decode(HEADER + "000C 1082000102880105FF017201", frame));
+        assertEquals(-1, frame.indexOf(0xE7));
+    }
+
+    /**
+     * 文字列とバイト列(前後に別のデータがあるバッファ)の両方でデコード
+     *
+     * @param line     受信行
+     * @param expected デコードできるか
+     * @return デコード結果 (文字列、バイト列の順)
+     */
+    private EchonetFrame[] decodeBoth(String line, boolean expected) {
+        var fromString = new EchonetFrame();
+        assertEquals(line, expected, decoder.decode(line, fromString));
+
+        var bytes = ("\r\n" + line + "\r\nOK\r\n").getBytes(StandardCharsets.US_ASCII);
+        var fromBytes = new EchonetFrame();
+        assertEquals(line, expected, decoder.decode(bytes, 2, line.length(), fromBytes));
+        return new EchonetFrame[] { fromString, fromBytes };
+    }
+}
@@ -0,0 +1,83 @@
+package com.heterodain.smartmeter.device;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import lombok.var;
+
+/**
+ * 積算電力量計測値からWhへの換算のテスト
+ */
+public class EnergyScaleTest {
+    /**
+     * 係数1、単位0.1kWh、有効桁数6
+     */
+    @Test
+    public void defaultScale() {
+        var scale = EnergyScale.DEFAULT;
+        assertEquals(100, scale.toWh(1));
+        assertEquals(1_000_000, scale.getModulus());
+        assertEquals(500, scale.deltaWh(1000, 1005));
+        assertEquals(0, scale.deltaWh(1000, 1000));
+    }
+
+    /**
+     * 有効桁数を超えて0に戻った場合も、戻った分を足して差分を求める
+     */
+    @Test
+    public void wrapsAtDigits() {
+        var scale = EnergyScale.DEFAULT;
+        assertEquals(200, scale.deltaWh(999_999, 1));
+        assertEquals(100, scale.deltaWh(999_999, 0));
+
+        var short4 = new EnergyScale(1, 0x0A, 4);
+        assertEquals(10_000, short4.toWh(1));
+        assertEquals(10_000, short4.deltaWh(9_999, 0));
+        assertEquals(30_000, short4.deltaWh(9_998, 1));
+
+        var long8 = new EnergyScale(1, 0x02, 8);
+        assertEquals(150, long8.deltaWh(99_999_990, 5));
+    }
+
+    /**
+     * 係数と単位の組み合わせ
+     */
+    @Test
+    public void coefficientAndUnit() {
+        assertEquals(3000, new EnergyScale(3, 0x00, 6).toWh(1));
+        assertEquals(6000, new EnergyScale(3, 0x00, 6).deltaWh(10, 12));
+        assertEquals(1, new EnergyScale(1, 0x03, 6).toWh(1));
+        assertEquals(10, new EnergyScale(100, 0x04, 6).toWh(1));
+        assertEquals(1_000_000, new EnergyScale(1, 0x0C, 6).toWh(1));
+        assertEquals(40, new EnergyScale(40, 0x03, 6).deltaWh(999_999, 0));
+    }
+
+    /**
+     * Whに換算済みの値の差分も、0に戻った分を足して求める
+     */
+    @Test
+    public void differenceOfConvertedValues() {
+        var scale = EnergyScale.DEFAULT;
+        assertEquals(200, scale.differenceWh(99_999_900, 100));
+        assertEquals(scale.deltaWh(999_999, 1), scale.differenceWh(scale.toWh(999_999), scale.toWh(1)));
+
+        var scaled = new EnergyScale(10, 0x02, 5);
+        assertEquals(200, scaled.differenceWh(scaled.toWh(99_999), scaled.toWh(1)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroCoefficient() {
+        new EnergyScale(0, 0x01, 6);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTooManyDigits() {
+        new EnergyScale(1, 0x01, 9);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownUnit() {
+        new EnergyScale(1, 0x05, 6);
+    }
+}
@@ -0,0 +1,153 @@
+package com.heterodain.smartmeter.device;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import org.junit.Test;
+
+import lombok.var;
+
+/**
+ * CRLF区切りの行の切り出しのテスト
+ */
+public class LineReaderTest {
+    /**
+     * CRとLFが別々の読み込みに分かれても1行として切り出す
+     */
+    @Test
+    public void joinsCrlfSplitAcrossReads() throws IOException {
+        var reader = new LineReader(new ChunkedInputStream("ERXUDP FE80\r", "\nOK\r", "\n", "EVENT 21\r\n"), 64);
+
+        assertLine(reader, "ERXUDP FE80");
+        assertTrue(reader.startsWith("ERXUDP"));
+        assertFalse(reader.startsWith("EVENT"));
+        assertLine(reader, "OK");
+        assertLine(reader, "EVENT 21");
+        assertFalse(reader.readLine());
+    }
+
+    /**
+     * 1文字ずつ届いても行を切り出し、空行も1行とする
+     */
+    @Test
+    public void readsByteByByte() throws IOException {
+        var text = "SKVER\r\n\r\nEVER 1.2.10\r\nOK\r\n";
+        var chunks = new String[text.length()];
+        for (var i = 0; i < chunks.length; i++) {
+            chunks[i] = text.substring(i, i + 1);
+        }
+        var reader = new LineReader(new ChunkedInputStream(chunks), 16);
+
+        assertLine(reader, "SKVER");
+        assertLine(reader, "");
+        assertLine(reader, "EVER 1.2.10");
+        assertLine(reader, "OK");
+        assertFalse(reader.readLine());
+    }
+
+    /**
+     * バッファサイズを超える行はバッファサイズで区切る
+     */
+    @Test
+    public void splitsOverlongLines() throws IOException {
+        var reader = new LineReader(new ChunkedInputStream("0123456789ABCDEFGHIJ\r\nOK\r\n"), 8);
+
+        assertLine(reader, "01234567");
+        assertLine(reader, "89ABCDEF");
+        assertLine(reader, "GHIJ");
+        assertLine(reader, "OK");
+        assertFalse(reader.readLine());
+    }
+
+    /**
+     * リングバッファの末尾をまたぐ行も連続したバイト列で返す
+     */
+    @Test
+    public void copiesLinesWrappingTheRing() throws IOException {
+        var reader = new LineReader(new ChunkedInputStream("ABC\r\n", "DEFG\r\n", "HI\r\n"), 8);
+
+        assertLine(reader, "ABC");
+        assertLine(reader, "DEFG");
+        assertEquals(0, reader.getOffset());
+        assertLine(reader, "HI");
+        assertFalse(reader.readLine());
+    }
+
+    /**
+     * 改行の前に終端に達した場合は、残りを最後の行とする
+     */
+    @Test
+    public void returnsPartialLineAtEof() throws IOException {
+        var reader = new LineReader(new ChunkedInputStream("OK\r\n", "FAIL ER", "04\r"), 64);
+
+        assertLine(reader, "OK");
+        assertLine(reader, "FAIL ER04");
+        assertFalse(reader.readLine());
+        assertFalse(reader.readLine());
+
+        var empty = new LineReader(new ChunkedInputStream(), 64);
+        assertFalse(empty.ready());
+        assertFalse(empty.readLine());
+    }
+
+    /**
+     * 次の行を読み込み、内容を確認
+     *
+     * @param reader 読み込み元
+     * @param line   行の内容
+     * @throws IOException
+     */
+    private static void assertLine(LineReader reader, String line) throws IOException {
+        assertTrue(reader.readLine());
+        assertEquals(line, reader.toString());
+        assertEquals(line.length(), reader.getLength());
+    }
+
+    /**
+     * 指定した単位で少しずつデータを返す入力ストリーム
+     */
+    private static class ChunkedInputStream extends InputStream {
+        // 残りのデータ
+        private final Deque<byte[]> chunks = new ArrayDeque<>();
+
+        ChunkedInputStream(String... chunks) {
+            for (var chunk : chunks) {
+                this.chunks.add(chunk.getBytes(StandardCharsets.ISO_8859_1));
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            var b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            var chunk = chunks.poll();
+            if (chunk == null) {
+                return -1;
+            }
+            var n = Math.min(len, chunk.length);
+            System.arraycopy(chunk, 0, b, off, n);
+            if (n < chunk.length) {
+                var rest = new byte[chunk.length - n];
+                System.arraycopy(chunk, n, rest, 0, rest.length);
+                chunks.push(rest);
+            }
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return chunks.isEmpty() ? 0 : chunks.peek().length;
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package com.heterodain.smartmeter.device;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.heterodain.smartmeter.model.CurrentPower;
+import com.heterodain.smartmeter.model.EnergyReading;
+
+import org.junit.After;
+import org.junit.Test;
+
+import lombok.var;
+
+/**
+ * シミュレーターを相手にしたスマートメーターとの通信のテスト
+ */
+public class SmartMeterTest {
+    private static final ZoneId JST = ZoneId.of("Asia/Tokyo");
+    // シミュレーターの起動時の積算電力量(Wh)
+    private static final long INITIAL_ENERGY = 50_000_000;
+
+    // テストで開いたスマートメーター
+    private final List<SmartMeter> meters = new ArrayList<>();
+
+    @After
+    public void closeMeters() throws IOException {
+        for (var meter : meters) {
+            meter.close();
+        }
+    }
+
+    /**
+     * 瞬時電力、瞬時電流、定時積算電力量
+     */
+    @Test
+    public void readsCurrentPower() throws Exception {
+        var meter = connect("meter", new MeterSimulator("sim:latency=20,jitter=5,scan=50,power=1000,seed=1"));
+
+        var power = meter.getCurrentPower();
+        assertNotNull(power.getInstantPower());
+        assertTrue(power.getInstantPower() >= 0);
+        assertNotNull(power.getInstantRAmp());
+        assertNotNull(power.getInstantTAmp());
+        // 初回は差分を求められないため、30分積算電力は返らない
+        assertNull(power.getAccumu30());
+
+        var properties = meter.getPropertiesAsync(EchonetProperty.ACCUMU30).get(5, TimeUnit.SECONDS);
+        var accumu30 = properties.get(EchonetProperty.ACCUMU30);
+        assertNotNull(accumu30);
+        assertEquals(0, accumu30.getTime().getMinute() % 30);
+        assertTrue(accumu30.getTime().isBefore(ZonedDateTime.now(JST)));
+        assertEquals(INITIAL_ENERGY, meter.getEnergyScale().toWh(accumu30.getValue()), 1000);
+    }
+
+    /**
+     * 接続時に係数、単位、有効桁数を読み出す
+     */
+    @Test
+    public void readsEnergyScale() throws Exception {
+        var meter = connect("meter",
+                new MeterSimulator("sim:latency=20,jitter=5,scan=50,coefficient=10,unit=01,seed=1"));
+
+        var scale = meter.getEnergyScale();
+        assertEquals(10, scale.getCoefficient());
+        assertEquals(0x01, scale.getUnit());
+        assertEquals(6, scale.getDigits());
+        assertEquals(1000, scale.toWh(1));
+
+        var accumu30 = meter.getPropertiesAsync(EchonetProperty.ACCUMU30).get(5, TimeUnit.SECONDS)
+                .get(EchonetProperty.ACCUMU30);
+        // 既定の換算では1/10になる
+        assertEquals(INITIAL_ENERGY, scale.toWh(accumu30.getValue()), 1000);
+    }
+
+    /**
+     * 係数(D3)が未実装で読み出し不可応答が返っても、単位と有効桁数は使い、係数を1とする
+     */
+    @Test
+    public void defaultsMissingCoefficient() throws Exception {
+        var meter = connect("meter",
+                new MeterSimulator("sim:latency=20,jitter=0,scan=50,coefficient=0,unit=03,seed=1"));
+
+        var scale = meter.getEnergyScale();
+        assertEquals(1, scale.getCoefficient());
+        assertEquals(0x03, scale.getUnit());
+        assertEquals(1, scale.toWh(1));
+
+        // 読み出し不可応答でも、返ったプロパティは取得できる
+        var properties = meter.getPropertiesAsync(EchonetProperty.COEFFICIENT, EchonetProperty.ENERGY_UNIT)
+                .get(5, TimeUnit.SECONDS);
+        assertNull(properties.get(EchonetProperty.COEFFICIENT));
+        assertEquals(Long.valueOf(0x03), properties.get(EchonetProperty.ENERGY_UNIT));
+
+        // 書き込み不可応答を受け付けない要求は失敗する (応答は送信順に返る)
+        try {
+            meter.getBeforeDayPowerAsync(100).get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().getMessage().contains("ESV=51"));
+        }
+    }
+
+    /**
+     * 積算電力量計測値履歴１ (前日の48コマ)
+     */
+    @Test
+    public void readsHistory1() throws Exception {
+        var meter = connect("meter", new MeterSimulator("sim:latency=20,jitter=5,scan=50,seed=1"));
+
+        var history = meter.getBeforeDayPower(1);
+        assertEquals(ZonedDateTime.now(JST).minusDays(1).truncatedTo(ChronoUnit.DAYS), history.getTime());
+        assertEquals(48, history.getAccumu30Powers().size());
+        Long before = null;
+        for (var power : history.getAccumu30Powers()) {
+            assertNotNull(power);
+            if (before != null) {
+                assertTrue(power >= before);
+            }
+            before = power;
+        }
+
+        // 当日分はまだ計測していないコマがnullになる
+        var today = meter.getBeforeDayPower(0).getAccumu30Powers();
+        assertEquals(48, today.size());
+        assertNotNull(today.get(0));
+        if (ZonedDateTime.now(JST).getHour() < 23) {
+            assertNull(today.get(47));
+        }
+    }
+
+    /**
+     * 積算電力量計測値履歴２ (指定期間の30分毎の積算電力量)
+     */
+    @Test
+    public void readsHistory2() throws Exception {
+        var meter = connect("meter", new MeterSimulator("sim:latency=20,jitter=5,scan=50,seed=1"));
+
+        var now = ZonedDateTime.now(JST);
+        var readings = new ArrayList<EnergyReading>();
+        meter.readHistory(now.minusHours(7).minusMinutes(1), now.plusHours(1)).forEachRemaining(readings::add);
+
+        // 12コマを超えるため複数回に分けて取得し、古い順に隙間なく並ぶ
+        assertTrue(readings.size() >= 14 && readings.size() <= 15);
+        var last = readings.get(readings.size() - 1).getTime();
+        assertTrue(!last.isAfter(now) && last.isAfter(now.minusMinutes(30)));
+        for (var i = 0; i < readings.size(); i++) {
+            var reading = readings.get(i);
+            assertNotNull(reading.getEnergy());
+            if (i > 0) {
+                assertEquals(readings.get(i - 1).getTime().plusMinutes(30), reading.getTime());
+                assertTrue(reading.getEnergy() >= readings.get(i - 1).getEnergy());
+            }
+        }
+
+        var block = meter.getHistory2Async(last, 3).get(5, TimeUnit.SECONDS);
+        assertEquals(3, block.size());
+        assertEquals(last, block.get(2).getTime());
+        assertEquals(readings.get(readings.size() - 1).getEnergy(), block.get(2).getEnergy());
+
+        try {
+            meter.getHistory2Async(last, SmartMeter.HISTORY2_MAX_SLOTS + 1);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // OK
+        }
+    }
+
+    /**
+     * 壊れた行が混ざっても応答を読み取れる
+     */
+    @Test
+    public void ignoresGarbageLines() throws Exception {
+        var meter = connect("meter", new MeterSimulator("sim:latency=20,jitter=5,scan=50,garbage=0.5,seed=1"));
+
+        var futures = new ArrayList<CompletableFuture<CurrentPower>>();
+        for (var i = 0; i < 20; i++) {
+            futures.add(meter.getCurrentPowerAsync());
+        }
+        for (var future : futures) {
+            assertNotNull(future.get(10, TimeUnit.SECONDS).getInstantPower());
+        }
+        assertEquals(48, meter.getBeforeDayPower(1).getAccumu30Powers().size());
+    }
+
+    /**
+     * 応答が返らなければタイムアウトし、バックグラウンドで再接続して回復する
+     */
+    @Test(timeout = 60000)
+    public void recoversFromLostResponses() throws Exception {
+        var simulator = new MeterSimulator("sim:latency=20,jitter=5,scan=50,seed=1");
+        var meter = connect("meter", simulator);
+
+        simulator.setLossRate(1);
+        try {
+            meter.getCurrentPower();
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+
+        simulator.setLossRate(0);
+        while (true) {
+            try {
+                assertNotNull(meter.getCurrentPower().getInstantPower());
+                break;
+            } catch (IOException e) {
+                // 再接続中
+                Thread.sleep(200);
+            }
+        }
+    }
+
+    /**
+     * 2台のスマートメーターに同時に要求しても、それぞれの応答が返る
+     */
+    @Test
+    public void pollsTwoMetersConcurrently() throws Exception {
+        var small = connect("small", new MeterSimulator("sim:latency=30,jitter=20,scan=50,power=100,seed=1"));
+        var large = connect("large", new MeterSimulator("sim:latency=10,jitter=20,scan=50,power=10000,seed=2"));
+
+        var smallFutures = new ArrayList<CompletableFuture<CurrentPower>>();
+        var largeFutures = new ArrayList<CompletableFuture<CurrentPower>>();
+        for (var i = 0; i < 10; i++) {
+            smallFutures.add(small.getCurrentPowerAsync());
+            largeFutures.add(large.getCurrentPowerAsync());
+        }
+        var smallHistory = small.getBeforeDayPowerAsync(1);
+        var largeHistory = large.getBeforeDayPowerAsync(2);
+
+        // 平均電力が100倍違うため、取り違えれば範囲を外れる
+        for (var future : smallFutures) {
+            assertTrue(future.get(10, TimeUnit.SECONDS).getInstantPower() < 1000);
+        }
+        for (var future : largeFutures) {
+            assertTrue(future.get(10, TimeUnit.SECONDS).getInstantPower() > 1000);
+        }
+        var today = ZonedDateTime.now(JST).truncatedTo(ChronoUnit.DAYS);
+        assertEquals(today.minusDays(1), smallHistory.get(10, TimeUnit.SECONDS).getTime());
+        assertEquals(today.minusDays(2), largeHistory.get(10, TimeUnit.SECONDS).getTime());
+    }
+
+    /**
+     * シミュレーターを相手に接続
+     *
+     * @param name      名前
+     * @param simulator シミュレーター
+     * @return スマートメーター
+     * @throws Exception
+     */
+    private SmartMeter connect(String name, MeterSimulator simulator) throws Exception {
+        var meter = new SmartMeter(simulator, "00112233445566778899AABBCCDDEEFF", "0123456789AB");
+        meters.add(meter);
+        meter.setName(name);
+        meter.init();
+        meter.connect();
+        return meter;
+    }
+}
@@ -0,0 +1,244 @@
+package com.heterodain.smartmeter.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import lombok.var;
+
+/**
+ * Ambientの取得データのキャッシュのテスト
+ */
+public class AmbientCacheTest {
+    private static final ZoneId JST = ZoneId.of("Asia/Tokyo");
+    private static final LocalDate DAY = LocalDate.of(2020, 10, 12);
+    // 1時間のミリ秒
+    private static final long HOUR = 3600000L;
+    // 十分に長い時間(ミリ秒)
+    private static final long LONG = 100L * 365 * 24 * HOUR;
+
+    // 取得元のHTTPサーバー
+    private HttpServer server;
+    // HTTPサーバーが受け取った期間指定の取得 ("開始日～終了日" 終了日を含まない)
+    private final List<String> ranges = new CopyOnWriteArrayList<>();
+    // HTTPサーバーが受け取った件数指定の取得
+    private final List<Integer> counts = new CopyOnWriteArrayList<>();
+    // 取得元
+    private Ambient ambient;
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/api/v2/channels/1/data", this::handle);
+        server.start();
+        ambient = new Ambient(new HttpClient(2000, 2000), "http://127.0.0.1:" + server.getAddress().getPort(), 1,
+                "r", "w");
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    /**
+     * 重なる期間の問い合わせでは、足りない日だけを取得する
+     */
+    @Test
+    public void fetchesOnlyMissingDays() throws Exception {
+        var cache = new AmbientCache(JST, LONG, 0, 10000);
+
+        var first = cache.read(ambient, start(DAY), start(DAY.plusDays(3)));
+        assertEquals(72, first.size());
+        assertEquals(1, ranges.size());
+        assertEquals("2020-10-12～2020-10-15", ranges.get(0));
+
+        // 13日～16日のうち、15日と16日だけを取得する
+        var overlapped = cache.read(ambient, start(DAY.plusDays(1)), start(DAY.plusDays(5)));
+        assertEquals(2, ranges.size());
+        assertEquals("2020-10-15～2020-10-17", ranges.get(1));
+        assertHourly(overlapped, start(DAY.plusDays(1)), 96);
+
+        // 前後に足りない日がある場合は、連続した期間ごとに取得する
+        var wider = cache.read(ambient, start(DAY.minusDays(2)), start(DAY.plusDays(7)));
+        assertEquals(4, ranges.size());
+        assertEquals("2020-10-10～2020-10-12", ranges.get(2));
+        assertEquals("2020-10-17～2020-10-19", ranges.get(3));
+        assertHourly(wider, start(DAY.minusDays(2)), 9 * 24);
+
+        // 日の途中からの期間も保持済みのセグメントで答える
+        var partial = cache.read(ambient, start(DAY).plusHours(6), start(DAY).plusHours(18));
+        assertEquals(4, ranges.size());
+        assertHourly(partial, start(DAY).plusHours(6), 12);
+        assertEquals(9 * 24, cache.size());
+    }
+
+    /**
+     * 確定した過去の日は有効期限が切れても再取得しない
+     */
+    @Test
+    public void neverRefetchesSettledDays() throws Exception {
+        var cache = new AmbientCache(JST, 0, 0, 10000);
+        cache.read(ambient, DAY);
+        cache.read(ambient, DAY);
+        cache.read(ambient, start(DAY).plusHours(12), start(DAY.plusDays(1)));
+        assertEquals(1, ranges.size());
+
+        // 確定していない当日は有効期限が切れたら取り直す
+        var today = LocalDate.now(JST);
+        cache.read(ambient, today);
+        cache.read(ambient, today);
+        assertEquals(3, ranges.size());
+
+        // 日が終わってから確定するまでの間は、過去の日でも取り直す
+        var unsettled = new AmbientCache(JST, 0, LONG, 10000);
+        unsettled.read(ambient, DAY);
+        unsettled.read(ambient, DAY);
+        assertEquals(5, ranges.size());
+    }
+
+    /**
+     * 確定していないデータは有効期限の間だけ使う
+     */
+    @Test
+    public void refetchesAfterTtl() throws Exception {
+        var cache = new AmbientCache(JST, 200, 0, 10000);
+        var today = LocalDate.now(JST);
+        cache.read(ambient, today);
+        cache.read(ambient, today);
+        assertEquals(1, ranges.size());
+        Thread.sleep(300);
+        cache.read(ambient, today);
+        assertEquals(2, ranges.size());
+
+        // 直近n個も同じ
+        assertEquals(5, cache.read(ambient, 5).size());
+        assertEquals(5, cache.read(ambient, 5).size());
+        assertEquals(1, counts.size());
+        Thread.sleep(300);
+        cache.read(ambient, 5);
+        assertEquals(2, counts.size());
+    }
+
+    /**
+     * 保持する行数が上限を超えたら、最後に使われてから最も時間が経った日から捨てる
+     */
+    @Test
+    public void evictsLeastRecentlyUsed() throws Exception {
+        var cache = new AmbientCache(JST, LONG, 0, 48);
+        cache.read(ambient, DAY);
+        cache.read(ambient, DAY.plusDays(1));
+        assertEquals(48, cache.size());
+
+        // 12日を使ってから14日を取得すると、13日が捨てられる
+        cache.read(ambient, DAY);
+        cache.read(ambient, DAY.plusDays(2));
+        assertEquals(3, ranges.size());
+        assertTrue(cache.size() <= 48);
+
+        cache.read(ambient, DAY);
+        assertEquals(3, ranges.size());
+        cache.read(ambient, DAY.plusDays(1));
+        assertEquals(4, ranges.size());
+        assertEquals("2020-10-13～2020-10-14", ranges.get(3));
+        assertTrue(cache.size() <= 48);
+
+        // 上限を超える期間は返すが、保持は上限まで
+        var wide = cache.read(ambient, start(DAY.plusDays(3)), start(DAY.plusDays(6)));
+        assertEquals(72, wide.size());
+        assertTrue(cache.size() <= 48);
+
+        cache.clear();
+        assertEquals(0, cache.size());
+    }
+
+    /**
+     * 日の開始日時
+     *
+     * @param date 日付
+     * @return 開始日時
+     */
+    private static ZonedDateTime start(LocalDate date) {
+        return date.atStartOfDay(JST);
+    }
+
+    /**
+     * 1時間ごとの行が新しい順に隙間なく並んでいることを確認
+     *
+     * @param series 取得データ
+     * @param start  最も古い行の時刻
+     * @param rows   行数
+     */
+    private static void assertHourly(AmbientSeries series, ZonedDateTime start, int rows) {
+        assertEquals(rows, series.size());
+        var time = start.toInstant().toEpochMilli() + (rows - 1) * HOUR;
+        for (var row = 0; row < rows; row++, time -= HOUR) {
+            assertEquals(time, series.getTime(row));
+            assertEquals(time / HOUR, series.get(1, row), 0);
+        }
+    }
+
+    /**
+     * 取得のリクエストに、現在時刻までの1時間ごとの行を新しい順に返す (d1は1970年からの時間数)
+     *
+     * @param exchange リクエスト
+     * @throws IOException
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+        var query = new HashMap<String, String>();
+        for (var param : exchange.getRequestURI().getRawQuery().split("&")) {
+            var kv = param.split("=", 2);
+            query.put(kv[0], URLDecoder.decode(kv[1], "UTF-8"));
+        }
+
+        var now = System.currentTimeMillis();
+        long from;
+        long to;
+        if (query.containsKey("n")) {
+            var n = Integer.parseInt(query.get("n"));
+            counts.add(n);
+            to = now;
+            from = (now / HOUR - n + 1) * HOUR;
+        } else {
+            var start = LocalDateTime.parse(query.get("start")).toInstant(ZoneOffset.UTC);
+            var end = LocalDateTime.parse(query.get("end")).toInstant(ZoneOffset.UTC);
+            ranges.add(start.atZone(JST).toLocalDate() + "～" + end.atZone(JST).toLocalDate());
+            from = start.toEpochMilli();
+            to = Math.min(end.toEpochMilli() - 1, now);
+        }
+
+        var body = new StringBuilder("[");
+        var time = new char[23];
+        for (var hour = to / HOUR; hour * HOUR >= from; hour--) {
+            AmbientJson.formatUtc(hour * HOUR, time);
+            if (body.length() > 1) {
+                body.append(',');
+            }
+            body.append("{\"d1\":").append(hour).append(",\"created\":\"").append(time).append("Z\"}");
+        }
+        body.append(']');
+
+        var bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(200, bytes.length);
+        exchange.getResponseBody().write(bytes);
+        exchange.close();
+    }
+}
@@ -0,0 +1,131 @@
+package com.heterodain.smartmeter.sink;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.heterodain.smartmeter.model.Measurement;
+import com.heterodain.smartmeter.model.Measurement.Kind;
+import com.heterodain.smartmeter.service.Ambient;
+import com.heterodain.smartmeter.service.HttpClient;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import lombok.var;
+
+/**
+ * Ambientへの送信のテスト
+ */
+public class AmbientSinkTest {
+    private static final ZonedDateTime TIME = ZonedDateTime.of(2020, 10, 17, 12, 0, 0, 0, ZoneId.of("Asia/Tokyo"));
+
+    // 送信先のHTTPサーバー
+    private HttpServer server;
+    // HTTPサーバーが受け取ったボディ
+    private final List<String> bodies = new CopyOnWriteArrayList<>();
+    // HTTPサーバーが返す応答コード
+    private volatile int resCode = 200;
+    // 送信先
+    private Ambient ambient;
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/api/v2/channels/123/dataarray", exchange -> {
+            bodies.add(new String(readAll(exchange.getRequestBody()), StandardCharsets.UTF_8));
+            exchange.sendResponseHeaders(resCode, -1);
+            exchange.close();
+        });
+        server.start();
+        ambient = new Ambient(new HttpClient(2000, 2000), "http://127.0.0.1:" + server.getAddress().getPort(), 123,
+                "read", "write");
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    /**
+     * 複数時刻分を1回で送信し、同じ時刻の計測値は1件にまとめる
+     */
+    @Test
+    public void postsBatchAsDataArray() throws Exception {
+        var sink = new AmbientSink(null, ambient);
+        assertEquals("ambient-123", sink.getName());
+
+        sink.write(Arrays.asList(
+                new Measurement("house", Kind.MINUTE, TIME, new Double[] { 400.0, 300.0, null }),
+                new Measurement("house", Kind.MINUTE, TIME.withZoneSameInstant(ZoneId.of("UTC")),
+                        new Double[] { 410.0, null, 1234.0 }),
+                new Measurement("house", Kind.MINUTE, TIME.plusMinutes(1), new Double[] { 420.0, 320.0 })));
+
+        assertEquals(1, bodies.size());
+        var json = new ObjectMapper().readTree(bodies.get(0));
+        assertEquals("write", json.get("writeKey").asText());
+        var data = json.get("data");
+        assertEquals(2, data.size());
+
+        // 同じ時刻は後から追加した値を優先し、無い値は先の値を使う
+        var merged = data.get(0);
+        assertEquals("2020-10-17T03:00:00.000", merged.get("created").asText());
+        assertEquals(410.0, merged.get("d1").asDouble(), 0);
+        assertEquals(300.0, merged.get("d2").asDouble(), 0);
+        assertEquals(1234.0, merged.get("d3").asDouble(), 0);
+
+        // 値が無い項目は送らない
+        var next = data.get(1);
+        assertEquals("2020-10-17T03:01:00.000", next.get("created").asText());
+        assertEquals(420.0, next.get("d1").asDouble(), 0);
+        assertEquals(320.0, next.get("d2").asDouble(), 0);
+        assertTrue(!next.has("d3"));
+    }
+
+    /**
+     * 200以外の応答は送信の失敗とする
+     */
+    @Test
+    public void failsOnErrorResponse() throws Exception {
+        resCode = 500;
+        var sink = new AmbientSink("ambient", ambient);
+        try {
+            sink.write(Arrays.asList(new Measurement(null, Kind.DAY, TIME, new Double[] { 1.0 })));
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("500"));
+        }
+        assertEquals(1, bodies.size());
+    }
+
+    /**
+     * 全て読み込む
+     *
+     * @param in 入力
+     * @return データ
+     * @throws IOException
+     */
+    private static byte[] readAll(InputStream in) throws IOException {
+        var out = new ByteArrayOutputStream();
+        var buf = new byte[4096];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+}
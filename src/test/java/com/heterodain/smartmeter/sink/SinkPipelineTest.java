@@ -0,0 +1,225 @@
+package com.heterodain.smartmeter.sink;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.heterodain.smartmeter.model.Measurement;
+import com.heterodain.smartmeter.model.Measurement.Kind;
+import com.heterodain.smartmeter.service.HttpClient;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import lombok.var;
+
+/**
+ * 計測値の送信先への振り分けのテスト
+ */
+public class SinkPipelineTest {
+    private static final ZonedDateTime TIME = ZonedDateTime.of(2020, 10, 17, 12, 0, 0, 0, ZoneId.of("Asia/Tokyo"));
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // 送信先のHTTPサーバー
+    private HttpServer server;
+    // HTTPサーバーが受け取ったリクエスト (パスごとのボディ)
+    private final Map<String, List<String>> requests = new ConcurrentHashMap<>();
+    // HTTPサーバーが受け取ったヘッダ
+    private final List<String> authorizations = new CopyOnWriteArrayList<>();
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            var body = readAll(exchange.getRequestBody());
+            requests.computeIfAbsent(exchange.getRequestURI().getPath(), k -> new CopyOnWriteArrayList<>())
+                    .add(new String(body, StandardCharsets.UTF_8));
+            authorizations.add(String.valueOf(exchange.getRequestHeaders().getFirst("Authorization")));
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    /**
+     * 条件に合う全ての送信先に届き、失敗し続ける送信先があっても他には届く
+     */
+    @Test
+    public void fansOutToMatchingSinks() throws Exception {
+        var all = new StubSink("all");
+        var days = new StubSink("days");
+        var broken = new StubSink("broken");
+        broken.failing = true;
+
+        var url = "http://127.0.0.1:" + server.getAddress().getPort() + "/ingest";
+        try (var pipeline = new SinkPipeline(folder.newFolder("outbox"))) {
+            pipeline.add(all, null, null, 10, 0, 100);
+            pipeline.add(days, null, EnumSet.of(Kind.DAY), 10, 0, 100);
+            pipeline.add(broken, null, null, 10, 0, 100);
+            pipeline.add(new HttpJsonSink("http", new HttpClient(2000, 2000), url,
+                    Collections.singletonMap("Authorization", "Bearer x")), "house", null, 10, 0, 100);
+
+            pipeline.publish(new Measurement("house", Kind.MINUTE, TIME, new Double[] { 400.0, 300.0, 1234.0 }));
+            pipeline.publish(new Measurement("house", Kind.MINUTE, TIME.plusMinutes(1),
+                    new Double[] { 410.0, 310.0, null }));
+            pipeline.publish(new Measurement("shop", Kind.DAY, TIME, new Double[] { 9876.0 }));
+
+            // HTTPの送信先は2件が1回にまとまる場合と分かれる場合があるため、件数で待つ
+            await(() -> all.received.size() == 3 && days.received.size() == 1 && ingested().size() == 2);
+        }
+
+        // 送信先ごとの条件
+        assertEquals("house", all.received.get(0).getMeter());
+        assertArrayEquals(new Double[] { 410.0, 310.0, null }, all.received.get(1).getValues());
+        assertEquals("shop", days.received.get(0).getMeter());
+        assertEquals(Kind.DAY, days.received.get(0).getKind());
+        assertTrue(broken.attempts > 0);
+        assertEquals(0, broken.received.size());
+
+        // HTTPの送信先は指定したスマートメーターの分だけ、JSONで届く
+        var rows = ingested();
+        assertEquals(2, rows.size());
+        assertEquals("house", rows.get(0).get("meter").asText());
+        assertEquals("minute", rows.get(0).get("kind").asText());
+        assertEquals(TIME.toInstant(), ZonedDateTime.parse(rows.get(0).get("time").asText()).toInstant());
+        assertEquals(1234.0, rows.get(0).get("accumu30").asDouble(), 0);
+        assertTrue(!rows.get(1).has("accumu30"));
+        assertEquals("Bearer x", authorizations.get(0));
+    }
+
+    /**
+     * 送信できなかった計測値は次の起動時に送信する
+     */
+    @Test
+    public void resendsAfterRestart() throws Exception {
+        var dir = folder.newFolder("outbox");
+        var sink = new StubSink("sink");
+        sink.failing = true;
+        try (var pipeline = new SinkPipeline(dir)) {
+            pipeline.add(sink, null, null, 10, 0, 100);
+            pipeline.publish(new Measurement(null, Kind.DAY, TIME, new Double[] { 1.0 }));
+            pipeline.publish(new Measurement(null, Kind.DAY, TIME.plusDays(1), new Double[] { 2.0 }));
+            await(() -> sink.attempts > 0);
+        }
+
+        var restarted = new StubSink("sink");
+        try (var pipeline = new SinkPipeline(dir)) {
+            pipeline.add(restarted, null, null, 10, 0, 100);
+            await(() -> restarted.received.size() == 2);
+        }
+        assertEquals(TIME.toInstant(), restarted.received.get(0).getTime().toInstant());
+        assertArrayEquals(new Double[] { 2.0 }, restarted.received.get(1).getValues());
+    }
+
+    /**
+     * HTTPサーバーが受け取った計測値 (リクエストをまたいで受け取った順)
+     *
+     * @return 計測値のJSON
+     */
+    private List<JsonNode> ingested() {
+        var rows = new ArrayList<JsonNode>();
+        for (var body : requests.getOrDefault("/ingest", Collections.emptyList())) {
+            try {
+                new ObjectMapper().readTree(body).forEach(rows::add);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * 条件を満たすまで待つ
+     *
+     * @param condition 条件
+     * @throws InterruptedException
+     */
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        var deadline = System.currentTimeMillis() + 30000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("時間内に送信されませんでした。");
+            }
+            Thread.sleep(20);
+        }
+    }
+
+    /**
+     * 全て読み込む
+     *
+     * @param in 入力
+     * @return データ
+     * @throws IOException
+     */
+    private static byte[] readAll(InputStream in) throws IOException {
+        var out = new ByteArrayOutputStream();
+        var buf = new byte[4096];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * 受け取った計測値を覚えておく送信先
+     */
+    private static class StubSink implements Sink {
+        // 名前
+        private final String name;
+        // 受け取った計測値
+        private final List<Measurement> received = new CopyOnWriteArrayList<>();
+        // 送信を失敗させるか
+        private volatile boolean failing;
+        // 送信しようとした回数
+        private volatile int attempts;
+
+        StubSink(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public void write(List<Measurement> measurements) throws IOException {
+            attempts++;
+            if (failing) {
+                throw new IOException("送信できません。");
+            }
+            received.addAll(measurements);
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.heterodain.smartmeter.store;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import lombok.var;
+
+/**
+ * 送信待ちデータの保存のテスト
+ */
+public class OutboxTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * 開き直しても未送信のレコードが古い順に残る
+     */
+    @Test
+    public void recoversUnsentRecords() throws IOException {
+        var dir = folder.newFolder("outbox");
+        try (var outbox = new Outbox(dir)) {
+            append(outbox, "a", "b", "c");
+            outbox.ack(outbox.peek(1));
+        }
+
+        try (var outbox = new Outbox(dir)) {
+            assertEquals(2, outbox.getSize());
+            assertEquals(Arrays.asList("b", "c"), strings(outbox.peek(10)));
+        }
+    }
+
+    /**
+     * 書き込み途中で止まったレコードは切り捨てる
+     */
+    @Test
+    public void truncatesIncompleteRecord() throws IOException {
+        var dir = folder.newFolder("outbox");
+        try (var outbox = new Outbox(dir)) {
+            append(outbox, "a", "b");
+        }
+        // レコードヘッダの途中まで書いて止まった状態
+        try (var log = new RandomAccessFile(new File(dir, "log"), "rw")) {
+            log.seek(log.length());
+            log.write(new byte[] { 0, 0, 0, 5 });
+        }
+
+        try (var outbox = new Outbox(dir)) {
+            assertEquals(2, outbox.getSize());
+            append(outbox, "c");
+            assertEquals(Arrays.asList("a", "b", "c"), strings(outbox.peek(10)));
+        }
+    }
+
+    /**
+     * 全て送信済みになればログを切り詰め、開き直しても再送しない
+     */
+    @Test
+    public void compactsWhenAllAcked() throws IOException {
+        var dir = folder.newFolder("outbox");
+        try (var outbox = new Outbox(dir)) {
+            append(outbox, "a", "b");
+            outbox.ack(outbox.peek(10));
+            assertEquals(0, outbox.getSize());
+            assertEquals(0, new File(dir, "log").length());
+        }
+
+        try (var outbox = new Outbox(dir)) {
+            assertEquals(0, outbox.getSize());
+            assertEquals(0, outbox.peek(10).getEntries().size());
+        }
+    }
+
+    /**
+     * 古いレコードから捨てる
+     */
+    @Test
+    public void discardsOldestRecords() throws IOException {
+        var dir = folder.newFolder("outbox");
+        try (var outbox = new Outbox(dir)) {
+            append(outbox, "a", "b", "c");
+            assertEquals(2, outbox.discard(2));
+            assertEquals(1, outbox.getSize());
+            assertEquals(Arrays.asList("c"), strings(outbox.peek(10)));
+        }
+
+        try (var outbox = new Outbox(dir)) {
+            assertEquals(1, outbox.getSize());
+        }
+    }
+
+    /**
+     * 送信中は捨てず、送信済みにした後の件数がずれない
+     */
+    @Test
+    public void keepsInFlightRecords() throws IOException {
+        var dir = folder.newFolder("outbox");
+        try (var outbox = new Outbox(dir)) {
+            append(outbox, "a", "b");
+            var batch = outbox.peek(10);
+            append(outbox, "c");
+            assertEquals(0, outbox.discard(2));
+
+            outbox.ack(batch);
+            assertEquals(1, outbox.getSize());
+            assertEquals(Arrays.asList("c"), strings(outbox.peek(10)));
+        }
+    }
+
+    /**
+     * 送信をやめたレコードは次の読み出しで再び読み出し、その後は捨てられる
+     */
+    @Test
+    public void releasedRecordsCanBeDiscarded() throws IOException {
+        var dir = folder.newFolder("outbox");
+        try (var outbox = new Outbox(dir)) {
+            append(outbox, "a", "b", "c");
+            var batch = outbox.peek(2);
+            outbox.release(batch);
+            assertEquals(Arrays.asList("a", "b"), strings(outbox.peek(2)));
+
+            outbox.release(batch);
+            assertEquals(1, outbox.discard(1));
+            assertEquals(2, outbox.getSize());
+            assertEquals(Arrays.asList("b", "c"), strings(outbox.peek(10)));
+        }
+    }
+
+    /**
+     * レコードを追記
+     *
+     * @param outbox 保存先
+     * @param values 値
+     * @throws IOException
+     */
+    private static void append(Outbox outbox, String... values) throws IOException {
+        for (var value : values) {
+            outbox.append(value.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * 読み出したレコードを文字列に変換
+     *
+     * @param batch 読み出したレコード
+     * @return 文字列
+     */
+    private static List<String> strings(Outbox.Batch batch) {
+        var result = new ArrayList<String>();
+        for (var entry : batch.getEntries()) {
+            result.add(new String(entry, StandardCharsets.UTF_8));
+        }
+        return result;
+    }
+}